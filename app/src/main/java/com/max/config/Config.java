@@ -8,6 +8,9 @@ public class Config implements Persistable {
     public OptionValue<Boolean> showGpsTrace = new OptionValue<>(false);
     public OptionValue<Boolean> followGps = new OptionValue<>(false);
     public OptionValue<Boolean> showRoute = new OptionValue<>(false);
+
+    /** Draw the route as a vector overlay on top of the tiles, rather than on each tile (see RouteOverlay). */
+    public OptionValue<Boolean> vectorRoute = new OptionValue<>(true);
     public OptionValue<Boolean> showPointsOfInterest = new OptionValue<>(false);
 
     /** Navigate mode, tracking progress along waypoints. */
@@ -25,6 +28,9 @@ public class Config implements Persistable {
     public OptionValue<Boolean> resetDistance = new OptionValue<>(false);
     public OptionValue<Integer> mapBrightness = new OptionValue<>(100);
 
+    /** Decode map tiles as RGB_565 rather than ARGB_8888, fitting about twice as many tiles in memory. */
+    public OptionValue<Boolean> lowColorTiles = new OptionValue<>(false);
+
     @Override
     public void saveInstanceState(Bundle savedInstanceState, String prefix) {
         savedInstanceState.putBoolean(prefix + "showGpsTrace", showGpsTrace.value);
@@ -38,6 +44,8 @@ public class Config implements Persistable {
         savedInstanceState.putBoolean(prefix + "lockOrientation", lockOrientation.value);
         // not resetDistance (not a true switch option)
         savedInstanceState.putInt(prefix + "mapBrightness", mapBrightness.value);
+        savedInstanceState.putBoolean(prefix + "lowColorTiles", lowColorTiles.value);
+        savedInstanceState.putBoolean(prefix + "vectorRoute", vectorRoute.value);
     }
 
     @Override
@@ -53,5 +61,7 @@ public class Config implements Persistable {
         lockOrientation.value = savedInstanceState.getBoolean(prefix + "lockOrientation");
         // not resetDistance (not a true switch option)
         mapBrightness.value = savedInstanceState.getInt(prefix + "mapBrightness");
+        lowColorTiles.value = savedInstanceState.getBoolean(prefix + "lowColorTiles");
+        vectorRoute.value = savedInstanceState.getBoolean(prefix + "vectorRoute", true);
     }
 }
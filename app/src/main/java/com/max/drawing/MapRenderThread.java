@@ -0,0 +1,160 @@
+package com.max.drawing;
+
+import android.graphics.Canvas;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.view.Choreographer;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Draws the map on a thread of its own, into a {@link android.view.SurfaceView}, so that drawing does not
+ * compete with input handling and GPS updates on the UI thread (see {@link com.max.main.Settings#RENDER_THREAD}).
+ * Frames are only drawn when requested, at most one per vsync, as paced by the {@link Choreographer} of this
+ * thread.
+ * <br>
+ * From API 23 frames are drawn with a hardware accelerated canvas, as they are in the view, rather than the
+ * software canvas of {@link SurfaceHolder#lockCanvas}, which would make drawing on this thread slower than in the
+ * view.
+ * <br>
+ * The thread has a looper, so that work on state owned by the render thread, such as the tile caches, can be
+ * posted to it (see {@link #post}).
+ */
+class MapRenderThread extends HandlerThread implements SurfaceHolder.Callback, Choreographer.FrameCallback {
+    interface FrameDrawer {
+        /** Draw a frame. Called on the render thread. */
+        void drawFrame(Canvas canvas);
+    }
+
+    private final FrameDrawer drawer;
+    private Handler handler;
+
+    /** Set when a frame has been requested, until it starts to be drawn. */
+    private final AtomicBoolean frameRequested = new AtomicBoolean();
+
+    /** Only accessed on the render thread. */
+    private Choreographer choreographer;
+
+    /** Guards the surface: it must not be destroyed while a frame is drawn on it. */
+    private final Object surfaceLock = new Object();
+    private SurfaceHolder surfaceHolder;
+
+    private final Runnable scheduleFrame = new Runnable() {
+        @Override public void run() {
+            choreographer.postFrameCallback(MapRenderThread.this);
+        }
+    };
+
+    MapRenderThread(FrameDrawer drawer) {
+        super("MapRender", Process.THREAD_PRIORITY_DISPLAY);
+        this.drawer = drawer;
+        start();
+    }
+
+    @Override protected void onLooperPrepared() {
+        choreographer = Choreographer.getInstance();
+    }
+
+    private synchronized Handler getHandler() {
+        if (handler == null)
+            handler = new Handler(getLooper());
+        return handler;
+    }
+
+    /** Run something on the render thread. May be called from any thread. */
+    void post(Runnable runnable) {
+        getHandler().post(runnable);
+    }
+
+    /** Draw a frame at the next vsync. May be called from any thread. */
+    void requestFrame() {
+        if (frameRequested.compareAndSet(false, true))
+            post(scheduleFrame);
+    }
+
+    /** Draw into the surface of the holder, from when it is created. Called on the UI thread. */
+    void attachSurface(SurfaceHolder holder) {
+        holder.addCallback(this);
+        // the surface may have been created before this thread was started
+        if (holder.getSurface().isValid())
+            surfaceCreated(holder);
+    }
+
+    /** Stop drawing into the surface of the holder. Called on the UI thread. */
+    void detachSurface(SurfaceHolder holder) {
+        holder.removeCallback(this);
+        surfaceDestroyed(holder);
+    }
+
+    /**
+     * Stop the thread once it has handled what has been posted to it so far, and wait for it to finish, so that
+     * what it owned can be handed over to another thread. Called on the UI thread.
+     */
+    void quitAndJoin() {
+        quitSafely();
+        boolean interrupted = false;
+        while (isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    @Override public void doFrame(long frameTimeNanos) {
+        // requests from now on are for the next frame
+        frameRequested.set(false);
+
+        synchronized (surfaceLock) {
+            if (surfaceHolder == null)
+                return;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                Surface surface = surfaceHolder.getSurface();
+                if (!surface.isValid())
+                    return;
+                Canvas canvas = surface.lockHardwareCanvas();
+                try {
+                    drawer.drawFrame(canvas);
+                } finally {
+                    surface.unlockCanvasAndPost(canvas);
+                }
+            } else {
+                Canvas canvas = surfaceHolder.lockCanvas();
+                if (canvas == null)
+                    return;
+                try {
+                    drawer.drawFrame(canvas);
+                } finally {
+                    surfaceHolder.unlockCanvasAndPost(canvas);
+                }
+            }
+        }
+    }
+
+    // surface callbacks, on the UI thread
+
+    @Override public void surfaceCreated(SurfaceHolder holder) {
+        synchronized (surfaceLock) {
+            surfaceHolder = holder;
+        }
+        requestFrame();
+    }
+
+    @Override public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        requestFrame();
+    }
+
+    @Override public void surfaceDestroyed(SurfaceHolder holder) {
+        // waits for a frame being drawn to finish
+        synchronized (surfaceLock) {
+            surfaceHolder = null;
+        }
+    }
+}
@@ -46,16 +46,24 @@ public class Paints {
 
     public static final Paint HISTORY_PATH = pb().color(0xff0000ff).stroke(HISTORY_WIDTH).round().antialias().get();
 
+    /** Paints and outline paints (null for no outline) for each {@link com.max.route.PathType}, indexed by ordinal. */
+    public static final Paint[] PATH_TYPE_PAINTS = {PATH_MAJOR_ROAD, PATH_MINOR_ROAD, HISTORY_PATH};
+    public static final Paint[] PATH_TYPE_OUTLINE_PAINTS = {PATH_MAJOR_ROAD_OUTLINE, PATH_MINOR_ROAD_OUTLINE, null};
+
     public static final Paint CONFIG_DIVIDER = pb().color(0xff3f3f3f).strokeWidth(2).get();
 
     public static final Paint FILTER_BITMAP = new Paint(Paint.FILTER_BITMAP_FLAG);
 
+    /** Clears whatever is drawn with it, such as a part of a tile layer. */
+    public static final Paint CLEAR = pb().clear().get();
+
     public static final Paint GPS_ICON = pb().color(0x9fffffff).get();
 
     public static PaintBuilder pb() { return new PaintBuilder(); }
 
     static class PaintBuilder {
         private static final PorterDuffXfermode DST_ATOP = new PorterDuffXfermode(PorterDuff.Mode.DST_ATOP);
+        private static final PorterDuffXfermode CLEAR = new PorterDuffXfermode(PorterDuff.Mode.CLEAR);
 
         Paint p;
         PaintBuilder() { p = new Paint(); }
@@ -65,6 +73,7 @@ public class Paints {
         PaintBuilder strokeWidth(float width) { p.setStrokeWidth(width); return this; }
         PaintBuilder round() { p.setStrokeCap(Paint.Cap.ROUND); return this; }
         PaintBuilder dstAtop() { p.setXfermode(DST_ATOP); return this; }
+        PaintBuilder clear() { p.setXfermode(CLEAR); return this; }
         PaintBuilder antialias() { p.setAntiAlias(true); return this; }
         Paint get() { return p; }
     }
@@ -1,23 +1,27 @@
 package com.max.drawing;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.LightingColorFilter;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
-import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.os.Bundle;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
+import android.view.SurfaceView;
 import android.view.View;
+import android.view.ViewGroup;
 
 import com.max.logic.Tile;
 import com.max.config.Config;
@@ -26,15 +30,19 @@ import com.max.main.Persistable;
 import com.max.main.R;
 import com.max.main.Settings;
 import com.max.route.Navigator;
+import com.max.route.NearestNeighborQuery;
 import com.max.route.PathConfiguration;
 import com.max.route.PathLevelOfDetail;
+import com.max.route.PathRuns;
+import com.max.route.PathSegmentIndex;
 import com.max.route.PathType;
 import com.max.route.PointOfInterest;
-import com.max.route.QuadNode;
+import com.max.route.PolylineIndex;
 import com.max.route.QuadPointArray;
+import com.max.route.SpatialIndex;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.DateFormat;
@@ -43,21 +51,18 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class Renderer extends View implements Persistable {
 
     public Config config;
 
     public QuadPointArray points;
-    public QuadNode quadRoot;
-    public QuadNode[] segmentQuadRoots;
+
+    /** Index over the route points (see {@link Settings#ROUTE_INDEX}); see {@link #getNearestRouteIdx}. */
+    public SpatialIndex pointIndex;
+    public PathSegmentIndex routeSegmentIndex;
+    public PolylineIndex polylineIndex;
 
     public Navigator navigator;
 
@@ -67,16 +72,71 @@ public class Renderer extends View implements Persistable {
     /** General points of interest such as gas stations and restaurants. */
     public List<PointOfInterest> pointsOfInterest;
 
-    private Bitmap emptyTile, gpsIcon, scale, layerBitmap;
-    private Canvas layerCanvas;
+    private Bitmap emptyTile, gpsIcon, scale;
+
+    /** Shared by all tile layers with nothing drawn on them, instead of a transparent bitmap each. */
+    private Bitmap emptyLayer;
+
+    /**
+     * Draws the map when {@link Settings#RENDER_THREAD} is set, into a surface below this view (see
+     * {@link #attachRenderSurface}); null otherwise. This view then only handles input and draws the
+     * navigation stats on top of the map. The tile caches and everything else used for drawing the map are
+     * only accessed on the render thread then (see {@link #runOnMapThread}).
+     * <br>
+     * The thread runs while the view is attached to a window, and is started again when the view is
+     * attached again (see {@link #onAttachedToWindow}); in between, the UI thread owns the tile caches.
+     */
+    private volatile MapRenderThread renderThread;
+
+    private final MapRenderThread.FrameDrawer mapDrawer = new MapRenderThread.FrameDrawer() {
+        @Override public void drawFrame(Canvas canvas) {
+            Viewport v = viewport;
+            if (v != null)
+                drawMap(canvas, v);
+        }
+    };
+
+    /** The surface the render thread draws the map into; see {@link #attachRenderSurface}. */
+    private SurfaceView renderSurface;
+
+    /** Viewport, GPS state and settings for the render thread, published by {@link #requestRender}. */
+    private volatile Viewport viewport;
+
+    /**
+     * Tiles are loaded in the background; see {@link #loadTile}. The decoded tiles are kept as they are, so
+     * that changing the brightness (see {@link #tilePaint}) or the layers does not decode them again.
+     * Like the layer cache, it is owned by the UI thread, and handed to the render thread while there is one.
+     */
+    private final TileCache tileCache = createTileCache();
+
+    /**
+     * The layers drawn on top of each tile (route, GPS trace and points of interest), rendered in the
+     * background into transparent bitmaps of their own; see {@link #loadTileLayer}. Cleared when the layers
+     * change, which is much cheaper than decoding the tiles again.
+     */
+    private final TileCache layerCache = createLayerCache();
 
-    private LinkedHashMap<Integer, Tile> tileCache = getTileCache();
+    /** Bitmaps of evicted tiles, for loading new tiles into. */
+    private final TileBitmapPool bitmapPool = new TileBitmapPool(TILE_BITMAP_PIXELS, TILE_BITMAP_PIXELS, TILE_BITMAP_POOL_SIZE);
+
+    /** Bitmaps of evicted tile layers, for drawing new layers on. */
+    private final TileBitmapPool layerPool = new TileBitmapPool(TILE_BITMAP_PIXELS, TILE_BITMAP_PIXELS, TILE_BITMAP_POOL_SIZE);
+
+    /**
+     * Route drawn on top of the tiles (see {@link Config#vectorRoute}); replaced when another route is loaded.
+     * See {@link #prepareRouteOverlay}.
+     */
+    private volatile RouteOverlay routeOverlay;
+
+    /** Paint for drawing tiles, applying the map brightness; see {@link #updateTilePaint}. */
+    private final Paint tilePaint = new Paint(Paints.FILTER_BITMAP);
+    private int tilePaintBrightness = 100;
 
     private static final int MIN_ZOOM_LEVEL = 0;
     private static final int MAX_ZOOM_LEVEL = 10;
 
     /** Log2 of tile utm size at zoom level 0. */
-    private static final int ZOOM_0_TILE_BITS = 20;
+    static final int ZOOM_0_TILE_BITS = 20;
 
     private static final double MIN_SCALE = 1 << MIN_ZOOM_LEVEL;
     private static final double MAX_SCALE = (1 << MAX_ZOOM_LEVEL) << 3;
@@ -89,14 +149,42 @@ public class Renderer extends View implements Persistable {
 
     private static final int ZOOM_LEVEL_SHOW_LABELS = 7;
 
-    private static final int TILE_WIDTH_BITS = 8;
+    static final int TILE_WIDTH_BITS = 8;
     private static final int TILE_WIDTH_PIXELS = 1<<TILE_WIDTH_BITS;
 
-    /** 100 corresponds to ~26 mb image data (256x256 pixels, 4 bytes per pixel) */
-    private static final int TILE_CACHE_SIZE = 100;
+    /** Size of tile images, including the 1 px border on each side. */
+    private static final int TILE_BITMAP_PIXELS = TILE_WIDTH_PIXELS + 2;
+
+    /**
+     * Maximum number of bitmaps kept for reuse. A few are enough while panning, when each tile loaded evicts
+     * another one; clearing the cache releases more at once, which are reused as the visible tiles are reloaded.
+     */
+    private static final int TILE_BITMAP_POOL_SIZE = 16;
+
+    /**
+     * The tile cache may use 1/8 of the app's memory class, which is 16-32 MB on most devices: ~60-120 tiles
+     * at 4 bytes per pixel, or twice as many with {@link Config#lowColorTiles}.
+     */
+    private static final int TILE_CACHE_MEMORY_FRACTION = 8;
+
+    /**
+     * The tile layer cache may use 1/16 of the app's memory class. Only tiles with anything drawn on them
+     * take up memory (a full ARGB_8888 tile each), which is mostly those along the route.
+     */
+    private static final int TILE_LAYER_MEMORY_FRACTION = 16;
 
-    /** Contains all tile indices for which we have a tile on disk. */
-    private Set<Integer> existingTiles = new HashSet<>();
+    /** Persisted tile inventory, in the app's cache directory (see {@link TileInventory}). */
+    private static final String TILE_INVENTORY_FILE = "tiles.inventory";
+
+    private final TileSource tileSource = openTileSource();
+
+    /**
+     * Contains all tile indices for which we have a tile on disk. Replaced (on the UI thread) when the
+     * inventory has been rebuilt, and read by the tile loader threads.
+     */
+    private volatile TileInventory tileInventory = new TileInventory(new int[0], 0);
+
+    private final TilePrefetcher prefetcher = new TilePrefetcher();
 
     private double centerUtmX = Settings.START_CENTER_UTM_X, centerUtmY = Settings.START_CENTER_UTM_Y;
     private double gpsX = centerUtmX, gpsY = centerUtmY;
@@ -106,30 +194,138 @@ public class Renderer extends View implements Persistable {
 
     private final Typeface fontAurora;
 
-    private LinkedHashMap<Integer, Tile> getTileCache() {
-        return new LinkedHashMap<Integer, Tile>(TILE_CACHE_SIZE, 0.75f, true) {
-            private static final long serialVersionUID = 1L;
-
-            /**
-             * Override get to load tiles not in the cache and insert them into the cache.
-             *
-             * @return Null if image could not be loaded (typically out of bounds).
-             */
-            @Override public Tile get(Object key) {
-                Tile tile = super.get(key);
-                if (tile != null)
-                    return tile;
+    private TileCache createTileCache() {
+        ActivityManager activityManager = (ActivityManager) getContext().getSystemService(Context.ACTIVITY_SERVICE);
+        long maxBytes = (long) activityManager.getMemoryClass() * 1024 * 1024 / TILE_CACHE_MEMORY_FRACTION;
+        Log.d("TileCache", "Tile cache budget: " + (maxBytes >> 20) + " MB");
+
+        return new TileCache(maxBytes, Looper.getMainLooper(), new TileCache.TileLoader() {
+            @Override public Tile loadTile(int tilePos) {
+                return Renderer.this.loadTile(tilePos);
+            }
+
+            @Override public boolean isStale(Tile tile) {
+                return false;
+            }
+
+            @Override public void onTileLoaded(Tile tile) {
+                invalidateMap();
+            }
+
+            @Override public void recycle(Tile tile) {
+                bitmapPool.release(tile);
+            }
+        });
+    }
+
+    private TileCache createLayerCache() {
+        ActivityManager activityManager = (ActivityManager) getContext().getSystemService(Context.ACTIVITY_SERVICE);
+        long maxBytes = (long) activityManager.getMemoryClass() * 1024 * 1024 / TILE_LAYER_MEMORY_FRACTION;
+
+        return new TileCache(maxBytes, Looper.getMainLooper(), new TileCache.TileLoader() {
+            @Override public Tile loadTile(int tilePos) {
+                return loadTileLayer(tilePos);
+            }
 
-                Integer tp = (Integer) key;
-                if ((tile = loadTile(tp)) != null)
-                    put(tp, tile);
-                return tile;
+            @Override public boolean isStale(Tile layer) {
+                // GPS history points added while the layer was drawn are missing from it
+                return config.showGpsTrace.value && layer.historyPointCount != historySegmentIndex.getPointCount();
             }
 
-            @Override protected boolean removeEldestEntry(Map.Entry<Integer, Tile> eldest) {
-                return size() > TILE_CACHE_SIZE;
+            @Override public void onTileLoaded(Tile layer) {
+                invalidateMap();
             }
-        };
+
+            @Override public void recycle(Tile layer) {
+                if (layer.map != emptyLayer)
+                    layerPool.release(layer);
+            }
+        });
+    }
+
+    /**
+     * Run something that uses the tile caches (or anything else used for drawing the map) from the UI thread:
+     * right away, or on the render thread if there is one.
+     */
+    private void runOnMapThread(Runnable runnable) {
+        MapRenderThread thread = renderThread;
+        if (thread != null)
+            thread.post(runnable);
+        else
+            runnable.run();
+    }
+
+    /**
+     * Redraw after the viewport, the GPS state or the settings changed: publish a snapshot of them for the
+     * render thread, if there is one, and redraw this view. Must be called on the UI thread.
+     */
+    public void requestRender() {
+        MapRenderThread thread = renderThread;
+        if (thread != null) {
+            viewport = snapshotViewport();
+            thread.requestFrame();
+        }
+        invalidate();
+    }
+
+    private Viewport snapshotViewport() {
+        return new Viewport(centerUtmX, centerUtmY, zoomLevel, scalingZoom, getWidth(), getHeight(), gpsX, gpsY, gpsBearing,
+                points, config.showRoute.value && config.vectorRoute.value, isAnyLayerEnabled(),
+                config.lowColorTiles.value, config.mapBrightness.value);
+    }
+
+    /** Redraw the map with the current viewport, e.g. when a tile has been loaded. Called on the map thread. */
+    private void invalidateMap() {
+        MapRenderThread thread = renderThread;
+        if (thread != null)
+            thread.requestFrame();
+        else
+            invalidate();
+    }
+
+    /**
+     * Add the surface the render thread draws the map into, below this view in its parent. Does nothing
+     * unless {@link Settings#RENDER_THREAD} is set.
+     */
+    public void attachRenderSurface() {
+        if (!Settings.RENDER_THREAD)
+            return;
+        ViewGroup parent = (ViewGroup) getParent();
+        renderSurface = new SurfaceView(getContext());
+        if (renderThread != null)
+            renderThread.attachSurface(renderSurface.getHolder());
+        parent.addView(renderSurface, parent.indexOfChild(this),
+                new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+    }
+
+    @Override protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (!Settings.RENDER_THREAD)
+            return;
+
+        // the render thread of an earlier attachment has quit, so start a new one and hand the caches to it
+        MapRenderThread thread = new MapRenderThread(mapDrawer);
+        tileCache.setLooper(thread.getLooper());
+        layerCache.setLooper(thread.getLooper());
+        if (renderSurface != null)
+            thread.attachSurface(renderSurface.getHolder());
+        renderThread = thread;
+        requestRender();
+    }
+
+    @Override protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        MapRenderThread thread = renderThread;
+        if (thread == null)
+            return;
+
+        renderThread = null;
+        if (renderSurface != null)
+            thread.detachSurface(renderSurface.getHolder());
+        thread.quitAndJoin();
+        // the UI thread owns the caches until the view is attached again
+        tileCache.setLooper(Looper.getMainLooper());
+        layerCache.setLooper(Looper.getMainLooper());
     }
 
     public Renderer(Context context, AttributeSet aSet) {
@@ -153,7 +349,7 @@ public class Renderer extends View implements Persistable {
 
         loadBitmaps();
 
-        inventoryTiles();
+        inventoryTiles(new File(context.getCacheDir(), TILE_INVENTORY_FILE));
 
         navigator = new Navigator(this);
 
@@ -199,6 +395,8 @@ public class Renderer extends View implements Persistable {
 
         // navigator
         navigator.restoreInstanceState(savedInstanceState, "navigator");
+
+        requestRender();
     }
 
     private static final BitmapFactory.Options NO_SCALING = new BitmapFactory.Options();
@@ -212,91 +410,222 @@ public class Renderer extends View implements Persistable {
         gpsIcon = BitmapFactory.decodeResource(getResources(), R.drawable.gps_arrow_yellow_120x120, NO_SCALING);
         scale = BitmapFactory.decodeResource(getResources(), R.drawable.scale, NO_SCALING);
         emptyTile = BitmapFactory.decodeResource(getResources(), R.drawable.empty, NO_SCALING);
+        emptyLayer = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Buffers used for loading a tile and drawing its layers. Tiles are loaded on several threads at once,
+     * so each thread has its own.
+     */
+    private static class TileLoadState {
+        final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
 
-        layerBitmap = Bitmap.createBitmap(TILE_WIDTH_PIXELS, TILE_WIDTH_PIXELS, Bitmap.Config.ARGB_8888);
-        layerBitmap.setDensity(emptyTile.getDensity());
-        layerCanvas = new Canvas(layerBitmap);
+        final PathRuns runs = new PathRuns();
+        final boolean[] pathTypesUsed = new boolean[PathType.values().length];
+        final Path[] paths = new Path[PathType.values().length];
+
+        TileLoadState() {
+            decodeOptions.inScaled = NO_SCALING.inScaled;
+            decodeOptions.inMutable = NO_SCALING.inMutable;
+            decodeOptions.inTempStorage = new byte[NO_SCALING.inTempStorage.length];
+
+            for (int n = 0; n < paths.length; ++n)
+                paths[n] = new Path();
+        }
     }
 
+    private final ThreadLocal<TileLoadState> tileLoadState = new ThreadLocal<TileLoadState>() {
+        @Override protected TileLoadState initialValue() {
+            return new TileLoadState();
+        }
+    };
+
     public static File getTileRoot() {
         return Settings.TILE_ROOT_PATH;
     }
 
-    /** Populate the structure of available tiles. */
-    private void inventoryTiles() {
-        Pattern p = Pattern.compile("tile_(\\d{1,2})_(\\d+)_(\\d+)\\.png");
+    /** Use the tile pack if there is one, or else the tile directory. */
+    private static TileSource openTileSource() {
+        if (Settings.TILE_PACK_PATH.exists()) {
+            try {
+                return new TilePack(Settings.TILE_PACK_PATH);
+            } catch (IOException e) {
+                throw new IllegalStateException("Error opening tile pack " + Settings.TILE_PACK_PATH, e);
+            }
+        }
+        return new TileDirectory(getTileRoot());
+    }
+
+    /**
+     * Populate the structure of available tiles from the persisted inventory. If the tile source has been
+     * modified since (or there is no inventory yet), the inventory is rebuilt in the background, and the
+     * possibly outdated one is used until then.
+     */
+    private void inventoryTiles(final File inventoryFile) {
+        Log.d("TileCache", "Source = " + (tileSource instanceof TilePack ? Settings.TILE_PACK_PATH : getTileRoot()));
+        TileInventory persisted = TileInventory.read(inventoryFile);
+        if (persisted != null)
+            tileInventory = persisted;
+        if (persisted != null && persisted.isCurrent(tileSource)) {
+            Log.d("TileCache", "Inventory: " + persisted.size() + " tiles");
+            return;
+        }
 
-        Log.d("TileCache", "Root = " + getTileRoot());
-        for (String asset : getTileRoot().list()) {
-            Matcher m = p.matcher(asset);
-            if (m.find()) {
-                int zoomLevel = Integer.valueOf(m.group(1));
-                int tx = Integer.valueOf(m.group(2));
-                int ty = Integer.valueOf(m.group(3));
-                existingTiles.add(getTilePos(zoomLevel, tx, ty));
+        Thread thread = new Thread(new Runnable() {
+            @Override public void run() {
+                LogStats timer = new LogStats();
+                final TileInventory inventory;
+                try {
+                    inventory = TileInventory.build(tileSource);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Error listing tiles", e);
+                }
+                timer.log("Inventoried " + inventory.size() + " tiles");
+                try {
+                    inventory.write(inventoryFile);
+                } catch (IOException e) {
+                    // the inventory is rebuilt at the next start instead
+                    Log.w("TileCache", "Error writing tile inventory " + inventoryFile, e);
+                }
+                post(new Runnable() {
+                    @Override public void run() {
+                        tileInventory = inventory;
+                        requestRender();
+                    }
+                });
             }
+        }, "TileInventory");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /** Load a tile. Called on the tile loader threads. */
+    private Tile loadTile(int tp) {
+        // see if tile exists
+        if (tileInventory.contains(tp)) {
+            int zoom = TileSource.getZoomLevel(tp);
+            int tx = TileSource.getTX(tp), ty = TileSource.getTY(tp);
+            TileLoadState state = tileLoadState.get();
+
+            Log.d("AccuMap", "Loading " + TileSource.getTileName(tp));
+            Bitmap.Config bitmapConfig = config.lowColorTiles.value ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            state.decodeOptions.inPreferredConfig = bitmapConfig;
+            TileBitmapPool.Entry pooled = bitmapPool.acquire(bitmapConfig);
+            Bitmap map = loadTileFromStorage(tp, pooled == null ? null : pooled.bitmap, state.decodeOptions);
+            boolean reused = pooled != null && map == pooled.bitmap;
+            if (pooled != null && !reused)
+                bitmapPool.putBack(pooled);
+            bitmapPool.countLoad(reused);
+            if (map == null)
+                return null;
+
+            Tile tile = reused ? new Tile(zoom, tx, ty, map, pooled.canvas) : new Tile(zoom, tx, ty, map);
+            fixTileIfPartiallyEmpty(tile, null);
+            return tile;
         }
+        return null;
     }
 
-    static final int getTilePos(int zoomLevel, int tx, int ty) {
-        // zoom: 4 bits (0-15)
-        // tx/ty: 14 bits (0-16383)
-        return (zoomLevel << 28) + (tx << 14) + ty;
+    /** @return True if the route is drawn on the tile layers, rather than by the {@link RouteOverlay}. */
+    private boolean isRouteOnTiles() {
+        return config.showRoute.value && !config.vectorRoute.value;
     }
 
-    static final int getZoomLevel(int tilePos) { return tilePos >>> 28; }
-    static final int getTX(int tilePos) { return (tilePos >> 14) & 0x3fff; }
-    static final int getTY(int tilePos) { return tilePos & 0x3fff; }
+    /**
+     * Build the paths of the route overlay in the background, so that they are ready when drawn. Called when a
+     * route has been loaded, and when the vector route is enabled.
+     */
+    public void prepareRouteOverlay() {
+        if (!config.vectorRoute.value || points == null || (routeOverlay != null && routeOverlay.isFor(points)))
+            return;
+        RouteOverlay overlay = new RouteOverlay(points, ROUTE_PATH, MAX_ZOOM_LEVEL);
+        overlay.prebuild(zoomLevel);
+        routeOverlay = overlay;
+    }
 
-    private Tile loadTile(Integer tp) {
-        // see if tile exists
-        if (existingTiles.contains(tp)) {
-            int zoom = getZoomLevel(tp);
-            int tx = getTX(tp), ty = getTY(tp);
-
-            String tileName = "tile_" + zoom + "_" + tx + "_" + ty + ".png";
-            Log.d("AccuMap", "Loading " + tileName);
-            Bitmap map = loadTileFromStorage(tileName);
-
-            Tile tile = new Tile(zoom, tx, ty, map);
-
-            // dim tile
-            if (config.mapBrightness.value != 100)
-                tile.canvas.drawColor(255 - (255 * config.mapBrightness.value / 100) << 24);
-
-            boolean anyLayerPresent = config.showRoute.value || config.showGpsTrace.value || config.showPointsOfInterest.value;
-            if (anyLayerPresent) {
-                // clear left-overs from last tile (re-using the same bitmap/canvas)
-                layerCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-
-                if (config.showRoute.value)
-                    drawPath(points, quadRoot, ROUTE_PATH, layerCanvas, tile);
-                if (config.showGpsTrace.value)
-                    drawPath(historyPoints, historyQuadTree, GPS_PATH, layerCanvas, tile);
-                if (config.showPointsOfInterest.value)
-                    drawPointsOfInterest(layerCanvas, tile);
-
-                // finally blit layers on top of tile
-                Rect fullTile = new Rect(0, 0, TILE_WIDTH_PIXELS, TILE_WIDTH_PIXELS);
-                Rect excludeBorder = new Rect(1, 1, TILE_WIDTH_PIXELS+1, TILE_WIDTH_PIXELS+1);
-                tile.canvas.drawBitmap(layerBitmap, fullTile, excludeBorder, null);
-            }
+    private boolean isAnyLayerEnabled() {
+        return isRouteOnTiles() || config.showGpsTrace.value || config.showPointsOfInterest.value;
+    }
 
-            // TODO this is broken! it has to be done during onDraw, or layers can draw on top of the empty part!!!
-            // do any empty tile overwriting at the end since we don't want layers on top of it
-            fixTileIfPartiallyEmpty(tile);
+    /**
+     * Draw the enabled layers of a tile. Called on the tile loader threads.
+     *
+     * @return A layer with nothing drawn on it is returned with {@link #emptyLayer} as its bitmap, to take
+     * up next to no memory.
+     */
+    private Tile loadTileLayer(int tp) {
+        if (!tileInventory.contains(tp) || !isAnyLayerEnabled())
+            return null;
+
+        int zoom = TileSource.getZoomLevel(tp);
+        int tx = TileSource.getTX(tp), ty = TileSource.getTY(tp);
+        TileLoadState state = tileLoadState.get();
+
+        TileBitmapPool.Entry pooled = layerPool.acquire(Bitmap.Config.ARGB_8888);
+        Tile layer;
+        if (pooled != null) {
+            layer = new Tile(zoom, tx, ty, pooled.bitmap, pooled.canvas);
+            // clear left-overs from the last layer drawn on the bitmap
+            layer.map.eraseColor(Color.TRANSPARENT);
+        } else {
+            Bitmap map = Bitmap.createBitmap(TILE_BITMAP_PIXELS, TILE_BITMAP_PIXELS, Bitmap.Config.ARGB_8888);
+            map.setDensity(emptyTile.getDensity());
+            layer = new Tile(zoom, tx, ty, map);
+            // layers are drawn in tile pixels, inside the 1 px border of the tile bitmap (pooled layers
+            // keep their canvas, and with that the translation)
+            layer.canvas.translate(1, 1);
+        }
+        layerPool.countLoad(pooled != null);
 
-            return tile;
+        boolean drawn = false;
+        if (isRouteOnTiles())
+            drawn |= drawPath(routeSegmentIndex, ROUTE_PATH, state, layer);
+        if (config.showGpsTrace.value) {
+            // the history grows while the layer is drawn; points added from now on are checked for when the
+            // layer is delivered (see TileCache.TileLoader#isStale)
+            PathSegmentIndex history = historySegmentIndex;
+            layer.historyPointCount = history.getPointCount();
+            drawn |= drawPath(history, GPS_PATH, state, layer);
+        }
+        if (config.showPointsOfInterest.value)
+            drawn |= drawPointsOfInterest(layer.canvas, layer);
+
+        if (!drawn) {
+            layerPool.release(layer);
+            Tile empty = new Tile(zoom, tx, ty, emptyLayer, null);
+            empty.historyPointCount = layer.historyPointCount;
+            return empty;
+        }
+
+        // no layers on the parts outside the map
+        fixTileIfPartiallyEmpty(layer, Paints.CLEAR);
+        return layer;
+    }
+
+    /** Decode a tile, into the given bitmap if possible (may be null). Returns null if the tile no longer exists. */
+    private Bitmap loadTileFromStorage(int tp, Bitmap reuseBitmap, BitmapFactory.Options options) {
+        options.inBitmap = reuseBitmap;
+        try {
+            return loadTileFromStorage(tp, options);
+        } catch (IllegalArgumentException e) {
+            // the bitmap can't hold this tile (unexpected size or format), so decode into a new one
+            options.inBitmap = null;
+            return loadTileFromStorage(tp, options);
+        } finally {
+            options.inBitmap = null;
         }
-        return null;
     }
 
-    private Bitmap loadTileFromStorage(String tileName) {
-        File tileFile = new File(getTileRoot(), tileName);
-        try (InputStream is = new FileInputStream(tileFile)) {
-            return BitmapFactory.decodeStream(is, null, NO_SCALING);
+    private Bitmap loadTileFromStorage(int tp, BitmapFactory.Options options) {
+        try (InputStream is = tileSource.open(tp)) {
+            return BitmapFactory.decodeStream(is, null, options);
+        } catch (FileNotFoundException e) {
+            // removed since the (outdated) inventory was built; the rebuilt inventory won't have it
+            Log.w("TileCache", "Tile not found: " + TileSource.getTileName(tp));
+            return null;
         } catch (IOException e) {
-            throw new IllegalStateException("Error loading tile "+tileName, e);
+            throw new IllegalStateException("Error loading tile "+TileSource.getTileName(tp), e);
         }
     }
 
@@ -304,8 +633,11 @@ public class Renderer extends View implements Persistable {
      * This method is needed since the edge tiles for Sweden are partial (part tile,
      * part black). We therefore need special code to detect these edge tiles and replace
      * the part outside the region limits with the empty tile.
+     * <br>
+     * Tile layers are fixed the same way, but drawing the empty tile with {@link Paints#CLEAR}, which
+     * clears the part outside the region limits instead.
      */
-    private void fixTileIfPartiallyEmpty(Tile tile) {
+    private void fixTileIfPartiallyEmpty(Tile tile, Paint paint) {
         if (tile.zoomLevel >= MapConstants.SWEDEN_ONLY_MIN_ZOOM && tile.zoomLevel <= MapConstants.ALL_OF_SWEDEN_MAX_ZOOM) {
             // calculate utm coordinates for tile corners
             int tileSizeBits = ZOOM_0_TILE_BITS - tile.zoomLevel;
@@ -317,22 +649,22 @@ public class Renderer extends View implements Persistable {
             if (utx0 < MapConstants.UTM_SWEDEN_X0 && utx0 + tileSizeUtm >= MapConstants.UTM_SWEDEN_X0) {
                 int border = MapConstants.UTM_SWEDEN_X0 - utx0 >> tileSizeBits - TILE_WIDTH_BITS;
                 Rect part = new Rect(0, 0, border, TILE_WIDTH_PIXELS);
-                tile.canvas.drawBitmap(emptyTile, part, part, null);
+                tile.canvas.drawBitmap(emptyTile, part, part, paint);
             }
             if (utx0 <= MapConstants.UTM_SWEDEN_X1 && utx0 + tileSizeUtm > MapConstants.UTM_SWEDEN_X1) {
                 int border = MapConstants.UTM_SWEDEN_X1 - utx0 >> tileSizeBits - TILE_WIDTH_BITS;
                 Rect part = new Rect(border, 0, TILE_WIDTH_PIXELS, TILE_WIDTH_PIXELS);
-                tile.canvas.drawBitmap(emptyTile, part, part, null);
+                tile.canvas.drawBitmap(emptyTile, part, part, paint);
             }
             if (uty0 < MapConstants.UTM_SWEDEN_Y0 && uty0 + tileSizeUtm >= MapConstants.UTM_SWEDEN_Y0) {
                 int border = MapConstants.UTM_SWEDEN_Y0 - uty0 >> tileSizeBits - TILE_WIDTH_BITS;
                 Rect part = new Rect(0, TILE_WIDTH_PIXELS - border - 1, TILE_WIDTH_PIXELS, TILE_WIDTH_PIXELS);
-                tile.canvas.drawBitmap(emptyTile, part, part, null);
+                tile.canvas.drawBitmap(emptyTile, part, part, paint);
             }
             if (uty0 <= MapConstants.UTM_SWEDEN_Y1 && uty0 + tileSizeUtm > MapConstants.UTM_SWEDEN_Y1) {
                 int border = MapConstants.UTM_SWEDEN_Y1 - uty0 >> tileSizeBits - TILE_WIDTH_BITS;
                 Rect part = new Rect(0, 0, TILE_WIDTH_PIXELS, TILE_WIDTH_PIXELS - border);
-                tile.canvas.drawBitmap(emptyTile, part, part, null);
+                tile.canvas.drawBitmap(emptyTile, part, part, paint);
             }
         }
     }
@@ -346,24 +678,38 @@ public class Renderer extends View implements Persistable {
     }
 
     /**
-     * Clears the tile cache, forcing all tiles to be re-rendered.
+     * Clears the tile cache (and the tile layers), forcing all tiles to be re-rendered.
      * Optionally also invalidates the view to force a display redraw.
      */
     public void invalidateTileCache(boolean invalidateView) {
-        tileCache.clear();
+        runOnMapThread(new Runnable() {
+            @Override public void run() {
+                tileCache.clear();
+                layerCache.clear();
+            }
+        });
         if (invalidateView)
-            invalidate();
+            requestRender();
     }
 
-    QuadMatches matches = new QuadMatches();
-
-    // instance level to avoid re-instantiating for each call to drawPath
-    boolean[] pathTypesUsed = new boolean[PathType.values().length];
-    Path[] paths = new Path[PathType.values().length];
-    { for (int n = 0; n < PathType.values().length; ++n) paths[n] = new Path(); }
+    /** Clears the tile layers, forcing them to be re-drawn, but keeps the loaded tiles. */
+    public void invalidateTileLayers() {
+        runOnMapThread(new Runnable() {
+            @Override public void run() {
+                layerCache.clear();
+            }
+        });
+        requestRender();
+    }
 
-    private void drawPath(QuadPointArray pathPoints, QuadNode pathQuadTree, PathConfiguration pathConfig, Canvas canvas, Tile tile) {
+    /** Draw the part of a path on a tile layer. @return True if any of the path was drawn. */
+    private boolean drawPath(PathSegmentIndex pathIndex, PathConfiguration pathConfig, TileLoadState state, Tile tile) {
         // TODO try arcs instead of lines
+        QuadPointArray pathPoints = pathIndex.getPoints();
+        PathRuns runs = state.runs;
+        Path[] paths = state.paths;
+        boolean[] pathTypesUsed = state.pathTypesUsed;
+        Canvas canvas = tile.canvas;
 
         // calculate utm coordinates for tile corners
         int tileSizeBits = ZOOM_0_TILE_BITS - tile.zoomLevel;
@@ -371,93 +717,88 @@ public class Renderer extends View implements Persistable {
         int utx0 = (tile.tx << tileSizeBits) - 1_200_000;
         int uty0 = 8_500_000 - (tile.ty+1 << tileSizeBits);
 
-        // find route points visible on tile by querying quad tree
-        matches.clear();
+        // find runs of path segments visible on tile by querying the index; querying for points instead
+        // would miss segments crossing the tile without any point on it
+        runs.clear();
         int pathWidthOffset = pathConfig.width << tileSizeBits - TILE_WIDTH_BITS;
         int queryUtx0 = utx0 - pathWidthOffset/2;
         int queryUty0 = uty0 - pathWidthOffset/2;
+        int queryUtx1 = queryUtx0 + tileSizeUtm + pathWidthOffset;
+        int queryUty1 = queryUty0 + tileSizeUtm + pathWidthOffset;
         int queryLevel = pathConfig.levelOfDetail.queryLevelByZoomLevel[tile.zoomLevel];
-        pathQuadTree.queryTree(queryLevel, queryUtx0, queryUty0, queryUtx0+tileSizeUtm+pathWidthOffset, queryUty0+tileSizeUtm+pathWidthOffset, pathPoints, matches);
-        Log.d("OptiMap", "XYZ Got " + matches.matchCount + " matches");
-
-        if (matches.matchCount != 0) {
-            matches.sort();
-
-            int stepSize = 1 << queryLevel;
-
-            int prevIdx = -1, p2Idx = -1;
-            float p2x = 0, p2y = 0;
-            int p2Type = 0;
-
-            for (int k = 0; k < matches.matchCount; ++k) {
-                int idx = matches.get(k);
-
-                if (prevIdx == -1 || idx - prevIdx > stepSize) {
-                    // first point, or just entered screen, draw partial on-screen segment
-                    float px = utmToTilePixelX(pathPoints.x[idx], utx0, tileSizeUtm);
-                    float py = utmToTilePixelY(pathPoints.y[idx], uty0, tileSizeUtm);
-
-                    if (idx != 0 || pathConfig.cyclic) {
-                        // the math below for idx=0 is to select the last point for the current query level
-                        // TODO won't this draw the last segment twice for cyclical routes when both the last and first point are visible?
-                        // --> might check if point is visible on tile, or perhaps better set a flag and don't draw the final segment
-                        int p0Idx = idx == 0 ? ((pathPoints.nrPoints - 1) / stepSize) * stepSize : idx - stepSize;
-                        float p0x = utmToTilePixelX(pathPoints.x[p0Idx], utx0, tileSizeUtm);
-                        float p0y = utmToTilePixelY(pathPoints.y[p0Idx], uty0, tileSizeUtm);
-                        int p0Type = pathPoints.pathType[p0Idx].ordinal();
-                        paths[p0Type].moveTo(p0x, p0y);
-                        paths[p0Type].lineTo(px, py);
-                        pathTypesUsed[p0Type] = true;
-                    }
-
-                    // start next path type segment
-                    p2Type = pathPoints.pathType[idx].ordinal();
-                    paths[p2Type].moveTo(px, py);
-                } else {
-                    // same point as previous "next"; don't calculate again; move if path type changed
-                    int pType = pathPoints.pathType[p2Idx].ordinal();
-                    if (pType != p2Type) {
-                        p2Type = pType;
-                        paths[p2Type].moveTo(p2x, p2y);
-                    }
+        pathIndex.querySegmentRuns(queryLevel, queryUtx0, queryUty0, queryUtx1, queryUty1, runs);
+        Log.d("OptiMap", "XYZ Got " + runs.runCount + " runs, " + runs.getPointCount() + " points");
+
+        for (int r = 0; r < runs.runCount; ++r) {
+            // start a new sub path for each run
+            int k = runs.getRunBegin(r), end = runs.getRunEnd(r);
+            int idx = runs.getPointIdx(k);
+            float px = utmToTilePixelX(pathPoints.getX(idx), utx0, tileSizeUtm);
+            float py = utmToTilePixelY(pathPoints.getY(idx), uty0, tileSizeUtm);
+            int pType = pathPoints.getPathType(idx).ordinal();
+            paths[pType].moveTo(px, py);
+            pathTypesUsed[pType] = true;
+
+            while (++k < end) {
+                // move if path type changed (segments are drawn with the type of their first point)
+                int segmentType = pathPoints.getPathType(idx).ordinal();
+                if (segmentType != pType) {
+                    pType = segmentType;
+                    paths[pType].moveTo(px, py);
+                    pathTypesUsed[pType] = true;
                 }
 
-                // draw line to the next point (which may or may not be on screen)
-                p2Idx = Math.min(idx + stepSize, pathPoints.nrPoints - 1);
-                p2x = utmToTilePixelX(pathPoints.x[p2Idx], utx0, tileSizeUtm);
-                p2y = utmToTilePixelY(pathPoints.y[p2Idx], uty0, tileSizeUtm);
-                paths[p2Type].lineTo(p2x, p2y);
-                pathTypesUsed[p2Type] = true;
+                idx = runs.getPointIdx(k);
+                px = utmToTilePixelX(pathPoints.getX(idx), utx0, tileSizeUtm);
+                py = utmToTilePixelY(pathPoints.getY(idx), uty0, tileSizeUtm);
+                paths[pType].lineTo(px, py);
+            }
+        }
 
-                prevIdx = idx;
+        // closing segment of cyclic paths, from the last point back to the first
+        int lastIdx = pathPoints.nrPoints - 1;
+        if (pathConfig.cyclic && lastIdx > 0) {
+            int x0 = pathPoints.getX(lastIdx), y0 = pathPoints.getY(lastIdx), x1 = pathPoints.getX(0), y1 = pathPoints.getY(0);
+            if (queryUtx0 <= Math.max(x0, x1) && queryUtx1 >= Math.min(x0, x1) && queryUty0 <= Math.max(y0, y1) && queryUty1 >= Math.min(y0, y1)) {
+                int pType = pathPoints.getPathType(lastIdx).ordinal();
+                paths[pType].moveTo(utmToTilePixelX(x0, utx0, tileSizeUtm), utmToTilePixelY(y0, uty0, tileSizeUtm));
+                paths[pType].lineTo(utmToTilePixelX(x1, utx0, tileSizeUtm), utmToTilePixelY(y1, uty0, tileSizeUtm));
+                pathTypesUsed[pType] = true;
             }
+        }
 
-            // first draw all outlines
-            for (int n = 0; n < PathType.values().length; ++n)
-                if (pathTypesUsed[n] && PathType.values()[n].outlinePaint != null)
-                    canvas.drawPath(paths[n], PathType.values()[n].outlinePaint);
-
-            // then draw actual paths on top of outlines (this is needed in order to have
-            // smooth connection points between adjacent paths)
-            for (int n = 0; n < PathType.values().length; ++n) {
-                if (pathTypesUsed[n]) {
-                    canvas.drawPath(paths[n], PathType.values()[n].paint);
-                    paths[n].reset();
-                    pathTypesUsed[n] = false;
-                }
+        // first draw all outlines
+        for (int n = 0; n < PathType.values().length; ++n)
+            if (pathTypesUsed[n] && Paints.PATH_TYPE_OUTLINE_PAINTS[n] != null)
+                canvas.drawPath(paths[n], Paints.PATH_TYPE_OUTLINE_PAINTS[n]);
+
+        // then draw actual paths on top of outlines (this is needed in order to have
+        // smooth connection points between adjacent paths)
+        boolean drawn = false;
+        for (int n = 0; n < PathType.values().length; ++n) {
+            if (pathTypesUsed[n]) {
+                canvas.drawPath(paths[n], Paints.PATH_TYPE_PAINTS[n]);
+                paths[n].reset();
+                pathTypesUsed[n] = false;
+                drawn = true;
             }
         }
+        return drawn;
     }
 
-    private void drawPointsOfInterest(Canvas canvas, Tile tile) {
+    /** @return True if any point of interest (or its label) was drawn. */
+    private boolean drawPointsOfInterest(Canvas canvas, Tile tile) {
+        boolean drawn = false;
         if (pointsOfInterest != null)
-            drawPointsOfInterest(canvas, tile, pointsOfInterest, Paints.POINT_OF_INTEREST, Paints.POINT_OF_INTEREST_OUTLINE);
+            drawn |= drawPointsOfInterest(canvas, tile, pointsOfInterest, Paints.POINT_OF_INTEREST, Paints.POINT_OF_INTEREST_OUTLINE);
         if (waypoints != null)
-            drawPointsOfInterest(canvas, tile, waypoints, Paints.WAYPOINT, Paints.WAYPOINT_OUTLINE);
+            drawn |= drawPointsOfInterest(canvas, tile, waypoints, Paints.WAYPOINT, Paints.WAYPOINT_OUTLINE);
+        return drawn;
     }
 
-    private void drawPointsOfInterest(Canvas canvas, Tile tile, List<PointOfInterest> pois,
-                                      Paint pointPaint, Paint outlinePaint) {
+    private boolean drawPointsOfInterest(Canvas canvas, Tile tile, List<PointOfInterest> pois,
+                                         Paint pointPaint, Paint outlinePaint) {
+        boolean drawn = false;
         // calculate utm coordinates for tile corners
         int tileSizeBits = ZOOM_0_TILE_BITS - tile.zoomLevel;
         int tileSizeUtm = 1 << tileSizeBits;
@@ -471,6 +812,7 @@ public class Renderer extends View implements Persistable {
             if (x >= -Paints.POINT_OF_INTEREST_SIZE/2 && x < tileSizeUtm+Paints.POINT_OF_INTEREST_SIZE/2 && y >= -Paints.POINT_OF_INTEREST_SIZE/2 && y < tileSizeUtm+Paints.POINT_OF_INTEREST_SIZE/2) {
                 canvas.drawPoint(x, y, outlinePaint);
                 canvas.drawPoint(x, y, pointPaint);
+                drawn = true;
             }
 
             if (tile.zoomLevel >= ZOOM_LEVEL_SHOW_LABELS) {
@@ -480,9 +822,11 @@ public class Renderer extends View implements Persistable {
                 if (tx >= -textWidth && tx < tileSizeUtm && ty >= -textHeight && ty < tileSizeUtm) {
                     canvas.drawText(poi.label, tx, ty, Paints.FONT_OUTLINE_POI);
                     canvas.drawText(poi.label, tx, ty, Paints.FONT_POI);
+                    drawn = true;
                 }
             }
         }
+        return drawn;
     }
 
     // view size related variables
@@ -501,39 +845,22 @@ public class Renderer extends View implements Persistable {
 
         scaleFactorUpdated();
         mapCenterUpdated(false);
+        requestRender();
     }
 
     final int pixelToUtm(double pixel) {
-        return (int)(pixel*(1<<(ZOOM_0_TILE_BITS-zoomLevel-TILE_WIDTH_BITS)) / scalingZoom + 0.5);
+        return Viewport.pixelToUtm(pixel, zoomLevel, scalingZoom);
     }
 
     final double utmToPixel(double utm) {
-        return utm/(1<<(ZOOM_0_TILE_BITS-zoomLevel-TILE_WIDTH_BITS)) * scalingZoom;
+        return Viewport.utmToPixel(utm, zoomLevel, scalingZoom);
     }
 
-    final double utmToScreenX(int utmx) {
-        return screenMidX + utmToPixel(utmx - centerUtmX);
-    }
-
-    final double utmToScreenY(int utmy) {
-        return screenMidY - utmToPixel(utmy - centerUtmY);
-    }
-
-    final double utmToScreenX(double utmx) {
-        return screenMidX + utmToPixel(utmx - centerUtmX);
-    }
-
-    final double utmToScreenY(double utmy) {
-        return screenMidY - utmToPixel(utmy - centerUtmY);
-    }
-
-    // level of detail configs below have been empirically tested to be visibly acceptable
     private static final PathConfiguration ROUTE_PATH = new PathConfiguration(
-            new PathLevelOfDetail(new int[] {11,10,9,8,7,7,6,5,4,3,0}), Navigator.CYCLIC_ROUTE, Paints.PATH_WIDTH);
+            PathLevelOfDetail.ROUTE, Navigator.CYCLIC_ROUTE, Paints.PATH_WIDTH);
 
-    // level of detail configs below have been empirically tested to be visibly acceptable
     private static final PathConfiguration GPS_PATH = new PathConfiguration(
-            new PathLevelOfDetail(new int[] {10,9,8,7,6,5,4,3,3,2,0}), false, Paints.HISTORY_WIDTH);
+            PathLevelOfDetail.GPS_HISTORY, false, Paints.HISTORY_WIDTH);
 
     /**
      * Minimum distance (squared), in meters, between two consecutive GPS history points.
@@ -542,14 +869,15 @@ public class Renderer extends View implements Persistable {
     private static final int MIN_HISTORY_POINT_DIST2 = 20*20;
 
     private QuadPointArray historyPoints;
-    private QuadNode historyQuadTree;
+
+    /** Replaced when the GPS history is reset, while tile loader threads may still be drawing the old one. */
+    private volatile PathSegmentIndex historySegmentIndex;
     { resetGPS(); }
 
     public void resetGPS() {
         gpsDist = 0;
         historyPoints = new QuadPointArray(1024);
-        historyQuadTree = new QuadNode(MapConstants.UTM_EXTREME_X0, MapConstants.UTM_EXTREME_Y0,
-                MapConstants.UTM_EXTREME_X1, MapConstants.UTM_EXTREME_Y1);
+        historySegmentIndex = new PathSegmentIndex(historyPoints, PathLevelOfDetail.GPS_HISTORY);
     }
 
     public void setGPSCoordinate(double utmX, double utmY) {
@@ -566,25 +894,25 @@ public class Renderer extends View implements Persistable {
             boolean addToHistory = true;
             int historyIdx = historyPoints.nrPoints;
             if (historyIdx > 0) {
-                int difX = utmIX - historyPoints.x[historyIdx-1];
-                int difY = utmIY - historyPoints.y[historyIdx-1];
+                int difX = utmIX - historyPoints.getX(historyIdx-1);
+                int difY = utmIY - historyPoints.getY(historyIdx-1);
                 addToHistory = difX * difX + difY * difY >= MIN_HISTORY_POINT_DIST2;
             }
 
             if (addToHistory) {
-                historyPoints.add(utmIX, utmIY, PathType.HISTORY);
-                historyQuadTree.insertPoint(historyIdx, historyPoints);
+                historySegmentIndex.add(utmIX, utmIY, PathType.HISTORY);
 
                 if (historyIdx > 0) {
-                    // draw new point on all already cached tiles (since they won't get re-computed
+                    // draw new point on all already cached tile layers (since they won't get re-computed
                     // when drawn); draw for all zoom levels up until the level of the point added,
                     // to ensure paths are consistent when they are re-computed (in the tile
-                    // loading code)
-                    int idxLevel = QuadNode.level(historyIdx);
+                    // layer loading code)
+                    final List<TraceLine> lines = new ArrayList<>();
+                    int idxLevel = historyPoints.level(historyIdx);
                     int minZoom = GPS_PATH.levelOfDetail.zoomLevelByQueryLevel[idxLevel];
 
                     for (int zoom = MAX_ZOOM_LEVEL; zoom >= minZoom; --zoom) {
-                        int stepSize = 1 << GPS_PATH.levelOfDetail.queryLevelByZoomLevel[zoom];
+                        int prevIdx = historyPoints.prevAtLevel(historyIdx, GPS_PATH.levelOfDetail.queryLevelByZoomLevel[zoom]);
 
                         int tileSizeBits = ZOOM_0_TILE_BITS - zoom;
                         int tileSizeUtm = 1 << tileSizeBits;
@@ -596,8 +924,8 @@ public class Renderer extends View implements Persistable {
                         float tilePixelX1 = utmToTilePixelX(utmIX, tileUtmX, tileSizeUtm);
                         float tilePixelY1 = utmToTilePixelY(utmIY, tileUtmY, tileSizeUtm);
 
-                        float tilePixelX0 = utmToTilePixelX(historyPoints.x[historyIdx-stepSize], tileUtmX, tileSizeUtm);
-                        float tilePixelY0 = utmToTilePixelY(historyPoints.y[historyIdx-stepSize], tileUtmY, tileSizeUtm);
+                        float tilePixelX0 = utmToTilePixelX(historyPoints.getX(prevIdx), tileUtmX, tileSizeUtm);
+                        float tilePixelY0 = utmToTilePixelY(historyPoints.getY(prevIdx), tileUtmY, tileSizeUtm);
 
                         // Calculate first and last tile in each dimension that should be painted
                         // by the line from the previous point to the new point. This is needed
@@ -610,18 +938,27 @@ public class Renderer extends View implements Persistable {
 
                         for (int tyDif = tyDif0; tyDif <= tyDif1; ++tyDif) {
                             for (int txDif = txDif0; txDif <= txDif1; ++txDif) {
-                                int tilePos = getTilePos(zoom, tx+txDif, ty+tyDif);
-                                if (tileCache.containsKey(tilePos)) { // only already cached tiles!
-                                    Tile tile = tileCache.get(tilePos);
-                                    float px0 = tilePixelX0 - (txDif<<TILE_WIDTH_BITS);
-                                    float py0 = tilePixelY0 - (tyDif<<TILE_WIDTH_BITS);
-                                    float px1 = tilePixelX1 - (txDif<<TILE_WIDTH_BITS);
-                                    float py1 = tilePixelY1 - (tyDif<<TILE_WIDTH_BITS);
-                                    tile.canvas.drawLine(px0, py0, px1, py1, Paints.HISTORY_PATH);
-                                }
+                                lines.add(new TraceLine(TileSource.getTilePos(zoom, tx+txDif, ty+tyDif),
+                                        tilePixelX0 - (txDif<<TILE_WIDTH_BITS), tilePixelY0 - (tyDif<<TILE_WIDTH_BITS),
+                                        tilePixelX1 - (txDif<<TILE_WIDTH_BITS), tilePixelY1 - (tyDif<<TILE_WIDTH_BITS)));
                             }
                         }
                     }
+
+                    // the layers are drawn on where the layer cache lives
+                    runOnMapThread(new Runnable() {
+                        @Override public void run() {
+                            for (TraceLine line : lines) {
+                                Tile layer = layerCache.get(line.tilePos);
+                                if (layer != null && layer.map == emptyLayer) {
+                                    // nothing to draw on, so draw the layer again instead
+                                    layerCache.remove(line.tilePos);
+                                } else if (layer != null) { // only already cached tile layers!
+                                    layer.canvas.drawLine(line.x0, line.y0, line.x1, line.y1, Paints.HISTORY_PATH);
+                                }
+                            }
+                        }
+                    });
                 }
             }
         }
@@ -637,6 +974,69 @@ public class Renderer extends View implements Persistable {
                 mapCenterUpdated(false);
             }
         }
+
+        prefetchTiles();
+    }
+
+    /** Line of the GPS trace to draw on a cached tile layer, in tile pixels. */
+    private static class TraceLine {
+        final int tilePos;
+        final float x0, y0, x1, y1;
+
+        TraceLine(int tilePos, float x0, float y0, float x1, float y1) {
+            this.tilePos = tilePos;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+        }
+    }
+
+    /**
+     * Prefetch the tiles expected to be shown in the next few seconds, since the map will pan along with the
+     * GPS position. This uses the speed and bearing of the previous fix, and the route position of the last
+     * navigation update.
+     */
+    private void prefetchTiles() {
+        final int[] tiles;
+        final int layerCount;
+        if (config.followGps.value) {
+            int routeIdx = points == null ? -1 : config.navigateEnabled.value ? navigator.getNearestRouteIdx() : getNearestRouteIdx();
+            prefetcher.update(tileInventory, gpsX, gpsY, gpsSpeed, gpsBearing, points, routeIdx, Navigator.CYCLIC_ROUTE,
+                    zoomLevel, pixelToUtm(screenMidX), pixelToUtm(screenMidY));
+            // (copied, since the prefetcher reuses its array)
+            tiles = Arrays.copyOf(prefetcher.getTiles(), prefetcher.getTileCount());
+            layerCount = isAnyLayerEnabled() ? tiles.length : 0;
+        } else {
+            tiles = new int[0];
+            layerCount = 0;
+        }
+
+        runOnMapThread(new Runnable() {
+            @Override public void run() {
+                tileCache.setPrefetchTiles(tiles, tiles.length);
+                layerCache.setPrefetchTiles(tiles, layerCount);
+            }
+        });
+    }
+
+    /**
+     * Maximum distance (squared), in meters, from the nearest route point for the GPS position to be considered
+     * on the route when not navigating.
+     */
+    private static final long ON_ROUTE_DISTANCE = 200*200;
+
+    /**
+     * @return Index of the route point nearest the GPS position, or -1 if the position is not near the route.
+     * The navigator keeps track of where on the route the position is while navigating; this finds it when not
+     * navigating, so that tiles can still be prefetched along the route.
+     */
+    private int getNearestRouteIdx() {
+        if (pointIndex == null)
+            return -1;
+        NearestNeighborQuery query = NearestNeighborQuery.get();
+        int idx = pointIndex.getNearestNeighbor((int)(gpsX + 0.5), (int)(gpsY + 0.5), 0, points.nrPoints, points, query);
+        return idx >= 0 && query.getBestDist() <= ON_ROUTE_DISTANCE ? idx : -1;
     }
 
     /** In degrees (not radians). */
@@ -649,69 +1049,185 @@ public class Renderer extends View implements Persistable {
         gpsSpeed = speed;
     }
 
+    /** Time of the previous frame of the map, on the thread drawing the map. */
     long prevOnDraw = -1;
 
+    /** Frames of the map logged together with {@link Settings#DRAW_STATS}, to compare drawing in the view with drawing on the render thread. */
+    private static final int FRAME_LOG_INTERVAL = 100;
+    private long frameTimeSum;
+    private int frameCount;
+
+    /** Tiles drawn, and how many of them were cached, for ARGB_8888 and RGB_565 tiles (see {@link Config#lowColorTiles}). */
+    private final long[] tilesDrawn = new long[2], tileCacheHits = new long[2];
+
     @Override
     synchronized public void onDraw(Canvas canvas) {
+        // with a render thread, the map is drawn there, into the surface below this view
+        if (!Settings.RENDER_THREAD)
+            drawMap(canvas, snapshotViewport());
+
+        if (config.navigateEnabled.value)
+            navigate(canvas);
+        else
+            drawGPSStats(canvas);
+    }
+
+    /**
+     * Draw the map: the tiles with their layers, the route, the GPS marker and the scale. Called on the thread
+     * drawing the map, which is the render thread if there is one.
+     */
+    private void drawMap(Canvas canvas, Viewport v) {
 //        startLog();
         long t0 = LogStats.time();
 
         // calculate utm coordinates for screen corners
-        double utmMidX = pixelToUtm(screenMidX);
-        double utmMidY = pixelToUtm(screenMidY);
-        int utm0x = (int)Math.floor(centerUtmX - utmMidX);
-        int utm0y = (int)Math.floor(centerUtmY - utmMidY);
-        int utm1x = (int)Math.ceil(centerUtmX + utmMidX);
-        int utm1y = (int)Math.ceil(centerUtmY + utmMidY);
+        double utmMidX = v.pixelToUtm(v.screenMidX);
+        double utmMidY = v.pixelToUtm(v.screenMidY);
+        int utm0x = (int)Math.floor(v.centerUtmX - utmMidX);
+        int utm0y = (int)Math.floor(v.centerUtmY - utmMidY);
+        int utm1x = (int)Math.ceil(v.centerUtmX + utmMidX);
+        int utm1y = (int)Math.ceil(v.centerUtmY + utmMidY);
 
         // convert utm coordinates to tile indices
+        int zoomLevel = v.zoomLevel;
         int tileSizeBits = ZOOM_0_TILE_BITS - zoomLevel;
+        float tileSize = (float)(TILE_WIDTH_PIXELS * v.scalingZoom);
 
         int tx0 = 1_200_000 + utm0x >> tileSizeBits;
         int ty0 = 8_500_000 - utm1y >> tileSizeBits;
         int tx1 = 1_200_000 + utm1x >> tileSizeBits;
         int ty1 = 8_500_000 - utm0y >> tileSizeBits;
 
-        float tileScreenY = (float)utmToScreenY(8_500_000 - (ty0 << tileSizeBits));
+        // drop requests for tiles no longer visible before requesting new ones
+        tileCache.setVisibleRange(zoomLevel, tx0, ty0, tx1, ty1);
+        layerCache.setVisibleRange(zoomLevel, tx0, ty0, tx1, ty1);
+        updateTilePaint(v.brightness);
+
+        float tileScreenY = (float)v.utmToScreenY(8_500_000 - (ty0 << tileSizeBits));
         for (int ty = ty0; ty <= ty1; ++ty) {
-            float tileScreenX = (float)utmToScreenX((tx0 << tileSizeBits) - 1_200_000);
+            float tileScreenX = (float)v.utmToScreenX((tx0 << tileSizeBits) - 1_200_000);
             for (int tx = tx0; tx <= tx1; ++tx) {
-                Tile tile = tileCache.get(getTilePos(zoomLevel, tx, ty));
-                Bitmap tileImg = tile == null ? emptyTile : tile.map;
-                copyTile(canvas, tileImg, tileScreenX, tileScreenY);
-                tileScreenX += TILE_WIDTH_PIXELS * scalingZoom;
+                // tiles not yet loaded are requested, and drawn from cached tiles of other zoom levels until they arrive
+                int tilePos = TileSource.getTilePos(zoomLevel, tx, ty);
+                Tile tile = tileCache.get(tilePos);
+                boolean exists = tileInventory.contains(tilePos);
+                if (exists) {
+                    int mode = v.lowColorTiles ? 1 : 0;
+                    ++tilesDrawn[mode];
+                    if (tile != null)
+                        ++tileCacheHits[mode];
+                    else
+                        tileCache.request(tilePos);
+                }
+                if (tile != null)
+                    copyTile(canvas, tile.map, tileScreenX, tileScreenY, tileSize, tilePaint);
+                else if (exists)
+                    drawTileFallback(canvas, zoomLevel, tx, ty, tileScreenX, tileScreenY, tileSize);
+                else
+                    copyTile(canvas, emptyTile, tileScreenX, tileScreenY, tileSize, Paints.FILTER_BITMAP);
+                tileScreenX += tileSize;
             }
-            tileScreenY += TILE_WIDTH_PIXELS * scalingZoom;
+            tileScreenY += tileSize;
         }
 
-//        log("Draw tiles");
+        // the route goes below the other layers, as it does when drawn on the tile layers
+        if (v.drawRouteOverlay && v.route != null) {
+            RouteOverlay overlay = routeOverlay;
+            if (overlay == null || !overlay.isFor(v.route)) {
+                // not prepared (see prepareRouteOverlay), so the paths are built as they are drawn
+                routeOverlay = overlay = new RouteOverlay(v.route, ROUTE_PATH, MAX_ZOOM_LEVEL);
+            }
+            overlay.draw(canvas, zoomLevel, v.centerUtmX, v.centerUtmY, v.utmToPixel(1), v.screenMidX, v.screenMidY);
+        }
 
-        drawGPSMarker(canvas);
-        drawScaleMarker(canvas);
+        // layers are drawn once they are loaded, also on top of tiles drawn from other zoom levels
+        if (v.drawLayers) {
+            tileScreenY = (float)v.utmToScreenY(8_500_000 - (ty0 << tileSizeBits));
+            for (int ty = ty0; ty <= ty1; ++ty) {
+                float tileScreenX = (float)v.utmToScreenX((tx0 << tileSizeBits) - 1_200_000);
+                for (int tx = tx0; tx <= tx1; ++tx) {
+                    int tilePos = TileSource.getTilePos(zoomLevel, tx, ty);
+                    if (tileInventory.contains(tilePos)) {
+                        Tile layer = layerCache.get(tilePos);
+                        if (layer == null)
+                            layerCache.request(tilePos);
+                        else if (layer.map != emptyLayer)
+                            copyTile(canvas, layer.map, tileScreenX, tileScreenY, tileSize, Paints.FILTER_BITMAP);
+                    }
+                    tileScreenX += tileSize;
+                }
+                tileScreenY += tileSize;
+            }
+        }
 
-        if (config.navigateEnabled.value)
-            navigate(canvas);
-        else
-            drawGPSStats(canvas);
+//        log("Draw tiles");
+
+        drawGPSMarker(canvas, v);
+        drawScaleMarker(canvas, v);
 
 //        log(String.format("Center = %.0f, %.0f, Scale = %d / %.0f", centerUtmX, centerUtmY, zoomLevel, scaleFactor));
 
         long time = LogStats.time();
         if (prevOnDraw != -1) {
-            long dif0 = time - t0;
             long dif = time - prevOnDraw;
             String txt = String.format("TOT TIME %d ms / %d FPS", dif, (1000+dif/2) / dif);
             canvas.drawText(txt, 4, 20, Paints.FONT_OUTLINE_POI);
             canvas.drawText(txt, 4, 20, Paints.FONT_POI);
-            txt = "Frame: " +dif0;
-            canvas.drawText(txt, 4, 40, Paints.FONT_OUTLINE_POI);
-            canvas.drawText(txt, 4, 40, Paints.FONT_POI);
+            if (Settings.DRAW_STATS)
+                drawFrameStats(canvas, time - t0);
         }
         prevOnDraw = time;
 
 //        drawStats(canvas);
     }
 
+    /** Draw (and log) the statistics of {@link Settings#DRAW_STATS}, below the FPS. */
+    private void drawFrameStats(Canvas canvas, long frameTime) {
+        String thread = Settings.RENDER_THREAD ? "render thread" : "view";
+        String txt = "Frame: " + frameTime + " ms on " + thread + (canvas.isHardwareAccelerated() ? "" : " (software)");
+        canvas.drawText(txt, 4, 40, Paints.FONT_OUTLINE_POI);
+        canvas.drawText(txt, 4, 40, Paints.FONT_POI);
+        txt = bitmapPool.toString();
+        canvas.drawText(txt, 4, 60, Paints.FONT_OUTLINE_POI);
+        canvas.drawText(txt, 4, 60, Paints.FONT_POI);
+        txt = getTileCacheStats();
+        canvas.drawText(txt, 4, 80, Paints.FONT_OUTLINE_POI);
+        canvas.drawText(txt, 4, 80, Paints.FONT_POI);
+
+        frameTimeSum += frameTime;
+        if (++frameCount == FRAME_LOG_INTERVAL) {
+            Log.d("LogStats", String.format("Map frame time on %s: %.1f ms (%s canvas)", thread,
+                    frameTimeSum / (double)frameCount, canvas.isHardwareAccelerated() ? "hardware" : "software"));
+            frameTimeSum = 0;
+            frameCount = 0;
+        }
+    }
+
+    private String getTileCacheStats() {
+        return String.format("Cache: %d tiles, %.1f of %d MB, hits %s / %s, layers %d, %.1f of %d MB",
+                tileCache.size(), tileCache.getByteCount() / (1024*1024.0), tileCache.getMaxBytes() >> 20,
+                formatHitRate("ARGB_8888", 0), formatHitRate("RGB_565", 1),
+                layerCache.size(), layerCache.getByteCount() / (1024*1024.0), layerCache.getMaxBytes() >> 20);
+    }
+
+    /**
+     * Dim the tiles as they are drawn, rather than when they are loaded, so that changing the brightness
+     * only redraws the view. Multiplying the color by the brightness is what drawing black with an alpha
+     * of 1 - brightness on top of the tile does.
+     */
+    private void updateTilePaint(int brightness) {
+        if (brightness == tilePaintBrightness)
+            return;
+
+        int level = 255 * brightness / 100;
+        tilePaint.setColorFilter(brightness == 100 ? null : new LightingColorFilter(Color.rgb(level, level, level), 0));
+        tilePaintBrightness = brightness;
+    }
+
+    private String formatHitRate(String mode, int n) {
+        return tilesDrawn[n] == 0 ? mode + " -" : String.format("%s %.1f%%", mode, 100.0 * tileCacheHits[n] / tilesDrawn[n]);
+    }
+
     List<Statistic> stats = new ArrayList<>();
     long lastTime;
     static class Statistic {
@@ -748,30 +1264,6 @@ public class Renderer extends View implements Persistable {
         return Math.log(d)/Math.log(2);
     }
 
-    private static final int MAX_QUAD_TREE_MATCHES = 2048;
-    public static class QuadMatches {
-        private int[] matchIdx = new int[MAX_QUAD_TREE_MATCHES];
-        public int matchCount;
-
-        public void clear() {
-            matchCount = 0;
-        }
-        public void add(int idx) {
-            if (matchCount == matchIdx.length) {
-                // array full, double it in size
-                int[] newArray = new int[matchCount << 1];
-                System.arraycopy(matchIdx, 0, newArray, 0, matchCount);
-                matchIdx = newArray;
-            }
-
-            matchIdx[matchCount++] = idx;
-        }
-        public int get(int idx) {
-            return matchIdx[idx];
-        }
-        public void sort() { Arrays.sort(matchIdx, 0, matchCount); }
-    }
-
     /** in pixels */
     private static final int SCALE_MARKER_WIDTH = Paints.PAINT_SETTINGS.scaleMarkerWidth();
 
@@ -793,8 +1285,8 @@ public class Renderer extends View implements Persistable {
         return labels.toArray(new String[labels.size()]);
     }
 
-    private void drawScaleMarker(Canvas canvas) {
-        int utmDist = pixelToUtm(SCALE_MARKER_WIDTH);
+    private void drawScaleMarker(Canvas canvas, Viewport v) {
+        int utmDist = v.pixelToUtm(SCALE_MARKER_WIDTH);
         int mult = 1, exp = 0;
         for (int u = utmDist/10; u != 0; u /= 10, mult *= 10, ++exp) ;
         float d = (float)utmDist / mult;
@@ -807,30 +1299,30 @@ public class Renderer extends View implements Persistable {
         else { d = 1; k = 1; mult *= 10; ++exp; }
         int rounded = (int)(d * mult);
 
-        double pixelLength = utmToPixel(rounded);
+        double pixelLength = v.utmToPixel(rounded);
         int scaledWidth = (int)(pixelLength * scale.getWidth() / SCALE_MARKER_WIDTH + 0.5);
 
-        int xAdj = - (getWidth() - scaledWidth - 36*2) / 2;
+        int xAdj = - (v.width - scaledWidth - 36*2) / 2;
 
-        Rect dstRect = new Rect(xAdj + getWidth()-36-scaledWidth, getHeight()-29, xAdj + getWidth()-36, getHeight()-29+scale.getHeight());
+        Rect dstRect = new Rect(xAdj + v.width-36-scaledWidth, v.height-29, xAdj + v.width-36, v.height-29+scale.getHeight());
         canvas.drawBitmap(scale, null, dstRect, null);
 
         int labelIdx = k + exp*3;
         float textWidth = Paints.FONT_OUTLINE_SCALE.measureText(SCALE_LABELS[labelIdx]);
-        canvas.drawText(SCALE_LABELS[labelIdx], xAdj + getWidth()-textWidth-8, getHeight()-36, Paints.FONT_OUTLINE_SCALE);
-        canvas.drawText(SCALE_LABELS[labelIdx], xAdj + getWidth()-textWidth-8, getHeight()-36, Paints.FONT_SCALE);
+        canvas.drawText(SCALE_LABELS[labelIdx], xAdj + v.width-textWidth-8, v.height-36, Paints.FONT_OUTLINE_SCALE);
+        canvas.drawText(SCALE_LABELS[labelIdx], xAdj + v.width-textWidth-8, v.height-36, Paints.FONT_SCALE);
 
-        canvas.drawText(SCALE_LABELS[0], xAdj + getWidth()-36-scaledWidth-3, getHeight()-36, Paints.FONT_OUTLINE_SCALE);
-        canvas.drawText(SCALE_LABELS[0], xAdj + getWidth()-36-scaledWidth-3, getHeight()-36, Paints.FONT_SCALE);
+        canvas.drawText(SCALE_LABELS[0], xAdj + v.width-36-scaledWidth-3, v.height-36, Paints.FONT_OUTLINE_SCALE);
+        canvas.drawText(SCALE_LABELS[0], xAdj + v.width-36-scaledWidth-3, v.height-36, Paints.FONT_SCALE);
     }
 
     private Matrix matrix = new Matrix(); // to not have to constantly reallocate
 
-    private void drawGPSMarker(Canvas canvas) {
-        double x = utmToScreenX(gpsX);
-        double y = utmToScreenY(gpsY);
+    private void drawGPSMarker(Canvas canvas, Viewport v) {
+        double x = v.utmToScreenX(v.gpsX);
+        double y = v.utmToScreenY(v.gpsY);
         matrix.reset();
-        matrix.postRotate(gpsBearing, gpsIcon.getWidth()/2, gpsIcon.getHeight()/2);
+        matrix.postRotate(v.gpsBearing, gpsIcon.getWidth()/2, gpsIcon.getHeight()/2);
         matrix.postTranslate((float)(x-gpsIcon.getWidth()/2), (float)(y-gpsIcon.getHeight()/2));
         canvas.drawBitmap(gpsIcon, matrix, Paints.GPS_ICON);
     }
@@ -938,15 +1430,66 @@ public class Renderer extends View implements Persistable {
         return String.format(meters < 9950 ? "%.1f" : "%.0f", meters * 0.001);
     }
 
-    private Rect srcRect = new Rect(1, 1, -1, -1); // left/top will always be 1 (for the 1px border), others filled in later
+    private Rect srcRect = new Rect(-1, -1, -1, -1);
     private Rect dstRect = new Rect(-1, -1, -1, -1);
 
-    private void copyTile(Canvas canvas, Bitmap src, float posX, float posY) {
-        float size = (float)(TILE_WIDTH_PIXELS * scalingZoom);
+    /** Cached children of a tile drawn by {@link #drawTileFallback}, in row order. */
+    private final Tile[] fallbackChildren = new Tile[4];
+
+    private void copyTile(Canvas canvas, Bitmap src, float posX, float posY, float size, Paint paint) {
+        copyTile(canvas, src, 0, 0, 0, posX, posY, size, paint);
+    }
+
+    /**
+     * Draw a tile that is not loaded yet from the cached tiles of the zoom levels next to it: from its four
+     * children when they are all cached (as when zooming out), or else from the matching part of its nearest
+     * cached ancestor, scaled up (as when zooming in). Any cached children are drawn on top of the ancestor.
+     * Falls back to the empty tile when there is neither.
+     */
+    private void drawTileFallback(Canvas canvas, int zoom, int tx, int ty, float posX, float posY, float size) {
+        int childCount = 0;
+        for (int n = 0; n < 4; ++n) {
+            Tile child = zoom < MAX_ZOOM_LEVEL ? tileCache.get(TileSource.getTilePos(zoom + 1, tx*2 + (n & 1), ty*2 + (n >> 1))) : null;
+            fallbackChildren[n] = child;
+            if (child != null)
+                ++childCount;
+        }
+
+        if (childCount < 4) {
+            // an ancestor is used down to a single pixel of it
+            Tile ancestor = null;
+            int depth = 1;
+            for (; depth <= Math.min(zoom, TILE_WIDTH_BITS) && ancestor == null; ++depth)
+                ancestor = tileCache.get(TileSource.getTilePos(zoom - depth, tx >> depth, ty >> depth));
+            --depth;
+
+            if (ancestor != null) {
+                int mask = (1 << depth) - 1;
+                copyTile(canvas, ancestor.map, depth, tx & mask, ty & mask, posX, posY, size, tilePaint);
+            } else {
+                copyTile(canvas, emptyTile, 0, 0, 0, posX, posY, size, Paints.FILTER_BITMAP);
+            }
+        }
 
+        for (int n = 0; n < 4; ++n) {
+            if (fallbackChildren[n] != null)
+                copyTile(canvas, fallbackChildren[n].map, 0, 0, 0, posX + (n & 1) * size/2, posY + (n >> 1) * size/2, size/2, tilePaint);
+            fallbackChildren[n] = null;
+        }
+    }
+
+    /**
+     * Draw a part of a tile image: the tile is divided into 2^depth x 2^depth parts, and part (partX, partY)
+     * is drawn with the given size on screen.
+     */
+    private void copyTile(Canvas canvas, Bitmap src, int depth, int partX, int partY, float posX, float posY, float size,
+                          Paint paint) {
         // cut away the 1 px border, it's only needed for the borders to look smooth when filtering
-        srcRect.right = src.getWidth() - 1;
-        srcRect.bottom = src.getHeight() - 1;
+        int partSize = (src.getWidth() - 2) >> depth;
+        srcRect.left = 1 + partX * partSize;
+        srcRect.top = 1 + partY * partSize;
+        srcRect.right = srcRect.left + partSize;
+        srcRect.bottom = srcRect.top + partSize;
 
         // note: need to use int rectangle here, since float will result in glitches between tiles
         dstRect.left = (int)(posX + 0.5);
@@ -954,7 +1497,7 @@ public class Renderer extends View implements Persistable {
         dstRect.right = (int)(posX + size + 0.5);
         dstRect.bottom = (int)(posY + size + 0.5);
 
-        canvas.drawBitmap(src, srcRect, dstRect, Paints.FILTER_BITMAP);
+        canvas.drawBitmap(src, srcRect, dstRect, paint);
     }
 ///////////////////////////////////////////////////////////////////////////////////////////////////
 
@@ -994,7 +1537,7 @@ public class Renderer extends View implements Persistable {
 
                     mapCenterUpdated(true);
 
-                    invalidate();
+                    requestRender();
                 }
                 break;
             case MotionEvent.ACTION_POINTER_DOWN:
@@ -1042,7 +1585,7 @@ public class Renderer extends View implements Persistable {
             setGPSSpeed(dist * 1000 / elapsed);
             lastUserMoveToTouchMs = curTime;
 
-            invalidate();
+            requestRender();
         }
         return true;
     }
@@ -1095,7 +1638,7 @@ public class Renderer extends View implements Persistable {
             prevFocusX = focusX;
             prevFocusY = focusY;
 
-            invalidate();
+            requestRender();
 
             return true;
         }
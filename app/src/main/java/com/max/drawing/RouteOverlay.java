@@ -0,0 +1,218 @@
+package com.max.drawing;
+
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+
+import com.max.route.PathConfiguration;
+import com.max.route.PathType;
+import com.max.route.QuadPointArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Draws a path (the route) in screen space on top of the tiles, instead of drawing it on each tile. The
+ * path is built once per zoom level, from the points kept at the level of detail of that zoom level, and
+ * cached. Each frame, the parts of it on screen are transformed to screen coordinates and stroked there,
+ * so that the lines keep their width and stay sharp at any digital zoom (where tiles are scaled up).
+ * <br>
+ * Path coordinates are in meters relative to the first point, since floats don't have the precision for
+ * UTM coordinates. The path of each zoom level is split in chunks of {@link #CHUNK_SEGMENTS} segments, so
+ * that only the chunks on screen are transformed and stroked.
+ * <br>
+ * Building the path of a zoom level walks the whole route, which takes too long for a frame on large routes,
+ * so the paths of all zoom levels are built in the background when the route is loaded (see
+ * {@link #prebuild}). A zoom level drawn before its path is built falls back to building it while drawing.
+ * <br>
+ * Must only be used on the thread drawing the map (see {@link MapRenderThread}).
+ */
+class RouteOverlay {
+    /** Number of segments per chunk. */
+    private static final int CHUNK_SEGMENTS = 256;
+
+    /** A part of the path, with a path for each path type used by its segments. */
+    private static class Chunk {
+        final Path[] paths = new Path[PathType.values().length];
+        final RectF bounds = new RectF(Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
+        int segmentCount;
+
+        /** Index of the point each path ends at, so that following segments continue the same sub path. */
+        final int[] lastIdx = new int[PathType.values().length];
+
+        Chunk() {
+            Arrays.fill(lastIdx, -1);
+        }
+    }
+
+    private final QuadPointArray points;
+    private final PathConfiguration pathConfig;
+    private final int originX, originY;
+
+    /** Chunks by zoom level; built in the background (see {@link #prebuild}), or when first drawn at a zoom level. */
+    private final AtomicReferenceArray<Chunk[]> chunksByZoom;
+
+    private final Matrix matrix = new Matrix();
+    private final Path screenPath = new Path();
+    private final RectF view = new RectF();
+    private final RectF layerBounds = new RectF();
+
+    RouteOverlay(QuadPointArray points, PathConfiguration pathConfig, int maxZoomLevel) {
+        this.points = points;
+        this.pathConfig = pathConfig;
+        this.originX = points.nrPoints > 0 ? points.getX(0) : 0;
+        this.originY = points.nrPoints > 0 ? points.getY(0) : 0;
+        this.chunksByZoom = new AtomicReferenceArray<>(maxZoomLevel + 1);
+    }
+
+    /**
+     * Build the path of each zoom level on a background thread, starting with the given zoom level and
+     * continuing with the zoom levels next to it, so that the path is ready by the time it is drawn.
+     */
+    void prebuild(final int firstZoomLevel) {
+        Thread thread = new Thread(new Runnable() {
+            @Override public void run() {
+                int levelCount = chunksByZoom.length();
+                for (int n = 0; n < 2*levelCount; ++n) {
+                    // first zoom level, then one level out, one level in, two levels out, ...
+                    int zoomLevel = firstZoomLevel + (n % 2 == 0 ? n/2 : -(n + 1)/2);
+                    if (zoomLevel >= 0 && zoomLevel < levelCount && chunksByZoom.get(zoomLevel) == null)
+                        chunksByZoom.compareAndSet(zoomLevel, null, build(zoomLevel));
+                }
+            }
+        }, "RouteOverlay");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /** @return True if this overlay draws the given points (rather than a route loaded earlier). */
+    boolean isFor(QuadPointArray points) {
+        return this.points == points;
+    }
+
+    /**
+     * Draw the path at the given zoom level.
+     *
+     * @param pixelsPerMeter Scale of the screen, including digital zoom.
+     */
+    void draw(Canvas canvas, int zoomLevel, double centerUtmX, double centerUtmY, double pixelsPerMeter,
+              double screenMidX, double screenMidY) {
+        Chunk[] chunks = chunksByZoom.get(zoomLevel);
+        if (chunks == null) {
+            // not built in the background yet
+            chunksByZoom.compareAndSet(zoomLevel, null, build(zoomLevel));
+            chunks = chunksByZoom.get(zoomLevel);
+        }
+
+        // screen x = mid x + (x + origin x - center x) * scale, and y likewise but flipped (UTM y points north)
+        float scale = (float) pixelsPerMeter;
+        matrix.setScale(scale, -scale);
+        matrix.postTranslate((float) (screenMidX + (originX - centerUtmX) * pixelsPerMeter),
+                (float) (screenMidY - (originY - centerUtmY) * pixelsPerMeter));
+
+        // the visible part of the path, including the width of the lines outside the screen
+        float margin = pathConfig.width / scale;
+        view.set((float) (centerUtmX - originX - screenMidX / pixelsPerMeter) - margin,
+                (float) (centerUtmY - originY - screenMidY / pixelsPerMeter) - margin,
+                (float) (centerUtmX - originX + screenMidX / pixelsPerMeter) + margin,
+                (float) (centerUtmY - originY + screenMidY / pixelsPerMeter) + margin);
+
+        // bounds of the visible chunks (not RectF.union, which ignores empty rectangles)
+        float left = Float.MAX_VALUE, top = Float.MAX_VALUE, right = -Float.MAX_VALUE, bottom = -Float.MAX_VALUE;
+        for (Chunk chunk : chunks) {
+            if (RectF.intersects(chunk.bounds, view)) {
+                left = Math.min(left, chunk.bounds.left);
+                top = Math.min(top, chunk.bounds.top);
+                right = Math.max(right, chunk.bounds.right);
+                bottom = Math.max(bottom, chunk.bounds.bottom);
+            }
+        }
+        if (left > right)
+            return;
+
+        // ... on screen, including the width of the lines
+        layerBounds.set(left, top, right, bottom);
+        matrix.mapRect(layerBounds);
+        layerBounds.inset(-pathConfig.width, -pathConfig.width);
+        if (!layerBounds.intersect(0, 0, canvas.getWidth(), canvas.getHeight()))
+            return;
+
+        // the path paints only draw where nothing is drawn yet (DST_ATOP), as on tile layers, so draw
+        // the path on a transparent layer of its own, only as large as the visible part of the path
+        int saveCount = canvas.saveLayer(layerBounds, null, Canvas.HAS_ALPHA_LAYER_SAVE_FLAG | Canvas.CLIP_TO_LAYER_SAVE_FLAG);
+
+        // first draw all outlines, then the actual paths on top of them (for smooth connection points
+        // between adjacent paths)
+        drawChunks(canvas, chunks, Paints.PATH_TYPE_OUTLINE_PAINTS);
+        drawChunks(canvas, chunks, Paints.PATH_TYPE_PAINTS);
+
+        canvas.restoreToCount(saveCount);
+    }
+
+    private void drawChunks(Canvas canvas, Chunk[] chunks, Paint[] paints) {
+        for (Chunk chunk : chunks) {
+            if (!RectF.intersects(chunk.bounds, view))
+                continue;
+            for (int n = 0; n < chunk.paths.length; ++n) {
+                if (chunk.paths[n] != null && paints[n] != null) {
+                    chunk.paths[n].transform(matrix, screenPath);
+                    canvas.drawPath(screenPath, paints[n]);
+                }
+            }
+        }
+    }
+
+    /** Build the path from the points kept at the level of detail of the zoom level. */
+    private Chunk[] build(int zoomLevel) {
+        int level = pathConfig.levelOfDetail.queryLevelByZoomLevel[zoomLevel];
+        List<Chunk> chunks = new ArrayList<>();
+
+        for (int idx = 0; idx < points.nrPoints - 1; ) {
+            int next = points.nextAtLevel(idx, level);
+            addSegment(chunks, idx, next);
+            idx = next;
+        }
+
+        // closing segment of cyclic paths, from the last point back to the first
+        if (pathConfig.cyclic && points.nrPoints > 1)
+            addSegment(chunks, points.nrPoints - 1, 0);
+
+        return chunks.toArray(new Chunk[chunks.size()]);
+    }
+
+    /** Add a segment, drawn with the path type of its first point. */
+    private void addSegment(List<Chunk> chunks, int idx0, int idx1) {
+        Chunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.segmentCount == CHUNK_SEGMENTS) {
+            chunk = new Chunk();
+            chunks.add(chunk);
+        }
+
+        float x0 = points.getX(idx0) - originX, y0 = points.getY(idx0) - originY;
+        float x1 = points.getX(idx1) - originX, y1 = points.getY(idx1) - originY;
+
+        int pType = points.getPathType(idx0).ordinal();
+        Path path = chunk.paths[pType];
+        if (path == null)
+            path = chunk.paths[pType] = new Path();
+
+        // start a new sub path unless the segment follows the previous one of the same type
+        if (chunk.lastIdx[pType] != idx0)
+            path.moveTo(x0, y0);
+        path.lineTo(x1, y1);
+        chunk.lastIdx[pType] = idx1;
+
+        // (not RectF.union, which ignores empty rectangles such as those of horizontal segments)
+        RectF bounds = chunk.bounds;
+        bounds.left = Math.min(bounds.left, Math.min(x0, x1));
+        bounds.top = Math.min(bounds.top, Math.min(y0, y1));
+        bounds.right = Math.max(bounds.right, Math.max(x0, x1));
+        bounds.bottom = Math.max(bounds.bottom, Math.max(y0, y1));
+        ++chunk.segmentCount;
+    }
+}
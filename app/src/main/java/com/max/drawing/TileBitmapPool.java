@@ -0,0 +1,98 @@
+package com.max.drawing;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import com.max.logic.Tile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of tile bitmaps, and the canvases drawing on them, no longer used by the tile cache. Tiles are
+ * decoded into pooled bitmaps (see {@link android.graphics.BitmapFactory.Options#inBitmap}), so that
+ * panning around the map reuses the memory of evicted tiles instead of allocating a new bitmap (and
+ * canvas) for every tile loaded.
+ * <br>
+ * Bitmaps are acquired on the tile loader threads and released on the thread drawing the map, so all
+ * methods are synchronized.
+ */
+class TileBitmapPool {
+    /** A pooled bitmap and its canvas. */
+    static class Entry {
+        final Bitmap bitmap;
+        final Canvas canvas;
+
+        Entry(Bitmap bitmap, Canvas canvas) {
+            this.bitmap = bitmap;
+            this.canvas = canvas;
+        }
+    }
+
+    private final int width, height;
+    private final int maxSize;
+    private final List<Entry> entries = new ArrayList<>();
+
+    // counters, for tuning the pool size
+    private int reused, allocated, released, discarded;
+
+    /** Create a pool of at most maxSize bitmaps, all of the given size. */
+    TileBitmapPool(int width, int height, int maxSize) {
+        this.width = width;
+        this.height = height;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return A pooled bitmap with the given config to decode a tile into, or null if there is none. Pooled
+     * bitmaps with another config (from before the tile config was changed) are discarded, since decoding
+     * into them would not shrink their allocation.
+     */
+    synchronized Entry acquire(Bitmap.Config config) {
+        while (!entries.isEmpty()) {
+            Entry entry = entries.remove(entries.size() - 1);
+            if (entry.bitmap.getConfig() == config)
+                return entry;
+            ++discarded;
+        }
+        return null;
+    }
+
+    /** Return a bitmap acquired earlier that could not be used. */
+    synchronized void putBack(Entry entry) {
+        entries.add(entry);
+    }
+
+    /** Count a tile loaded, either into a pooled bitmap, or into a newly allocated bitmap. */
+    synchronized void countLoad(boolean pooled) {
+        if (pooled)
+            ++reused;
+        else
+            ++allocated;
+    }
+
+    /** Return the bitmap of a tile no longer used to the pool. The tile must not be drawn on or drawn afterwards. */
+    synchronized void release(Tile tile) {
+        Bitmap bitmap = tile.map;
+        if (entries.size() < maxSize && bitmap.isMutable() && !bitmap.isRecycled() &&
+                bitmap.getWidth() == width && bitmap.getHeight() == height) {
+            entries.add(new Entry(bitmap, tile.canvas));
+            ++released;
+        } else {
+            ++discarded;
+        }
+    }
+
+    synchronized int getReusedCount() {
+        return reused;
+    }
+
+    synchronized int getAllocatedCount() {
+        return allocated;
+    }
+
+    @Override public synchronized String toString() {
+        return "Bitmaps: " + reused + " reused, " + allocated + " allocated, " + released + " released, " +
+                discarded + " discarded, " + entries.size() + " pooled";
+    }
+}
@@ -0,0 +1,370 @@
+package com.max.drawing;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.max.logic.Tile;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * LRU cache of loaded tiles, keyed by tile position (see {@link TileSource#getTilePos}), holding as many tiles
+ * as fit in a budget of bytes (so that cheaper bitmap formats fit more tiles). Tiles not in the
+ * cache are loaded on a pool of background threads, so that decoding tiles or drawing their layers never
+ * stalls the thread drawing the map. Loaded tiles are handed back to the owner thread (see below) and
+ * inserted into the cache there, after which the {@link TileLoader} is notified so it can redraw.
+ * <br>
+ * Requests for tiles that are no longer visible are dropped: queued requests are cancelled as soon as the
+ * visible range changes, and requests already taken by a loader thread are skipped if their tile has
+ * scrolled off screen by then.
+ * <br>
+ * Tiles expected to become visible soon can be prefetched (see {@link TilePrefetcher}). Prefetching is
+ * throttled so that it never delays or evicts visible tiles: it only runs while no visible tiles are
+ * waiting to be loaded, a few tiles at a time, and only as many tiles are prefetched as fit in the cache
+ * next to the visible ones.
+ * <br>
+ * All methods must be called on the owner thread, which is the thread of the looper given to the
+ * constructor or to {@link #setLooper}: the UI thread, or the render thread when the map is drawn on one (see
+ * {@link MapRenderThread}).
+ */
+class TileCache {
+    interface TileLoader {
+        /**
+         * Load a tile (or draw the layers of one). Called on a loader thread.
+         *
+         * @return Null if there is no such tile.
+         */
+        Tile loadTile(int tilePos);
+
+        /** @return True if a tile loaded earlier is out of date, and must be loaded again before being used. */
+        boolean isStale(Tile tile);
+
+        /** Called when a requested tile has been inserted into the cache. */
+        void onTileLoaded(Tile tile);
+
+        /** Called when a loaded tile is evicted or dropped, and will not be used any more. */
+        void recycle(Tile tile);
+    }
+
+    /** Number of loader threads. Tile loading is mostly decoding, so a couple of threads keeps up with panning. */
+    private static final int LOADER_THREADS = 2;
+
+    /** Maximum number of prefetch requests queued or being loaded at a time. */
+    private static final int MAX_PREFETCH_REQUESTS = LOADER_THREADS;
+
+    private static ExecutorService executor;
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(LOADER_THREADS, new ThreadFactory() {
+                @Override public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override public void run() {
+                            // stay out of the way of the UI thread
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "TileLoader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private final TileLoader loader;
+
+    /** Delivers loaded tiles to the owner thread. Read by the loader threads. */
+    private volatile Handler handler;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Integer, Tile> tiles;
+
+    /** Total bitmap size of the cached tiles. */
+    private long bytes;
+
+    /** Requests not yet delivered, by tile position. */
+    private final Map<Integer, Request> pending = new HashMap<>();
+
+    /** Incremented when the cache is cleared, so that tiles loaded before that are dropped on delivery. */
+    private int generation;
+
+    /** Currently visible tiles: zoom level, tx0, ty0, tx1, ty1 (inclusive). Read by the loader threads. */
+    private volatile int[] visibleRange = {-1, 0, 0, -1, -1};
+
+    /** Tiles to prefetch, in order of priority. */
+    private int[] prefetchTiles = new int[0];
+    private int prefetchCount;
+
+    TileCache(long maxBytes, Looper looper, TileLoader loader) {
+        this.maxBytes = maxBytes;
+        this.handler = new Handler(looper);
+        this.loader = loader;
+        this.tiles = new LinkedHashMap<>(64, 0.75f, true);
+    }
+
+    private static int getByteCount(Tile tile) {
+        return tile.map.getAllocationByteCount();
+    }
+
+    private void put(int tilePos, Tile tile) {
+        Tile old = tiles.put(tilePos, tile);
+        if (old != null) {
+            bytes -= getByteCount(old);
+            loader.recycle(old);
+        }
+        bytes += getByteCount(tile);
+
+        // evict least recently used tiles until within budget
+        for (Iterator<Tile> it = tiles.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+            Tile eldest = it.next();
+            if (eldest == tile)
+                break;
+            it.remove();
+            bytes -= getByteCount(eldest);
+            loader.recycle(eldest);
+        }
+    }
+
+    int size() {
+        return tiles.size();
+    }
+
+    long getByteCount() {
+        return bytes;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** @return Approximate number of tiles fitting in the budget, based on the size of the cached tiles. */
+    private int getTileCapacity() {
+        return tiles.isEmpty() ? 0 : (int) (maxBytes * tiles.size() / bytes);
+    }
+
+    /** @return The cached tile, or null if it is not (yet) loaded. */
+    Tile get(int tilePos) {
+        return tiles.get(tilePos);
+    }
+
+    boolean contains(int tilePos) {
+        return tiles.containsKey(tilePos);
+    }
+
+    /** Remove a tile, so that it is loaded again the next time it is requested. */
+    void remove(int tilePos) {
+        Tile tile = tiles.remove(tilePos);
+        if (tile != null) {
+            bytes -= getByteCount(tile);
+            loader.recycle(tile);
+        }
+    }
+
+    /** Request a tile to be loaded in the background, unless it is already cached or requested. */
+    void request(int tilePos) {
+        if (tiles.containsKey(tilePos) || pending.containsKey(tilePos))
+            return;
+
+        submit(tilePos, false);
+    }
+
+    private void submit(int tilePos, boolean prefetch) {
+        Request request = new Request(tilePos, generation, prefetch);
+        pending.put(tilePos, request);
+        request.future = getExecutor().submit(request);
+    }
+
+    /** Set the range of visible tiles (inclusive), and cancel any requests for tiles outside it. */
+    void setVisibleRange(int zoomLevel, int tx0, int ty0, int tx1, int ty1) {
+        int[] range = visibleRange;
+        if (range[0] == zoomLevel && range[1] == tx0 && range[2] == ty0 && range[3] == tx1 && range[4] == ty1)
+            return;
+
+        visibleRange = range = new int[] {zoomLevel, tx0, ty0, tx1, ty1};
+        for (Iterator<Request> it = pending.values().iterator(); it.hasNext(); ) {
+            Request request = it.next();
+            if (!request.prefetch && !isVisible(request.tilePos, range)) {
+                request.cancel();
+                it.remove();
+            }
+        }
+    }
+
+    private static int getTileCount(int[] range) {
+        return (range[3] - range[1] + 1) * (range[4] - range[2] + 1);
+    }
+
+    private static boolean isVisible(int tilePos, int[] range) {
+        int tx = TileSource.getTX(tilePos), ty = TileSource.getTY(tilePos);
+        return TileSource.getZoomLevel(tilePos) == range[0] && tx >= range[1] && tx <= range[3] && ty >= range[2] && ty <= range[4];
+    }
+
+    /**
+     * Set the tiles to prefetch, in order of priority, replacing any earlier ones. Only as many of the first
+     * tiles are used as fit in the cache next to the visible tiles.
+     */
+    void setPrefetchTiles(int[] tilePositions, int count) {
+        if (prefetchTiles.length < count)
+            prefetchTiles = new int[count];
+        System.arraycopy(tilePositions, 0, prefetchTiles, 0, count);
+        prefetchCount = Math.min(count, Math.max(0, getTileCapacity() - getTileCount(visibleRange)));
+
+        // cancel prefetching of tiles no longer predicted; mark the cached ones as recently used, to keep
+        // them from being evicted before they are needed
+        for (Iterator<Request> it = pending.values().iterator(); it.hasNext(); ) {
+            Request request = it.next();
+            if (request.prefetch && !isPrefetchTile(request.tilePos)) {
+                request.cancel();
+                it.remove();
+            }
+        }
+        for (int k = 0; k < prefetchCount; ++k)
+            tiles.get(prefetchTiles[k]);
+
+        schedulePrefetch();
+    }
+
+    private boolean isPrefetchTile(int tilePos) {
+        for (int k = 0; k < prefetchCount; ++k)
+            if (prefetchTiles[k] == tilePos)
+                return true;
+        return false;
+    }
+
+    /** Request the next tiles to prefetch, unless visible tiles are waiting to be loaded. */
+    private void schedulePrefetch() {
+        int prefetchRequests = 0;
+        for (Request request : pending.values()) {
+            if (!request.prefetch)
+                return;
+            ++prefetchRequests;
+        }
+
+        for (int k = 0; k < prefetchCount && prefetchRequests < MAX_PREFETCH_REQUESTS; ++k) {
+            int tilePos = prefetchTiles[k];
+            if (!tiles.containsKey(tilePos) && !pending.containsKey(tilePos)) {
+                submit(tilePos, true);
+                ++prefetchRequests;
+            }
+        }
+    }
+
+    /** @return True if inserting the tile would evict a visible tile. */
+    private boolean wouldEvictVisible(Tile tile) {
+        return bytes + getByteCount(tile) > maxBytes && !tiles.isEmpty() && isVisible(tiles.keySet().iterator().next(), visibleRange);
+    }
+
+    /** Remove all tiles, and drop all requests (including tiles currently being loaded). */
+    void clear() {
+        for (Tile tile : tiles.values())
+            loader.recycle(tile);
+        tiles.clear();
+        bytes = 0;
+        for (Request request : pending.values())
+            request.cancel();
+        pending.clear();
+        ++generation;
+    }
+
+    /**
+     * Hand the cache over to the thread of another looper, e.g. when the render thread is started again. Must be
+     * called on the owner thread, or while no thread uses the cache. Requests are dropped, since tiles being
+     * loaded may be delivered to the previous owner, which is gone; visible tiles are requested again when drawn.
+     */
+    void setLooper(Looper looper) {
+        handler = new Handler(looper);
+        for (Request request : pending.values())
+            request.cancel();
+        pending.clear();
+        ++generation;
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /** Called on the owner thread when a request has finished, or was skipped. */
+    private void deliver(Request request) {
+        if (pending.get(request.tilePos) == request)
+            pending.remove(request.tilePos);
+        Tile tile = request.tile;
+        if (request.generation != generation) {
+            if (tile != null)
+                loader.recycle(tile);
+            return;
+        }
+        if (request.error != null)
+            throw new IllegalStateException("Error loading tile " + request.tilePos, request.error);
+
+        boolean visible = isVisible(request.tilePos, visibleRange);
+        if (tile != null) {
+            if (loader.isStale(tile)) {
+                loader.recycle(tile);
+                if (visible)
+                    request(request.tilePos);
+            } else if (visible || !wouldEvictVisible(tile)) {
+                put(request.tilePos, tile);
+                if (visible)
+                    loader.onTileLoaded(tile);
+            } else {
+                loader.recycle(tile);
+            }
+        }
+        schedulePrefetch();
+    }
+
+    private class Request implements Runnable {
+        final int tilePos;
+        final int generation;
+        final boolean prefetch;
+        Future<?> future;
+
+        /** Set by the owner thread, to skip the request if it has not started yet. */
+        volatile boolean cancelled;
+
+        // result, handed over to the owner thread through the handler
+        Tile tile;
+        RuntimeException error;
+
+        Request(int tilePos, int generation, boolean prefetch) {
+            this.tilePos = tilePos;
+            this.generation = generation;
+            this.prefetch = prefetch;
+        }
+
+        void cancel() {
+            cancelled = true;
+            future.cancel(false);
+        }
+
+        @Override public void run() {
+            if (cancelled)
+                return;
+
+            // the tile may have scrolled off screen while the request was queued (unless prefetched); deliver
+            // without a tile then, so that the request is no longer pending and the tile can be requested again
+            if (prefetch || isVisible(tilePos, visibleRange)) {
+                try {
+                    tile = loader.loadTile(tilePos);
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+            }
+            handler.post(new Runnable() {
+                @Override public void run() {
+                    deliver(Request.this);
+                }
+            });
+        }
+    }
+}
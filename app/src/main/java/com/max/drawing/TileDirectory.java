@@ -0,0 +1,59 @@
+package com.max.drawing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Tiles stored as one PNG file per tile, named as given by {@link TileSource#getTileName}. */
+class TileDirectory extends TileSource {
+    private static final Pattern TILE_NAME = Pattern.compile("tile_(\\d{1,2})_(\\d+)_(\\d+)\\.png");
+
+    private final File root;
+
+    TileDirectory(File root) {
+        this.root = root;
+    }
+
+    File getRoot() {
+        return root;
+    }
+
+    /** Lists the directory, and parses the tile position from the name of each tile. */
+    @Override int[] getTilePositions() throws IOException {
+        String[] names = root.list();
+        if (names == null)
+            throw new IOException("Can not list tile directory " + root);
+
+        int[] tilePositions = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            Matcher m = TILE_NAME.matcher(name);
+            if (m.find()) {
+                int zoomLevel = Integer.valueOf(m.group(1));
+                int tx = Integer.valueOf(m.group(2));
+                int ty = Integer.valueOf(m.group(3));
+                tilePositions[count++] = getTilePos(zoomLevel, tx, ty);
+            }
+        }
+        tilePositions = Arrays.copyOf(tilePositions, count);
+        Arrays.sort(tilePositions);
+        return tilePositions;
+    }
+
+    /** Adding, removing or renaming a file updates the modification time of the directory. */
+    @Override long getLastModified() {
+        return root.lastModified();
+    }
+
+    File getTileFile(int tilePos) {
+        return new File(root, getTileName(tilePos));
+    }
+
+    @Override InputStream open(int tilePos) throws IOException {
+        return new FileInputStream(getTileFile(tilePos));
+    }
+}
@@ -0,0 +1,92 @@
+package com.max.drawing;
+
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The positions of all tiles available in a {@link TileSource}, as a sorted array. Listing a tile directory
+ * with tens of thousands of tiles takes a long time, so the inventory is persisted along with the
+ * modification time of the source when it was listed. As long as the source is not modified (which for a
+ * directory means no tiles were added, removed or renamed), the persisted inventory can be used as is,
+ * and reading it takes a few milliseconds.
+ * <br>
+ * Immutable, so it can be shared between threads.
+ */
+class TileInventory {
+    private static final int MAGIC = 0x54494e31; // "TIN1"
+
+    private static final int HEADER_SIZE = 4 + 8 + 4;
+
+    private final int[] tilePositions;
+    private final long sourceModified;
+
+    /** @param tilePositions Tile positions, in ascending order as signed ints. */
+    TileInventory(int[] tilePositions, long sourceModified) {
+        this.tilePositions = tilePositions;
+        this.sourceModified = sourceModified;
+    }
+
+    /** List the tiles of a source. This may take a long time for large tile directories. */
+    static TileInventory build(TileSource source) throws IOException {
+        // get the modification time before listing, so that changes made while listing invalidate the inventory
+        long modified = source.getLastModified();
+        return new TileInventory(source.getTilePositions(), modified);
+    }
+
+    boolean contains(int tilePos) {
+        return Arrays.binarySearch(tilePositions, tilePos) >= 0;
+    }
+
+    int size() {
+        return tilePositions.length;
+    }
+
+    /** @return True if the source has not been modified since the inventory was built. */
+    boolean isCurrent(TileSource source) {
+        return source.getLastModified() == sourceModified;
+    }
+
+    /** @return The persisted inventory, or null if there is none or it can't be read. */
+    static TileInventory read(File file) {
+        if (!file.exists())
+            return null;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) ;
+            buffer.flip();
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+                return null;
+            long sourceModified = buffer.getLong();
+            int count = buffer.getInt();
+            if (count < 0 || buffer.remaining() != count*4L)
+                return null;
+            int[] tilePositions = new int[count];
+            buffer.asIntBuffer().get(tilePositions);
+            return new TileInventory(tilePositions, sourceModified);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Persist the inventory. The file is replaced atomically, so that a partially written inventory is never read. */
+    void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeLong(sourceModified);
+            out.writeInt(tilePositions.length);
+            for (int tilePos : tilePositions)
+                out.writeInt(tilePos);
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Can not replace tile inventory " + file);
+    }
+}
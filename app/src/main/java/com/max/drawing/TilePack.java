@@ -0,0 +1,151 @@
+package com.max.drawing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Tiles stored in a single, memory-mapped file (written by {@link TilePackWriter}). Compared to a
+ * directory with one file per tile, there is no directory to list when starting, and no file to open for
+ * each tile loaded: tiles are decoded straight from the mapped file.
+ * <br>
+ * File layout (big-endian):
+ * <ul>
+ * <li>Header: magic number, tile count, blob count (3 ints).</li>
+ * <li>Tile positions (see {@link TileSource#getTilePos}), in ascending order as signed ints (1 int per tile).</li>
+ * <li>Blob of each tile (1 int per tile). Identical images, such as sea and empty tiles, share a blob.</li>
+ * <li>Offset in the file and length of each blob (1 long and 1 int per blob).</li>
+ * <li>Blob data, where no blob crosses a multiple of {@link #SEGMENT_SIZE}, so that the file can be
+ * mapped in segments (a single mapping is limited to 2 GB).</li>
+ * </ul>
+ */
+class TilePack extends TileSource {
+    static final int MAGIC = 0x54504b31; // "TPK1"
+
+    static final int HEADER_SIZE = 3*4;
+
+    /** Size of each mapped segment of the file. */
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final int[] tilePositions;
+    private final int[] tileBlobs;
+    private final long[] blobOffsets;
+    private final int[] blobLengths;
+
+    private final MappedByteBuffer[] segments;
+
+    private final long lastModified;
+
+    TilePack(File file) throws IOException {
+        lastModified = file.lastModified();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, HEADER_SIZE));
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+                throw new IOException("Not a tile pack: " + file);
+            int tileCount = header.getInt();
+            int blobCount = header.getInt();
+            if (tileCount < 0 || blobCount < 0 || HEADER_SIZE + getIndexSize(tileCount, blobCount) > size)
+                throw new IOException("Truncated tile pack: " + file);
+
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, getIndexSize(tileCount, blobCount));
+            tilePositions = new int[tileCount];
+            tileBlobs = new int[tileCount];
+            blobOffsets = new long[blobCount];
+            blobLengths = new int[blobCount];
+            index.asIntBuffer().get(tilePositions);
+            index.position(tileCount*4);
+            index.asIntBuffer().get(tileBlobs);
+            index.position(tileCount*8);
+            for (int b = 0; b < blobCount; ++b) {
+                blobOffsets[b] = index.getLong();
+                blobLengths[b] = index.getInt();
+                if (blobOffsets[b] < 0 || blobLengths[b] <= 0 || blobOffsets[b] + blobLengths[b] > size ||
+                        blobOffsets[b] / SEGMENT_SIZE != (blobOffsets[b] + blobLengths[b] - 1) / SEGMENT_SIZE)
+                    throw new IOException("Invalid blob " + b + " in tile pack " + file);
+            }
+
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int s = 0; s < segments.length; ++s) {
+                long begin = s * SEGMENT_SIZE;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, begin, Math.min(SEGMENT_SIZE, size - begin));
+            }
+        }
+    }
+
+    static long getIndexSize(int tileCount, int blobCount) {
+        return tileCount*8L + blobCount*12L;
+    }
+
+    int getBlobCount() {
+        return blobOffsets.length;
+    }
+
+    @Override long getLastModified() {
+        return lastModified;
+    }
+
+    @Override int[] getTilePositions() {
+        return tilePositions.clone();
+    }
+
+    /** @return The image of a tile, as a buffer of its own over the mapped file; null if there is no such tile. */
+    ByteBuffer getImage(int tilePos) {
+        int t = Arrays.binarySearch(tilePositions, tilePos);
+        if (t < 0)
+            return null;
+
+        int blob = tileBlobs[t];
+        long offset = blobOffsets[blob];
+        ByteBuffer image = segments[(int) (offset / SEGMENT_SIZE)].duplicate();
+        int begin = (int) (offset % SEGMENT_SIZE);
+        image.limit(begin + blobLengths[blob]);
+        image.position(begin);
+        return image;
+    }
+
+    @Override InputStream open(int tilePos) throws IOException {
+        ByteBuffer image = getImage(tilePos);
+        if (image == null)
+            throw new IOException("No such tile in tile pack: " + getTileName(tilePos));
+        return new ByteBufferInputStream(image);
+    }
+
+    /** Reads the remaining bytes of a buffer, without copying them first. */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override public int available() {
+            return buffer.remaining();
+        }
+    }
+}
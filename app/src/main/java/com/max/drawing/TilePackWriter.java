@@ -0,0 +1,136 @@
+package com.max.drawing;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts a tile directory (see {@link TileDirectory}) into a tile pack (see {@link TilePack}). Tiles with
+ * identical images are stored once, identified by the SHA-1 hash of the image. The pack is read back and
+ * compared to the directory after writing.
+ * <br>
+ * Runs on a desktop JVM: <code>./gradlew :benchmark:packTiles -PtileDir=... -PtilePack=...</code>
+ */
+public class TilePackWriter {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: TilePackWriter <tile directory> <tile pack>");
+            System.exit(1);
+        }
+        write(new TileDirectory(new File(args[0])), new File(args[1]));
+    }
+
+    static void write(TileDirectory directory, File packFile) throws IOException {
+        int[] tilePositions = directory.getTilePositions();
+
+        // find the distinct images, and the first tile of each
+        Map<ByteBuffer, Integer> blobByHash = new HashMap<>();
+        List<Integer> blobTiles = new ArrayList<>();
+        List<Integer> blobLengths = new ArrayList<>();
+        int[] tileBlobs = new int[tilePositions.length];
+        long totalLength = 0;
+        for (int t = 0; t < tilePositions.length; ++t) {
+            byte[] image = readImage(directory, tilePositions[t]);
+            if (image.length == 0)
+                throw new IllegalStateException("Empty tile: " + TileSource.getTileName(tilePositions[t]));
+            totalLength += image.length;
+            ByteBuffer hash = ByteBuffer.wrap(sha1(image));
+            Integer blob = blobByHash.get(hash);
+            if (blob == null) {
+                blob = blobTiles.size();
+                blobByHash.put(hash, blob);
+                blobTiles.add(tilePositions[t]);
+                blobLengths.add(image.length);
+            }
+            tileBlobs[t] = blob;
+        }
+
+        // lay out the blobs after the index, moving blobs that would cross a segment boundary to the next segment
+        int blobCount = blobTiles.size();
+        long[] blobOffsets = new long[blobCount];
+        long offset = TilePack.HEADER_SIZE + TilePack.getIndexSize(tilePositions.length, blobCount);
+        for (int b = 0; b < blobCount; ++b) {
+            int length = blobLengths.get(b);
+            if (length > TilePack.SEGMENT_SIZE)
+                throw new IllegalStateException("Tile too large for tile pack: " + TileSource.getTileName(blobTiles.get(b)));
+            if (offset / TilePack.SEGMENT_SIZE != (offset + length - 1) / TilePack.SEGMENT_SIZE)
+                offset = (offset / TilePack.SEGMENT_SIZE + 1) * TilePack.SEGMENT_SIZE;
+            blobOffsets[b] = offset;
+            offset += length;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(packFile), 1 << 16))) {
+            out.writeInt(TilePack.MAGIC);
+            out.writeInt(tilePositions.length);
+            out.writeInt(blobCount);
+            for (int tilePos : tilePositions)
+                out.writeInt(tilePos);
+            for (int blob : tileBlobs)
+                out.writeInt(blob);
+            for (int b = 0; b < blobCount; ++b) {
+                out.writeLong(blobOffsets[b]);
+                out.writeInt(blobLengths.get(b));
+            }
+
+            // (DataOutputStream.size() is an int, so keep track of the position here)
+            long position = TilePack.HEADER_SIZE + TilePack.getIndexSize(tilePositions.length, blobCount);
+            for (int b = 0; b < blobCount; ++b) {
+                for (; position < blobOffsets[b]; ++position)
+                    out.write(0);
+                byte[] image = readImage(directory, blobTiles.get(b));
+                if (image.length != blobLengths.get(b))
+                    throw new IllegalStateException("Tile changed while packing: " + TileSource.getTileName(blobTiles.get(b)));
+                out.write(image);
+                position += image.length;
+            }
+        }
+
+        verify(directory, tilePositions, packFile);
+        System.out.printf("%d tiles, %d distinct images, %.1f MB of images packed into %.1f MB%n",
+                tilePositions.length, blobCount, totalLength / 1e6, packFile.length() / 1e6);
+    }
+
+    /** Check that the pack contains exactly the tiles of the directory. */
+    private static void verify(TileDirectory directory, int[] tilePositions, File packFile) throws IOException {
+        TilePack pack = new TilePack(packFile);
+        if (!Arrays.equals(pack.getTilePositions(), tilePositions))
+            throw new IllegalStateException("Tile pack does not contain the tiles of " + directory.getRoot());
+        for (int tilePos : tilePositions) {
+            ByteBuffer image = pack.getImage(tilePos);
+            if (!image.equals(ByteBuffer.wrap(readImage(directory, tilePos))))
+                throw new IllegalStateException("Tile pack has the wrong image for " + TileSource.getTileName(tilePos));
+        }
+    }
+
+    private static byte[] readImage(TileDirectory directory, int tilePos) throws IOException {
+        File file = directory.getTileFile(tilePos);
+        long length = file.length();
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalStateException("Tile too large: " + file);
+        byte[] image = new byte[(int) length];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(image);
+        }
+        return image;
+    }
+
+    private static byte[] sha1(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.max.drawing;
+
+import com.max.route.QuadPointArray;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Predicts which tiles will be shown in the next {@link #PREFETCH_SECONDS} seconds while the map follows the
+ * GPS position, so that they can be loaded before they scroll into view. Positions are predicted both by
+ * extrapolating the current speed and bearing, and by following the route ahead of the nearest route point
+ * (when navigating), which also anticipates turns. The tiles covering the screen around each predicted
+ * position are collected in order of time, so that the tiles needed first come first.
+ */
+class TilePrefetcher {
+    /** How far ahead in time to predict. */
+    static final int PREFETCH_SECONDS = 20;
+
+    /** Time between predicted positions. Short enough that the screens around them overlap at any zoom level. */
+    private static final int STEP_SECONDS = 2;
+
+    /** Below this speed (m/s), the tiles around the current position are all that is needed. */
+    private static final float MIN_SPEED = 1.5f;
+
+    private static final int MAX_TILE_INDEX = (1 << 14) - 1;
+
+    /** Positions of all tiles available, to only predict tiles that can be loaded. */
+    private TileInventory inventory;
+
+    /** Predicted tiles, in the order they are expected to be needed. */
+    private int[] tiles = new int[64];
+    private int tileCount;
+
+    private final Set<Integer> added = new HashSet<>();
+
+    int[] getTiles() {
+        return tiles;
+    }
+
+    int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Predict the tiles needed ahead of the given position, at the given zoom level.
+     *
+     * @param inventory The tiles available.
+     * @param bearing In degrees, clockwise from north.
+     * @param route Route points, or null to only extrapolate the bearing.
+     * @param routeIdx Index of the route point nearest the position, or -1 to only extrapolate the bearing.
+     * @param halfWidth Half the screen width, in meters.
+     * @param halfHeight Half the screen height, in meters.
+     */
+    void update(TileInventory inventory, double x, double y, float speed, float bearing,
+                QuadPointArray route, int routeIdx, boolean cyclic, int zoomLevel, int halfWidth, int halfHeight) {
+        this.inventory = inventory;
+        tileCount = 0;
+        added.clear();
+        if (speed < MIN_SPEED)
+            return;
+
+        double stepDist = speed * STEP_SECONDS;
+        double dx = Math.sin(Math.toRadians(bearing)), dy = Math.cos(Math.toRadians(bearing));
+        boolean followRoute = route != null && routeIdx >= 0 && routeIdx < route.nrPoints;
+
+        // position along the route, walked forward one step at a time
+        int idx = routeIdx, pointsWalked = 0;
+        double routeDist = 0;
+
+        for (int step = 1; step <= PREFETCH_SECONDS / STEP_SECONDS; ++step) {
+            addScreen(x + dx * stepDist * step, y + dy * stepDist * step, zoomLevel, halfWidth, halfHeight);
+
+            if (followRoute) {
+                while (routeDist < stepDist * step && pointsWalked < route.nrPoints) {
+                    int next = idx + 1;
+                    if (next == route.nrPoints) {
+                        if (!cyclic)
+                            break;
+                        next = 0;
+                    }
+                    routeDist += Math.hypot(route.getX(next) - route.getX(idx), route.getY(next) - route.getY(idx));
+                    idx = next;
+                    ++pointsWalked;
+                }
+                addScreen(route.getX(idx), route.getY(idx), zoomLevel, halfWidth, halfHeight);
+            }
+        }
+    }
+
+    /** Add the tiles covering the screen when centered at the given position. */
+    private void addScreen(double x, double y, int zoomLevel, int halfWidth, int halfHeight) {
+        int tileSizeBits = Renderer.ZOOM_0_TILE_BITS - zoomLevel;
+        int tx0 = Math.max(0, 1_200_000 + (int) Math.floor(x - halfWidth) >> tileSizeBits);
+        int ty0 = Math.max(0, 8_500_000 - (int) Math.ceil(y + halfHeight) >> tileSizeBits);
+        int tx1 = Math.min(MAX_TILE_INDEX, 1_200_000 + (int) Math.ceil(x + halfWidth) >> tileSizeBits);
+        int ty1 = Math.min(MAX_TILE_INDEX, 8_500_000 - (int) Math.floor(y - halfHeight) >> tileSizeBits);
+
+        for (int ty = ty0; ty <= ty1; ++ty) {
+            for (int tx = tx0; tx <= tx1; ++tx) {
+                int tilePos = TileSource.getTilePos(zoomLevel, tx, ty);
+                if (inventory.contains(tilePos) && added.add(tilePos)) {
+                    if (tileCount == tiles.length)
+                        tiles = Arrays.copyOf(tiles, tileCount * 2);
+                    tiles[tileCount++] = tilePos;
+                }
+            }
+        }
+    }
+}
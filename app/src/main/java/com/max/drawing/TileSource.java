@@ -0,0 +1,43 @@
+package com.max.drawing;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Storage of map tile images, keyed by tile position. A tile position packs the zoom level and tile
+ * coordinates into an int (see {@link #getTilePos}). Sorted lists of positions (as in {@link TilePack} and
+ * {@link TileInventory}) are sorted as signed ints, with {@link java.util.Arrays#sort(int[])}. That is not
+ * by zoom level first: zoom levels 8 and up set the sign bit, so they sort before zoom level 0. Within a
+ * zoom level, positions sort by column and then by row.
+ * <br>
+ * Implementations have no Android dependencies, so that tile storage can be converted on a desktop JVM
+ * (see {@link TilePackWriter}).
+ */
+abstract class TileSource {
+    static int getTilePos(int zoomLevel, int tx, int ty) {
+        // zoom: 4 bits (0-15)
+        // tx/ty: 14 bits (0-16383)
+        return (zoomLevel << 28) + (tx << 14) + ty;
+    }
+
+    static int getZoomLevel(int tilePos) { return tilePos >>> 28; }
+    static int getTX(int tilePos) { return (tilePos >> 14) & 0x3fff; }
+    static int getTY(int tilePos) { return tilePos & 0x3fff; }
+
+    /** @return File name of a tile in the tile directory layout, also used to identify tiles in messages. */
+    static String getTileName(int tilePos) {
+        return "tile_" + getZoomLevel(tilePos) + "_" + getTX(tilePos) + "_" + getTY(tilePos) + ".png";
+    }
+
+    /** @return Positions of all available tiles, in ascending order as signed ints. */
+    abstract int[] getTilePositions() throws IOException;
+
+    /**
+     * @return Modification time of the source, which changes when tiles are added or removed (see
+     * {@link TileInventory}); 0 if unknown.
+     */
+    abstract long getLastModified();
+
+    /** Open the (PNG) image of an available tile. May be called from several threads at once. */
+    abstract InputStream open(int tilePos) throws IOException;
+}
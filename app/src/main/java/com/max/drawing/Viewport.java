@@ -0,0 +1,86 @@
+package com.max.drawing;
+
+import com.max.config.Config;
+import com.max.route.QuadPointArray;
+
+/**
+ * Immutable snapshot of what the map shows: the part of the map in view, the GPS position drawn on it, and the
+ * settings for drawing it. Taken on the UI thread, where the map is panned and zoomed, GPS updates arrive and
+ * the settings are changed, so that a frame drawn on the render thread (see {@link MapRenderThread}) uses a
+ * consistent state while the UI thread goes on changing it.
+ */
+class Viewport {
+    final double centerUtmX, centerUtmY;
+    final int zoomLevel;
+
+    /** Scaling of the tiles of the zoom level, between 1 and 2. */
+    final double scalingZoom;
+
+    final int width, height;
+    final double screenMidX, screenMidY;
+
+    final double gpsX, gpsY;
+
+    /** In degrees (not radians). */
+    final float gpsBearing;
+
+    /** The route, or null if none is loaded. */
+    final QuadPointArray route;
+
+    /** True if the route is drawn on top of the tiles (see {@link Config#vectorRoute}). */
+    final boolean drawRouteOverlay;
+
+    /** True if any of the tile layers is enabled (route, GPS trace or points of interest). */
+    final boolean drawLayers;
+
+    /** See {@link Config#lowColorTiles}. */
+    final boolean lowColorTiles;
+
+    /** See {@link Config#mapBrightness}. */
+    final int brightness;
+
+    Viewport(double centerUtmX, double centerUtmY, int zoomLevel, double scalingZoom, int width, int height,
+             double gpsX, double gpsY, float gpsBearing,
+             QuadPointArray route, boolean drawRouteOverlay, boolean drawLayers, boolean lowColorTiles, int brightness) {
+        this.centerUtmX = centerUtmX;
+        this.centerUtmY = centerUtmY;
+        this.zoomLevel = zoomLevel;
+        this.scalingZoom = scalingZoom;
+        this.width = width;
+        this.height = height;
+        this.screenMidX = width * 0.5;
+        this.screenMidY = height * 0.5;
+        this.gpsX = gpsX;
+        this.gpsY = gpsY;
+        this.gpsBearing = gpsBearing;
+        this.route = route;
+        this.drawRouteOverlay = drawRouteOverlay;
+        this.drawLayers = drawLayers;
+        this.lowColorTiles = lowColorTiles;
+        this.brightness = brightness;
+    }
+
+    static int pixelToUtm(double pixel, int zoomLevel, double scalingZoom) {
+        return (int)(pixel*(1<<(Renderer.ZOOM_0_TILE_BITS-zoomLevel-Renderer.TILE_WIDTH_BITS)) / scalingZoom + 0.5);
+    }
+
+    static double utmToPixel(double utm, int zoomLevel, double scalingZoom) {
+        return utm/(1<<(Renderer.ZOOM_0_TILE_BITS-zoomLevel-Renderer.TILE_WIDTH_BITS)) * scalingZoom;
+    }
+
+    int pixelToUtm(double pixel) {
+        return pixelToUtm(pixel, zoomLevel, scalingZoom);
+    }
+
+    double utmToPixel(double utm) {
+        return utmToPixel(utm, zoomLevel, scalingZoom);
+    }
+
+    double utmToScreenX(double utmx) {
+        return screenMidX + utmToPixel(utmx - centerUtmX);
+    }
+
+    double utmToScreenY(double utmy) {
+        return screenMidY - utmToPixel(utmy - centerUtmY);
+    }
+}
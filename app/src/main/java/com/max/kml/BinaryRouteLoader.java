@@ -13,16 +13,14 @@ public class BinaryRouteLoader {
         QuadPointArray points = null;
         try (DataInputStream dis = new DataInputStream(new BufferedInputStream(is, 65536))) {
             int pointCount = dis.readInt();
-            int[] x = new int[pointCount];
-            int[] y = new int[pointCount];
-            PathType[] pathType = new PathType[pointCount];
+            points = new QuadPointArray(pointCount);
+            PathType[] pathTypes = PathType.values();
             for (int n = 0; n < pointCount; ++n) {
                 int pt = dis.readByte();
-                x[n] = dis.readInt();
-                y[n] = dis.readInt();
-                pathType[n] = PathType.values()[pt];
+                int x = dis.readInt();
+                int y = dis.readInt();
+                points.add(x, y, pathTypes[pt]);
             }
-            points = new QuadPointArray(x, y, pathType);
         } catch (IOException ioe) {
             throw new IllegalStateException("Error while loading route", ioe);
         }
@@ -10,12 +10,20 @@ public class Tile {
     public final Bitmap map;
     public final Canvas canvas;
 
+    /** Number of GPS history points when the GPS trace was drawn on the tile. */
+    public int historyPointCount;
+
     public Tile(int zoomLevel, int tx, int ty, Bitmap map) {
+        this(zoomLevel, tx, ty, map, new Canvas(map));
+    }
+
+    /** Create a tile drawn on with an existing canvas (on the map bitmap), such as one recycled along with the bitmap. */
+    public Tile(int zoomLevel, int tx, int ty, Bitmap map, Canvas canvas) {
         this.zoomLevel = zoomLevel;
         this.tx = tx;
         this.ty = ty;
         this.map = map;
-        this.canvas = new Canvas(map);
+        this.canvas = canvas;
     }
 
     @Override public String toString() { return zoomLevel + "," + tx + "," + ty; }
@@ -16,9 +16,13 @@ import com.max.location.LocationServiceController;
 import com.max.logic.XYd;
 import com.max.route.NavigationConfigDialog;
 import com.max.route.NavigationLogger;
+import com.max.route.PathLevelOfDetail;
+import com.max.route.PathSegmentIndex;
 import com.max.route.PointOfInterest;
-import com.max.route.QuadNode;
+import com.max.route.PolylineIndex;
 import com.max.route.QuadPointArray;
+import com.max.route.SpatialIndex;
+import com.max.route.VisvalingamRanking;
 
 import android.app.DialogFragment;
 import android.content.Context;
@@ -80,6 +84,7 @@ public class Controller extends Activity implements NavigationConfigDialog.Navig
         config = new Config();
         renderer = ((Renderer)findViewById(R.id.content_frame));
         renderer.config = config;
+        renderer.attachRenderSurface();
 
         // start the location service as early as possible to get the GPS going
         locationServiceController = new LocationServiceController(
@@ -179,26 +184,33 @@ public class Controller extends Activity implements NavigationConfigDialog.Navig
                     @Override
                     protected void onUpdate() {
                         renderer.resetGPS();
-                        renderer.invalidateTileCache(true);
+                        renderer.invalidateTileLayers();
                     }
                 },
                 new ConfigItemLabel("Layers"),
                 new ConfigItemSwitch("Route", config.showRoute) {
                     @Override
                     protected void onUpdate() {
-                        renderer.invalidateTileCache(true);
+                        renderer.invalidateTileLayers();
+                    }
+                },
+                new ConfigItemSwitch("Vector Route", config.vectorRoute) {
+                    @Override
+                    protected void onUpdate() {
+                        renderer.prepareRouteOverlay();
+                        renderer.invalidateTileLayers();
                     }
                 },
                 new ConfigItemSwitch("Points of Interest", config.showPointsOfInterest) {
                     @Override
                     protected void onUpdate() {
-                        renderer.invalidateTileCache(true);
+                        renderer.invalidateTileLayers();
                     }
                 },
                 new ConfigItemSwitch("GPS Trace", config.showGpsTrace) {
                     @Override
                     protected void onUpdate() {
-                        renderer.invalidateTileCache(true);
+                        renderer.invalidateTileLayers();
                     }
                 },
                 new ConfigItemLabel("Map view"),
@@ -213,6 +225,12 @@ public class Controller extends Activity implements NavigationConfigDialog.Navig
                     }
                 },
                 new ConfigItemSeekBar("Brightness", config.mapBrightness) {
+                    @Override
+                    protected void onUpdate() {
+                        renderer.requestRender();
+                    }
+                },
+                new ConfigItemSwitch("Low Color Tiles", config.lowColorTiles) {
                     @Override
                     protected void onUpdate() {
                         renderer.invalidateTileCache(true);
@@ -273,9 +291,11 @@ public class Controller extends Activity implements NavigationConfigDialog.Navig
 
     private void loadRoute() {
         // Sample timings for a ~55k point route (Gotland) showed that loading the binary route took
-        // around 400 ms and building the quad tree took around 700 ms with capacity 16 and 850 ms
-        // with capacity 64, for a total of 1100-1250 ms. For comparison, deserializing the points
-        // and the built tree from a pre-calculated resource took 2700 ms, i.e. >2 times slower.
+        // around 400 ms and building the quad tree by inserting one point at a time took around 700 ms
+        // with capacity 16 and 850 ms with capacity 64, for a total of 1100-1250 ms. For comparison,
+        // deserializing the points and the built tree from a pre-calculated resource took 2700 ms,
+        // i.e. >2 times slower. The route point index is now built from the loaded points instead (bulk
+        // loaded, in the case of the quad trees; see QuadTreeBuilder).
         loadTimer.reset();
         InputStream is = getResources().openRawResource(Settings.ROUTE_RESOURCE);
         BinaryRouteLoader routeLoader = new BinaryRouteLoader();
@@ -287,40 +307,28 @@ public class Controller extends Activity implements NavigationConfigDialog.Navig
         }
         loadTimer.log("Loaded route");
 
-        QuadNode quadRoot = buildQuadTree(points);
-        loadTimer.log("Built main quad tree");
-
-        QuadNode[] segmentQuadRoots = new QuadNode[renderer.waypoints.size()];
-        for (int k = 0; k < segmentQuadRoots.length; ++k) {
-            segmentQuadRoots[k] = buildQuadTree(points, renderer.waypoints.get(k).routeIndex,
-                    k == segmentQuadRoots.length - 1 ? points.nrPoints : renderer.waypoints.get(k + 1).routeIndex);
-        }
-        loadTimer.log("Built segment quad trees");
-
-        renderer.points = points;
-        renderer.quadRoot = quadRoot;
-        renderer.segmentQuadRoots = segmentQuadRoots;
-    }
+        // rank points by their significance to the shape of the route, so that turns are kept when
+        // drawing at lower zoom levels
+        points.setLevels(VisvalingamRanking.computeLevels(points));
+        loadTimer.log("Ranked route points");
 
-    QuadNode buildQuadTree(QuadPointArray points) {
-        return buildQuadTree(points, 0, points.nrPoints);
-    }
+        SpatialIndex pointIndex = Settings.ROUTE_INDEX.build(points);
+        loadTimer.log("Built route point index (" + Settings.ROUTE_INDEX + ")");
+        Log.d("LogStats", String.format("Route point index memory: %d bytes", pointIndex.getMemoryUsage()));
 
-    QuadNode buildQuadTree(QuadPointArray points, int beginIdx, int endIdx) {
-        // find points bounding box (min/max)
-        int x0 = 1<<30, y0 = 1<<30, x1 = -(1<<30), y1 = -(1<<30);
-        for (int k = 0; k < points.nrPoints; ++k) {
-            x0 = Math.min(x0, points.x[k]);
-            y0 = Math.min(y0, points.y[k]);
-            x1 = Math.max(x1, points.x[k]);
-            y1 = Math.max(y1, points.y[k]);
-        }
+        PolylineIndex polylineIndex = new PolylineIndex(points);
+        loadTimer.log("Built polyline index");
 
-        QuadNode root = new QuadNode(x0, y0, x1, y1);
-        for (int k = beginIdx; k < endIdx; ++k)
-            root.insertPoint(k, points);
+        PathSegmentIndex routeSegmentIndex = new PathSegmentIndex(points, PathLevelOfDetail.ROUTE);
+        loadTimer.log("Built route segment index");
+        Log.d("LogStats", String.format("Route segment index memory: %d bytes", routeSegmentIndex.getMemoryUsage()));
 
-        return root;
+        renderer.points = points;
+        renderer.pointIndex = pointIndex;
+        renderer.polylineIndex = polylineIndex;
+        renderer.routeSegmentIndex = routeSegmentIndex;
+        renderer.prepareRouteOverlay();
+        renderer.requestRender();
     }
 
     private void loadPointsOfInterest() {
@@ -368,7 +376,7 @@ public class Controller extends Activity implements NavigationConfigDialog.Navig
             if (location.hasSpeed())
                 renderer.setGPSSpeed(location.getSpeed());
 
-            renderer.invalidate();
+            renderer.requestRender();
         }
     };
 }
\ No newline at end of file
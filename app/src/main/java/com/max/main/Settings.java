@@ -2,6 +2,8 @@ package com.max.main;
 
 import android.os.Environment;
 
+import com.max.route.SpatialIndexType;
+
 import java.io.File;
 
 /**
@@ -28,11 +30,34 @@ public class Settings {
     public static int WAYPOINTS_RESOURCE = R.raw.sormlandsleden_waypoints;
     public static int POINTS_OF_INTEREST_RESOURCE = R.raw.sormlandsleden_pois;
 
+    /**
+     * Spatial index over the route points, for finding the part of the route the GPS position is on when not
+     * navigating (see Renderer.getNearestRouteIdx). Compare them for a route with SpatialIndexBenchmark.
+     */
+    public static SpatialIndexType ROUTE_INDEX = SpatialIndexType.GRID; // Tiltopps: KD_TREE
+
     public static NavigationMode NAVIGATION_MODE = NavigationMode.POI_BY_POI_SORMLANDSLEDEN;
 
     public static boolean WAYPOINTS_NUMBERED = false; // Gotland: true
 
+    /**
+     * Draw the map on a render thread of its own, into a surface below the map view, instead of on the UI
+     * thread, so that decoding tiles and GPS updates don't delay frames while panning and zooming. The map
+     * frame time shown with {@link #DRAW_STATS} says which one draws the map, for comparing them.
+     */
+    public static final boolean RENDER_THREAD = false;
+
+    /**
+     * Draw statistics on top of the map, for debugging: the time taken by each map frame and which thread drew
+     * it, the tile bitmap pool counters and the tile cache usage and hit rates. The frame times are also logged
+     * under "LogStats". Off, since building the strings every frame adds to the frame time being measured.
+     */
+    public static final boolean DRAW_STATS = false;
+
     public static final File TILE_ROOT_PATH = new File(Environment.getExternalStorageDirectory().getAbsolutePath(), "tiles");
 
+    /** Tile pack converted from the tile directory (see TilePackWriter); used instead of the directory if present. */
+    public static final File TILE_PACK_PATH = new File(Environment.getExternalStorageDirectory().getAbsolutePath(), "tiles.pack");
+
     public static final String NAVIGATION_LOG_FILE = new File(Environment.getExternalStorageDirectory(), "navigationLog.txt").getAbsolutePath();
 }
@@ -0,0 +1,76 @@
+package com.max.route;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of ints stored in chunks, for index data growing along with a path, such as the segments of
+ * the GPS history in {@link PathSegmentIndex}. Like the chunks of {@link QuadPointArray}, growing the array
+ * only allocates a new chunk, and never copies the elements already added, so appending costs the same
+ * however long the array is.
+ * <br>
+ * The first chunks double in size, starting small, so that the many short arrays of an index (such as those
+ * of the high levels of detail) take little memory; all later chunks have the maximum chunk size. Chunks
+ * start at multiples of their size, so that an aligned block of up to the first chunk size never spans two
+ * chunks.
+ */
+class ChunkedIntArray {
+    /** Size of the first (and second) chunk, as a power of 2. */
+    static final int MIN_CHUNK_BITS = 6;
+
+    /** Size of the chunks after the first, doubling ones, as a power of 2. */
+    private static final int MAX_CHUNK_BITS = 12;
+    private static final int MAX_CHUNK_SIZE = 1 << MAX_CHUNK_BITS;
+
+    private int[][] chunks = new int[4][];
+    private int chunkCount;
+
+    /** Number of elements that fit in the allocated chunks. */
+    private int capacity;
+
+    private static int getChunkIndex(int i) {
+        if (i < 1 << MIN_CHUNK_BITS)
+            return 0;
+        if (i < MAX_CHUNK_SIZE)
+            return Integer.SIZE - Integer.numberOfLeadingZeros(i) - MIN_CHUNK_BITS;
+        return (i >> MAX_CHUNK_BITS) + MAX_CHUNK_BITS - MIN_CHUNK_BITS;
+    }
+
+    /** @return Offset of element i in its chunk (see {@link #getChunk}). */
+    static int getChunkOffset(int i) {
+        if (i < 1 << MIN_CHUNK_BITS)
+            return i;
+        if (i < MAX_CHUNK_SIZE)
+            return i - Integer.highestOneBit(i);
+        return i & (MAX_CHUNK_SIZE - 1);
+    }
+
+    /** @return The chunk holding element i, for reading several elements of the same chunk. */
+    int[] getChunk(int i) {
+        return chunks[getChunkIndex(i)];
+    }
+
+    int get(int i) {
+        return chunks[getChunkIndex(i)][getChunkOffset(i)];
+    }
+
+    void set(int i, int value) {
+        ensureCapacity(i + 1);
+        chunks[getChunkIndex(i)][getChunkOffset(i)] = value;
+    }
+
+    /** Allocate chunks until the array holds at least the given number of elements. */
+    void ensureCapacity(int size) {
+        while (capacity < size) {
+            int chunkSize = capacity == 0 ? 1 << MIN_CHUNK_BITS : Math.min(capacity, MAX_CHUNK_SIZE);
+            if (chunkCount == chunks.length)
+                chunks = Arrays.copyOf(chunks, chunkCount << 1);
+            chunks[chunkCount++] = new int[chunkSize];
+            capacity += chunkSize;
+        }
+    }
+
+    /** @return Estimated heap usage in bytes. */
+    long getMemoryUsage() {
+        return 16 + chunks.length*4L + chunkCount*16L + capacity*4L;
+    }
+}
@@ -0,0 +1,188 @@
+package com.max.route;
+
+/**
+ * {@link SpatialIndex} backed by a uniform grid over the bounding box of the points. Each cell stores the
+ * points inside it, ordered by descending level, so that a level filtered query stops scanning a cell at
+ * the first point below the level. Queries only visit the cells overlapping the query, with no tree to
+ * descend, which makes the grid fast when the points are spread evenly over a small area (such as a dense
+ * city loop).
+ * <br>
+ * The cell size is chosen so that a cell holds around {@link #POINTS_PER_CELL} points if the route passes
+ * straight through it, but the number of cells is limited to {@link #MAX_CELLS_PER_POINT} per point. For a
+ * long route spanning a large area, this makes the cells large, with many points in the few cells the route
+ * passes through and the rest empty.
+ */
+public class GridIndex implements SpatialIndex {
+    /** Target number of points per cell, along the route. */
+    private static final int POINTS_PER_CELL = 16;
+
+    /** Maximum number of cells (including empty ones) per point, to limit the memory used by the cell table. */
+    private static final int MAX_CELLS_PER_POINT = 2;
+
+    /** Maximum cell size, as a power of 2 (keeps cell coordinates within int range). */
+    private static final int MAX_CELL_BITS = 24;
+
+    /** Maximum level stored (see {@link QuadNode#level}). */
+    private static final int MAX_LEVEL = Integer.SIZE;
+
+    /** Lower left corner of the grid. */
+    private final int x0, y0;
+
+    /** Cell width and height in meters, as a power of 2. */
+    private final int cellBits;
+
+    private final int columns, rows;
+
+    /** Entry range for each cell (size: cell count + 1), cells stored row by row. Cell c has entries [cellStart[c], cellStart[c+1]). */
+    private final int[] cellStart;
+
+    /** Point index and level of each entry, ordered by cell and then by descending level. */
+    private final int[] entries;
+    private final byte[] entryLevel;
+
+    public GridIndex(QuadPointArray points) {
+        int n = points.nrPoints;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        double length = 0;
+        for (int k = 0; k < n; ++k) {
+            int x = points.getX(k), y = points.getY(k);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            if (k > 0)
+                length += Math.hypot(x - points.getX(k - 1), y - points.getY(k - 1));
+        }
+        if (n == 0)
+            minX = minY = maxX = maxY = 0;
+        x0 = minX;
+        y0 = minY;
+
+        // cell size from the mean distance between points, increased if there would be too many cells
+        double cellSize = Math.max(1, POINTS_PER_CELL * length / Math.max(1, n - 1));
+        int bits = 0;
+        while (bits < MAX_CELL_BITS && (1 << bits) < cellSize)
+            ++bits;
+        while (bits < MAX_CELL_BITS && getCellCount(minX, minY, maxX, maxY, bits) > (long) Math.max(1, n) * MAX_CELLS_PER_POINT)
+            ++bits;
+        cellBits = bits;
+        columns = (int) ((long) maxX - minX >> cellBits) + 1;
+        rows = (int) ((long) maxY - minY >> cellBits) + 1;
+
+        // counting sort on descending level, then a stable counting sort on cell, so that each cell
+        // is ordered by descending level (and by ascending index for the same level)
+        int[] levelStart = new int[MAX_LEVEL + 2];
+        for (int k = 0; k < n; ++k)
+            ++levelStart[MAX_LEVEL - points.level(k) + 1];
+        for (int l = 0; l <= MAX_LEVEL; ++l)
+            levelStart[l + 1] += levelStart[l];
+        int[] byLevel = new int[n];
+        for (int k = 0; k < n; ++k)
+            byLevel[levelStart[MAX_LEVEL - points.level(k)]++] = k;
+
+        cellStart = new int[columns * rows + 1];
+        for (int k = 0; k < n; ++k)
+            ++cellStart[getCell(points.getX(k), points.getY(k)) + 1];
+        for (int c = 0; c < columns * rows; ++c)
+            cellStart[c + 1] += cellStart[c];
+        int[] next = cellStart.clone();
+        entries = new int[n];
+        entryLevel = new byte[n];
+        for (int idx : byLevel) {
+            int e = next[getCell(points.getX(idx), points.getY(idx))]++;
+            entries[e] = idx;
+            entryLevel[e] = (byte) points.level(idx);
+        }
+    }
+
+    private static long getCellCount(int minX, int minY, int maxX, int maxY, int cellBits) {
+        return (((long) maxX - minX >> cellBits) + 1) * (((long) maxY - minY >> cellBits) + 1);
+    }
+
+    private int getCell(int x, int y) {
+        return (int) ((long) y - y0 >> cellBits) * columns + (int) ((long) x - x0 >> cellBits);
+    }
+
+    /** @return Column (or row) of the given coordinate, clamped to [0, count-1]. */
+    private int clampCell(int v, int origin, int count) {
+        return (int) Math.max(0, Math.min(count - 1, (long) v - origin >> cellBits));
+    }
+
+    public int getCellSize() {
+        return 1 << cellBits;
+    }
+
+    public int getCellCount() {
+        return columns * rows;
+    }
+
+    @Override
+    public void queryTree(int minLevel, int qx0, int qy0, int qx1, int qy1, QuadPointArray points, QuadMatches matches) {
+        queryTree(minLevel, qx0, qy0, qx1, qy1, 0, Integer.MAX_VALUE, points, matches);
+    }
+
+    @Override
+    public void queryTree(int minLevel, int qx0, int qy0, int qx1, int qy1, int beginIdx, int endIdx, QuadPointArray points, QuadMatches matches) {
+        if (qx1 < x0 || qy1 < y0 || ((long) qx0 - x0 >> cellBits) >= columns || ((long) qy0 - y0 >> cellBits) >= rows)
+            return;
+
+        int cx0 = clampCell(qx0, x0, columns), cx1 = clampCell(qx1, x0, columns);
+        int cy0 = clampCell(qy0, y0, rows), cy1 = clampCell(qy1, y0, rows);
+        for (int cy = cy0; cy <= cy1; ++cy) {
+            for (int cx = cx0; cx <= cx1; ++cx) {
+                int c = cy * columns + cx;
+                for (int e = cellStart[c], end = cellStart[c + 1]; e < end && entryLevel[e] >= minLevel; ++e) {
+                    int idx = entries[e];
+                    int x = points.getX(idx), y = points.getY(idx);
+                    if (idx >= beginIdx && idx < endIdx && qx0 <= x && qx1 >= x && qy0 <= y && qy1 >= y)
+                        matches.add(idx);
+                }
+            }
+        }
+    }
+
+    /**
+     * Searches rings of cells around the cell nearest to the query point. The cells of ring r are at least
+     * (r-1) cell sizes away from the query point, so the search stops when that exceeds the best distance found.
+     */
+    @Override
+    public int getNearestNeighbor(int qx, int qy, int beginIdx, int endIdx, QuadPointArray points, NearestNeighborQuery query) {
+        query.reset(qx, qy);
+        int qcx = clampCell(qx, x0, columns), qcy = clampCell(qy, y0, rows);
+        int maxRing = Math.max(Math.max(qcx, columns - 1 - qcx), Math.max(qcy, rows - 1 - qcy));
+        long cellSize = 1L << cellBits;
+        for (int r = 0; r <= maxRing; ++r) {
+            long ringDist = Math.max(0, r - 1) * cellSize;
+            if (ringDist * ringDist >= query.bestDist)
+                break;
+
+            for (int cy = Math.max(0, qcy - r), cyEnd = Math.min(rows - 1, qcy + r); cy <= cyEnd; ++cy) {
+                // all cells of the first and last row of the ring, and the first and last cell of the other rows
+                boolean edgeRow = cy == qcy - r || cy == qcy + r;
+                int step = edgeRow || r == 0 ? 1 : 2*r;
+                for (int cx = qcx - r; cx <= qcx + r; cx += step) {
+                    if (cx < 0 || cx >= columns)
+                        continue;
+                    int cellX0 = (int) (x0 + cx * cellSize), cellY0 = (int) (y0 + cy * cellSize);
+                    if (!query.isCandidate(cellX0, cellY0, (int) (cellX0 + cellSize - 1), (int) (cellY0 + cellSize - 1)))
+                        continue;
+                    int c = cy * columns + cx;
+                    for (int e = cellStart[c], end = cellStart[c + 1]; e < end; ++e) {
+                        int idx = entries[e];
+                        if (idx >= beginIdx && idx < endIdx)
+                            query.test(idx, points.getX(idx), points.getY(idx));
+                    }
+                }
+            }
+        }
+        return query.bestIdx;
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return QuadNode.align(12 + 6*4 + 3*4) +
+                QuadNode.align(16 + cellStart.length*4) +
+                QuadNode.align(16 + entries.length*4) +
+                QuadNode.align(16 + entryLevel.length);
+    }
+}
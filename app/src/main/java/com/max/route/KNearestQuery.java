@@ -0,0 +1,116 @@
+package com.max.route;
+
+/**
+ * State and result of a k nearest neighbors search. Candidates are kept in a bounded max-heap on
+ * squared distance, so that the farthest candidate can be replaced in O(log k) time, and its distance
+ * doubles as the pruning bound for the tree traversal once k candidates have been found.
+ * <br>
+ * Instances are not thread safe, but any number of instances can be used to query the same tree
+ * at the same time. An instance can (and should) be reused for consecutive searches.
+ */
+public class KNearestQuery {
+    /** Maximum number of results. */
+    private final int maxCount;
+
+    /** Point indices and squared distances. Heap ordered (farthest first) while searching, then ascending distance. */
+    private final int[] idx;
+    private final long[] dist;
+
+    private int count;
+
+    /** Query point. */
+    int qx, qy;
+
+    /** Squared distance limit for candidates (exclusive). */
+    private long maxDist;
+
+    public KNearestQuery(int maxCount) {
+        if (maxCount <= 0)
+            throw new IllegalArgumentException("Invalid number of neighbors: " + maxCount);
+        this.maxCount = maxCount;
+        idx = new int[maxCount];
+        dist = new long[maxCount];
+    }
+
+    /** @param maxDist Squared distance; only points strictly nearer than this are considered. */
+    void reset(int qx, int qy, long maxDist) {
+        this.qx = qx;
+        this.qy = qy;
+        this.maxDist = maxDist;
+        count = 0;
+    }
+
+    /** @return Squared distance a point must be (strictly) below to become a result. */
+    private long bound() {
+        return count < maxCount ? maxDist : dist[0];
+    }
+
+    /** Add the given point as a candidate, replacing the farthest one if the heap is full. */
+    void test(int pointIdx, int x, int y) {
+        long d = (long) (x - qx) * (x - qx) + (long) (y - qy) * (y - qy);
+        if (d >= bound())
+            return;
+
+        if (count < maxCount) {
+            // sift up
+            int k = count++;
+            while (k > 0) {
+                int parent = (k - 1) >> 1;
+                if (dist[parent] >= d)
+                    break;
+                idx[k] = idx[parent];
+                dist[k] = dist[parent];
+                k = parent;
+            }
+            idx[k] = pointIdx;
+            dist[k] = d;
+        } else {
+            siftDown(0, count, pointIdx, d);
+        }
+    }
+
+    /** Place the given entry at heap position k (overwriting it) and restore the heap property for the heap [0, n). */
+    private void siftDown(int k, int n, int pointIdx, long d) {
+        for (int child = 2*k + 1; child < n; k = child, child = 2*k + 1) {
+            if (child + 1 < n && dist[child + 1] > dist[child])
+                ++child;
+            if (dist[child] <= d)
+                break;
+            idx[k] = idx[child];
+            dist[k] = dist[child];
+        }
+        idx[k] = pointIdx;
+        dist[k] = d;
+    }
+
+    /** @return True if the given rectangle may contain a point nearer than the current bound. */
+    boolean isCandidate(int x0, int y0, int x1, int y1) {
+        return QuadNode.boxDist2(qx, qy, x0, y0, x1, y1) < bound();
+    }
+
+    /** Heap sort the results in place, so that they are ordered by ascending distance. */
+    void finish() {
+        for (int n = count - 1; n > 0; --n) {
+            int lastIdx = idx[n];
+            long lastDist = dist[n];
+            idx[n] = idx[0];
+            dist[n] = dist[0];
+            siftDown(0, n, lastIdx, lastDist);
+        }
+    }
+
+    /** @return Number of points found (at most the maximum count given at construction). */
+    public int getCount() {
+        return count;
+    }
+
+    /** @return Index of the n:th nearest point (0 being the nearest). */
+    public int getIdx(int n) {
+        return idx[n];
+    }
+
+    /** @return Squared distance to the n:th nearest point. */
+    public long getDist(int n) {
+        return dist[n];
+    }
+}
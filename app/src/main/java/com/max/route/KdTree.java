@@ -0,0 +1,218 @@
+package com.max.route;
+
+/**
+ * {@link SpatialIndex} backed by a static, balanced kd-tree. The points are recursively split in half at the
+ * median coordinate along the longer side of their bounding box, until at most {@link #LEAF_SIZE} points
+ * remain. Like the quad tree, the tree adapts to the density of the points, but it is always balanced, and
+ * stores each point exactly once (in a leaf).
+ * <br>
+ * The tree is stored implicitly: the children of node n are nodes 2n+1 and 2n+2, and since every split is
+ * at the middle of the node's range of the (permuted) point array, the range of each node follows from its
+ * position in the tree. Only the bounding box, maximum level and index range of the points under each node
+ * are stored, so that queries can prune subtrees by area, level and index range, like {@link QuadNode}.
+ */
+public class KdTree implements SpatialIndex {
+    /** Maximum number of points in a leaf. */
+    private static final int LEAF_SIZE = 16;
+
+    /** Point index and level of each entry, in tree order. */
+    private final int[] entries;
+    private final byte[] entryLevel;
+
+    /** Node bounds, 4 entries (x0, y0, x1, y1) per node. */
+    private final int[] bounds;
+
+    /** Maximum level of any point under each node. */
+    private final byte[] maxLevel;
+
+    /** Minimum and maximum index of any point under each node, 2 entries per node. */
+    private final int[] indexRange;
+
+    /** Index of the first leaf; all nodes from here are leaves. */
+    private final int firstLeaf;
+
+    public KdTree(QuadPointArray points) {
+        int n = points.nrPoints;
+        int depth = 0;
+        while ((long) LEAF_SIZE << depth < n)
+            ++depth;
+        firstLeaf = (1 << depth) - 1;
+        int nodeCount = (1 << depth + 1) - 1;
+
+        entries = new int[n];
+        entryLevel = new byte[n];
+        for (int k = 0; k < n; ++k)
+            entries[k] = k;
+        bounds = new int[nodeCount * 4];
+        maxLevel = new byte[nodeCount];
+        indexRange = new int[nodeCount * 2];
+
+        build(0, 0, n, points);
+        for (int e = 0; e < n; ++e)
+            entryLevel[e] = (byte) points.level(entries[e]);
+    }
+
+    private void build(int node, int lo, int hi, QuadPointArray points) {
+        if (node >= firstLeaf) {
+            int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+            int level = -1, minIdx = Integer.MAX_VALUE, maxIdx = -1;
+            for (int e = lo; e < hi; ++e) {
+                int idx = entries[e];
+                x0 = Math.min(x0, points.getX(idx));
+                y0 = Math.min(y0, points.getY(idx));
+                x1 = Math.max(x1, points.getX(idx));
+                y1 = Math.max(y1, points.getY(idx));
+                level = Math.max(level, points.level(idx));
+                minIdx = Math.min(minIdx, idx);
+                maxIdx = Math.max(maxIdx, idx);
+            }
+            setNode(node, x0, y0, x1, y1, level, minIdx, maxIdx);
+            return;
+        }
+
+        // split along the longer side of the bounding box of the range
+        int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+        for (int e = lo; e < hi; ++e) {
+            x0 = Math.min(x0, points.getX(entries[e]));
+            y0 = Math.min(y0, points.getY(entries[e]));
+            x1 = Math.max(x1, points.getX(entries[e]));
+            y1 = Math.max(y1, points.getY(entries[e]));
+        }
+        int mid = lo + hi >>> 1;
+        select(lo, hi, mid, (long) x1 - x0 >= (long) y1 - y0, points);
+
+        int left = node*2 + 1, right = node*2 + 2;
+        build(left, lo, mid, points);
+        build(right, mid, hi, points);
+        setNode(node, x0, y0, x1, y1, Math.max(maxLevel[left], maxLevel[right]),
+                Math.min(indexRange[left*2], indexRange[right*2]), Math.max(indexRange[left*2 + 1], indexRange[right*2 + 1]));
+    }
+
+    private void setNode(int node, int x0, int y0, int x1, int y1, int level, int minIdx, int maxIdx) {
+        bounds[node*4] = x0;
+        bounds[node*4 + 1] = y0;
+        bounds[node*4 + 2] = x1;
+        bounds[node*4 + 3] = y1;
+        maxLevel[node] = (byte) level;
+        indexRange[node*2] = minIdx;
+        indexRange[node*2 + 1] = maxIdx;
+    }
+
+    /** Partially sort the entries [lo, hi) so that entry k has the k:th smallest coordinate (quickselect). */
+    private void select(int lo, int hi, int k, boolean byX, QuadPointArray points) {
+        --hi;
+        while (lo < hi) {
+            int pivot = coordinate(entries[lo + hi >>> 1], byX, points);
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (coordinate(entries[i], byX, points) < pivot)
+                    ++i;
+                while (coordinate(entries[j], byX, points) > pivot)
+                    --j;
+                if (i <= j) {
+                    int tmp = entries[i];
+                    entries[i++] = entries[j];
+                    entries[j--] = tmp;
+                }
+            }
+            if (k <= j)
+                hi = j;
+            else if (k >= i)
+                lo = i;
+            else
+                return;
+        }
+    }
+
+    private static int coordinate(int idx, boolean byX, QuadPointArray points) {
+        return byX ? points.getX(idx) : points.getY(idx);
+    }
+
+    /** @return True if the given node may contain points with index in [beginIdx, endIdx). */
+    private boolean overlapsIndexRange(int node, int beginIdx, int endIdx) {
+        return indexRange[node*2] < endIdx && indexRange[node*2 + 1] >= beginIdx;
+    }
+
+    @Override
+    public void queryTree(int minLevel, int qx0, int qy0, int qx1, int qy1, QuadPointArray points, QuadMatches matches) {
+        queryTree(minLevel, qx0, qy0, qx1, qy1, 0, Integer.MAX_VALUE, points, matches);
+    }
+
+    @Override
+    public void queryTree(int minLevel, int qx0, int qy0, int qx1, int qy1, int beginIdx, int endIdx, QuadPointArray points, QuadMatches matches) {
+        if (entries.length > 0)
+            queryTree(0, 0, entries.length, minLevel, qx0, qy0, qx1, qy1, beginIdx, endIdx, points, matches);
+    }
+
+    private void queryTree(int node, int lo, int hi, int minLevel, int qx0, int qy0, int qx1, int qy1, int beginIdx, int endIdx,
+                           QuadPointArray points, QuadMatches matches) {
+        int b = node*4;
+        if (maxLevel[node] < minLevel || !overlapsIndexRange(node, beginIdx, endIdx) ||
+                qx0 > bounds[b + 2] || qx1 < bounds[b] || qy0 > bounds[b + 3] || qy1 < bounds[b + 1])
+            return;
+
+        if (node >= firstLeaf) {
+            for (int e = lo; e < hi; ++e) {
+                int idx = entries[e];
+                int x = points.getX(idx), y = points.getY(idx);
+                if (entryLevel[e] >= minLevel && idx >= beginIdx && idx < endIdx && qx0 <= x && qx1 >= x && qy0 <= y && qy1 >= y)
+                    matches.add(idx);
+            }
+            return;
+        }
+
+        int mid = lo + hi >>> 1;
+        queryTree(node*2 + 1, lo, mid, minLevel, qx0, qy0, qx1, qy1, beginIdx, endIdx, points, matches);
+        queryTree(node*2 + 2, mid, hi, minLevel, qx0, qy0, qx1, qy1, beginIdx, endIdx, points, matches);
+    }
+
+    @Override
+    public int getNearestNeighbor(int qx, int qy, int beginIdx, int endIdx, QuadPointArray points, NearestNeighborQuery query) {
+        query.reset(qx, qy);
+        if (entries.length > 0 && overlapsIndexRange(0, beginIdx, endIdx))
+            getNearestNeighborRecursive(0, 0, entries.length, beginIdx, endIdx, query, points);
+        return query.bestIdx;
+    }
+
+    private void getNearestNeighborRecursive(int node, int lo, int hi, int beginIdx, int endIdx, NearestNeighborQuery query, QuadPointArray points) {
+        if (node >= firstLeaf) {
+            for (int e = lo; e < hi; ++e) {
+                int idx = entries[e];
+                if (idx >= beginIdx && idx < endIdx)
+                    query.test(idx, points.getX(idx), points.getY(idx));
+            }
+            return;
+        }
+
+        // visit the nearest child first, so to quickly find a good best estimate
+        int mid = lo + hi >>> 1;
+        int left = node*2 + 1, right = node*2 + 2;
+        long leftDist = QuadNode.boxDist2(query.qx, query.qy, bounds[left*4], bounds[left*4 + 1], bounds[left*4 + 2], bounds[left*4 + 3]);
+        long rightDist = QuadNode.boxDist2(query.qx, query.qy, bounds[right*4], bounds[right*4 + 1], bounds[right*4 + 2], bounds[right*4 + 3]);
+        if (leftDist <= rightDist) {
+            if (leftDist < query.bestDist && overlapsIndexRange(left, beginIdx, endIdx))
+                getNearestNeighborRecursive(left, lo, mid, beginIdx, endIdx, query, points);
+            if (rightDist < query.bestDist && overlapsIndexRange(right, beginIdx, endIdx))
+                getNearestNeighborRecursive(right, mid, hi, beginIdx, endIdx, query, points);
+        } else {
+            if (rightDist < query.bestDist && overlapsIndexRange(right, beginIdx, endIdx))
+                getNearestNeighborRecursive(right, mid, hi, beginIdx, endIdx, query, points);
+            if (leftDist < query.bestDist && overlapsIndexRange(left, beginIdx, endIdx))
+                getNearestNeighborRecursive(left, lo, mid, beginIdx, endIdx, query, points);
+        }
+    }
+
+    public int getNodeCount() {
+        return maxLevel.length;
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return QuadNode.align(12 + 6*4) +
+                QuadNode.align(16 + entries.length*4) +
+                QuadNode.align(16 + entryLevel.length) +
+                QuadNode.align(16 + bounds.length*4) +
+                QuadNode.align(16 + maxLevel.length) +
+                QuadNode.align(16 + indexRange.length*4);
+    }
+}
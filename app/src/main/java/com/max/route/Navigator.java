@@ -86,6 +86,7 @@ public class Navigator implements Persistable {
         waypointTimesMs = new ArrayList<>();
         routeCompleted = false;
         totalStoppedTimeMs = 0;
+        routeCursor = new RouteCursor(renderer.polylineIndex);
         setNextWaypoint(1);
     }
 
@@ -344,6 +345,7 @@ public class Navigator implements Persistable {
 
     // a few derived fields (calculated by updateStats; no need to persist)
     private int nearestRouteIdx;
+    private RouteCursor routeCursor;
     private int distanceTraveled;
     private int distanceToNextWaypoint;
     private int totalTimeElapsed;
@@ -353,13 +355,20 @@ public class Navigator implements Persistable {
         int prevIdxIdx = clampIdx(nextWaypointIdx - 1);
         int prevSegmentIdx = clampSegment(nextWaypointIdx - 1);
 
-        int routeIdxDiff = (nextWaypointIdx == 0 ? renderer.points.nrPoints : renderer.waypoints.get(nextWaypointIdx).routeIndex) - renderer.waypoints.get(prevIdxIdx).routeIndex;
-        nearestRouteIdx = renderer.segmentQuadRoots[prevIdxIdx].getNearestNeighbor(utmX, utmY, renderer.points);
+        int prevRouteIdx = renderer.waypoints.get(prevIdxIdx).routeIndex;
+        int routeIdxDiff = (nextWaypointIdx == 0 ? renderer.points.nrPoints : renderer.waypoints.get(nextWaypointIdx).routeIndex) - prevRouteIdx;
+
+        // snap to the nearest point on the route segments between the waypoints, rather than to the nearest route
+        // point (which may be far off on sparse parts of the route); consecutive positions are near each other,
+        // so the cursor can usually answer this by only looking at the segments around the previous match
+        NearestSegmentQuery nearestSegment = routeCursor.update(utmX, utmY, prevRouteIdx, prevRouteIdx + routeIdxDiff);
+        double nearestRoutePosition = nearestSegment.getSegmentIdx() >= 0 ? nearestSegment.getRouteIdx() : prevRouteIdx;
+        nearestRouteIdx = (int)(nearestRoutePosition + 0.5);
 
         // TODO: This is slightly inaccurate (typically +- a few percent) since it equates index
         // with distance which is not correct since a diagonal route is sqrt(2) times the distance
         // of a straight route. A better way would be to store the distance for each route point.
-        int distanceFromPrevWaypoint = (int)((float)(nearestRouteIdx - renderer.waypoints.get(prevIdxIdx).routeIndex) / routeIdxDiff * SegmentDistances.SEGMENT_DISTANCES[prevSegmentIdx][2] + 0.5);
+        int distanceFromPrevWaypoint = (int)((nearestRoutePosition - prevRouteIdx) / routeIdxDiff * SegmentDistances.SEGMENT_DISTANCES[prevSegmentIdx][2] + 0.5);
         distanceToNextWaypoint = SegmentDistances.SEGMENT_DISTANCES[prevSegmentIdx][2] - distanceFromPrevWaypoint;
 
         // In case we've left the route, use aerial distance as a minimum bound.
@@ -374,6 +383,11 @@ public class Navigator implements Persistable {
         totalTimeElapsed = (int)((lastUpdateMs - startMs + 500) / 1000);
     }
 
+    /** @return Index of the route point nearest the position, as of the last position update. */
+    public int getNearestRouteIdx() {
+        return nearestRouteIdx;
+    }
+
     public PointOfInterest getNextWaypoint() {
         return renderer.waypoints.get(nextWaypointIdx);
     }
@@ -461,10 +475,10 @@ public class Navigator implements Persistable {
 //    /** @return A string indicating the progress made. */
 //    public String getRouteProgress() {
 //        int prevIdx = (nextWaypointIdx + renderer.waypoints.size() - 1) % renderer.waypoints.size();
-//        int nearestIdx = renderer.segmentQuadRoots[prevIdx].getNearestNeighbor(utmX, utmY, renderer.points);
+//        int nearestIdx = renderer.quadRoot.getNearestNeighbor(utmX, utmY, renderer.waypoints.get(prevIdx).routeIndex, renderer.waypoints.get(nextWaypointIdx).routeIndex, renderer.points);
 //        int nearestFullIdx = renderer.quadRoot.getNearestNeighbor(utmX, utmY, renderer.points);
-//        int dist = (int)(0.5 + Math.sqrt((renderer.points.x[nearestIdx] - utmX)*(renderer.points.x[nearestIdx] - utmX) + (renderer.points.y[nearestIdx] - utmY)*(renderer.points.y[nearestIdx] - utmY)));
-//        int distFull = (int)(0.5 + Math.sqrt((renderer.points.x[nearestFullIdx] - utmX)*(renderer.points.x[nearestFullIdx] - utmX) + (renderer.points.y[nearestFullIdx] - utmY)*(renderer.points.y[nearestFullIdx] - utmY)));
+//        int dist = (int)(0.5 + Math.sqrt((renderer.points.getX(nearestIdx) - utmX)*(renderer.points.getX(nearestIdx) - utmX) + (renderer.points.getY(nearestIdx) - utmY)*(renderer.points.getY(nearestIdx) - utmY)));
+//        int distFull = (int)(0.5 + Math.sqrt((renderer.points.getX(nearestFullIdx) - utmX)*(renderer.points.getX(nearestFullIdx) - utmX) + (renderer.points.getY(nearestFullIdx) - utmY)*(renderer.points.getY(nearestFullIdx) - utmY)));
 //        return nearestIdx + " vs " + nearestFullIdx + " dist = " + dist + " / " + distFull;
 ////        return nextWaypointIdx + " / " + nrWaypoints;
 //    }
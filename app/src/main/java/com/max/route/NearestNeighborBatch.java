@@ -0,0 +1,188 @@
+package com.max.route;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Nearest neighbor search for many query points at once, such as all positions of a recorded track.
+ * Gives the same results as calling {@link SpatialIndex#getNearestNeighbor} for each query point (except
+ * that which of several points at the exact same distance is returned may differ), but is several times
+ * faster for query points near the route:
+ * <ul>
+ * <li>The query points are sorted along a Z-order curve, so that consecutive queries are near each other.</li>
+ * <li>Queries are handled in groups of up to {@link #GROUP_SIZE} consecutive queries within
+ * {@link #GROUP_RADIUS} of the first one. The tree is only searched for the first query. Its nearest
+ * point bounds the distance from every other query in the group to its nearest point, so all candidates
+ * for the group are found by a single range query, and each remaining query only needs to scan those
+ * (typically 10-30) points rather than search the tree.</li>
+ * <li>Large batches are split into ranges of consecutive (sorted) queries, which are searched in parallel
+ * on the shared pool (see {@link QuadTreeBuilder#getExecutor()}).</li>
+ * </ul>
+ * Must not be called from tasks running on the shared pool.
+ */
+public class NearestNeighborBatch {
+    /** Maximum number of queries in a group. */
+    private static final int GROUP_SIZE = 16;
+
+    /**
+     * Maximum distance in meters from the first query of a group to its nearest point and to the other queries
+     * in the group. Limits the area of the range query, so that it doesn't return a large part of the route.
+     */
+    private static final int GROUP_RADIUS = 100;
+
+    /** Batches smaller than this are searched on the calling thread. */
+    private static final int MIN_PARALLEL_QUERIES = 4096;
+
+    /** Number of ranges per thread, so that threads finishing early can pick up remaining ranges. */
+    private static final int RANGES_PER_THREAD = 4;
+
+    /** Bits per coordinate in the Z-order key; leaves the lower 32 bits of the sort key for the query index. */
+    private static final int KEY_BITS = 15;
+
+    /** @see #getNearestNeighbors(SpatialIndex, int, int, QuadPointArray, int[], int[], int[], long[]) */
+    public static void getNearestNeighbors(SpatialIndex tree, QuadPointArray points, int[] qx, int[] qy, int[] resultIdx, long[] resultDist) {
+        getNearestNeighbors(tree, 0, Integer.MAX_VALUE, points, qx, qy, resultIdx, resultDist);
+    }
+
+    /**
+     * Find the nearest point with index in [beginIdx, endIdx) for each query point (qx[n], qy[n]), and store its
+     * index in resultIdx[n] (or -1 if there is no such point) and its squared distance in resultDist[n].
+     * @param resultDist May be null if the distances are not needed.
+     */
+    public static void getNearestNeighbors(final SpatialIndex tree, final int beginIdx, final int endIdx, final QuadPointArray points,
+                                           final int[] qx, final int[] qy, final int[] resultIdx, final long[] resultDist) {
+        final int count = qx.length;
+        if (qy.length != count || resultIdx.length < count || (resultDist != null && resultDist.length < count))
+            throw new IllegalArgumentException("Query and result arrays must have the same length");
+
+        final int[] order = sortByZOrder(qx, qy);
+
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        if (count < MIN_PARALLEL_QUERIES || threadCount == 1) {
+            search(tree, beginIdx, endIdx, points, qx, qy, order, 0, count, resultIdx, resultDist);
+            return;
+        }
+
+        int rangeCount = Math.min(threadCount * RANGES_PER_THREAD, count / (MIN_PARALLEL_QUERIES / 4));
+        List<Future<Void>> futures = new ArrayList<>(rangeCount);
+        for (int r = 0; r < rangeCount; ++r) {
+            final int lo = (int) ((long) count * r / rangeCount), hi = (int) ((long) count * (r + 1) / rangeCount);
+            futures.add(QuadTreeBuilder.getExecutor().submit(new Callable<Void>() {
+                @Override public Void call() {
+                    search(tree, beginIdx, endIdx, points, qx, qy, order, lo, hi, resultIdx, resultDist);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures)
+            QuadTreeBuilder.getResult(future);
+    }
+
+    /** Search the queries order[lo], ..., order[hi-1], in groups of consecutive queries. */
+    private static void search(SpatialIndex tree, int beginIdx, int endIdx, QuadPointArray points, int[] qx, int[] qy,
+                               int[] order, int lo, int hi, int[] resultIdx, long[] resultDist) {
+        NearestNeighborQuery query = new NearestNeighborQuery();
+        QuadMatches candidates = new QuadMatches();
+        final long maxGroupDist = (long) GROUP_RADIUS*GROUP_RADIUS;
+
+        for (int groupBegin = lo, groupEnd; groupBegin < hi; groupBegin = groupEnd) {
+            int first = order[groupBegin];
+            int fx = qx[first], fy = qy[first];
+            int nearest = tree.getNearestNeighbor(fx, fy, beginIdx, endIdx, points, query);
+            setResult(first, nearest, query.bestDist, resultIdx, resultDist);
+
+            groupEnd = groupBegin + 1;
+            if (nearest < 0 || query.bestDist > maxGroupDist)
+                continue;
+
+            // extend the group with the following queries near the first one, and find the group's bounding box
+            // and the maximum distance from any query to the first query's nearest point
+            int nx = points.getX(nearest), ny = points.getY(nearest);
+            int x0 = fx, y0 = fy, x1 = fx, y1 = fy;
+            long maxDist = query.bestDist;
+            for (; groupEnd < hi && groupEnd - groupBegin < GROUP_SIZE; ++groupEnd) {
+                int n = order[groupEnd];
+                int x = qx[n], y = qy[n];
+                if ((long) (x - fx)*(x - fx) + (long) (y - fy)*(y - fy) > maxGroupDist)
+                    break;
+                x0 = Math.min(x0, x);
+                y0 = Math.min(y0, y);
+                x1 = Math.max(x1, x);
+                y1 = Math.max(y1, y);
+                maxDist = Math.max(maxDist, (long) (x - nx)*(x - nx) + (long) (y - ny)*(y - ny));
+            }
+            if (groupEnd == groupBegin + 1)
+                continue;
+
+            // no query in the group can have its nearest point farther away than the first query's nearest point
+            int radius = (int) Math.ceil(Math.sqrt(maxDist));
+            candidates.clear();
+            tree.queryTree(0, x0 - radius, y0 - radius, x1 + radius, y1 + radius, beginIdx, endIdx, points, candidates);
+
+            for (int k = groupBegin + 1; k < groupEnd; ++k) {
+                int n = order[k];
+                int x = qx[n], y = qy[n];
+                int bestIdx = -1;
+                long bestDist = Long.MAX_VALUE;
+                for (int c = 0; c < candidates.matchCount; ++c) {
+                    int idx = candidates.get(c);
+                    long dx = points.getX(idx) - x, dy = points.getY(idx) - y;
+                    long dist = dx*dx + dy*dy;
+                    if (dist < bestDist) {
+                        bestDist = dist;
+                        bestIdx = idx;
+                    }
+                }
+                setResult(n, bestIdx, bestDist, resultIdx, resultDist);
+            }
+        }
+    }
+
+    private static void setResult(int n, int idx, long dist, int[] resultIdx, long[] resultDist) {
+        resultIdx[n] = idx;
+        if (resultDist != null)
+            resultDist[n] = dist;
+    }
+
+    /** @return Query indices in Z-order of their coordinates (relative to the bounding box of all query points). */
+    private static int[] sortByZOrder(int[] qx, int[] qy) {
+        int count = qx.length;
+        int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+        for (int n = 0; n < count; ++n) {
+            x0 = Math.min(x0, qx[n]);
+            y0 = Math.min(y0, qy[n]);
+            x1 = Math.max(x1, qx[n]);
+            y1 = Math.max(y1, qy[n]);
+        }
+
+        // scale coordinates down so that the larger extent fits in the key bits
+        long extent = Math.max((long) x1 - x0, (long) y1 - y0);
+        int shift = 0;
+        while (extent >> shift >= 1 << KEY_BITS)
+            ++shift;
+
+        long[] keys = new long[count];
+        for (int n = 0; n < count; ++n) {
+            long cx = ((long) qx[n] - x0) >> shift, cy = ((long) qy[n] - y0) >> shift;
+            keys[n] = (interleave(cx) | interleave(cy) << 1) << 32 | n;
+        }
+        Arrays.sort(keys);
+
+        int[] order = new int[count];
+        for (int n = 0; n < count; ++n)
+            order[n] = (int) keys[n];
+        return order;
+    }
+
+    /** @return The lower 16 bits of v spread out to the even bits of the result. */
+    private static long interleave(long v) {
+        v = (v | v << 8) & 0x00ff00ffL;
+        v = (v | v << 4) & 0x0f0f0f0fL;
+        v = (v | v << 2) & 0x33333333L;
+        v = (v | v << 1) & 0x55555555L;
+        return v;
+    }
+}
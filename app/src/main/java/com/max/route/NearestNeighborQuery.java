@@ -0,0 +1,66 @@
+package com.max.route;
+
+/**
+ * State of a nearest neighbor search (query point and best match found so far). Keeping this in
+ * a separate object rather than in the tree makes searches re-entrant, so that any number of threads
+ * can query the same tree (or different trees) at the same time, as long as the tree is not being
+ * modified.
+ * <br>
+ * To avoid allocating a new object for each search, one instance per thread is pooled and can
+ * be retrieved through {@link #get()}. Callers that need to keep the result across searches can
+ * create their own instances.
+ */
+public class NearestNeighborQuery {
+    private static final ThreadLocal<NearestNeighborQuery> PER_THREAD = new ThreadLocal<NearestNeighborQuery>() {
+        @Override protected NearestNeighborQuery initialValue() {
+            return new NearestNeighborQuery();
+        }
+    };
+
+    /** @return The pooled instance for the calling thread. */
+    public static NearestNeighborQuery get() {
+        return PER_THREAD.get();
+    }
+
+    /** Query point. */
+    int qx, qy;
+
+    /** Index of nearest point found so far, or -1 if none found. */
+    int bestIdx;
+
+    /** Squared distance to nearest point found so far. */
+    long bestDist;
+
+    void reset(int qx, int qy) {
+        this.qx = qx;
+        this.qy = qy;
+        bestIdx = -1;
+        bestDist = 1L<<62;
+    }
+
+    /** Test whether the given point is nearer than the best one found so far, and if so, make it the best one. */
+    void test(int idx, int x, int y) {
+        long dist = (long) (x - qx) * (x - qx) + (long) (y - qy) * (y - qy);
+        if (dist < bestDist) {
+            bestDist = dist;
+            bestIdx = idx;
+        }
+    }
+
+    /** @return True if the given rectangle may contain a point nearer than the best one found so far. */
+    boolean isCandidate(int x0, int y0, int x1, int y1) {
+        long dx = qx < x0 ? x0 - qx : (qx > x1 ? qx - x1 : 0);
+        long dy = qy < y0 ? y0 - qy : (qy > y1 ? qy - y1 : 0);
+        return dx*dx + dy*dy < bestDist;
+    }
+
+    /** @return Index of the nearest point, or -1 if none was found. */
+    public int getBestIdx() {
+        return bestIdx;
+    }
+
+    /** @return Squared distance to the nearest point. */
+    public long getBestDist() {
+        return bestDist;
+    }
+}
@@ -0,0 +1,79 @@
+package com.max.route;
+
+/**
+ * State and result of a nearest segment search in a {@link PolylineIndex}. Works like
+ * {@link NearestNeighborQuery}, but also holds the point on the nearest segment that is closest to
+ * the query point, and its position along the segment.
+ */
+public class NearestSegmentQuery {
+    /** Maximum depth of a {@link PolylineIndex} (16^8 segments is more than any route can have). */
+    static final int MAX_DEPTH = 8;
+
+    /** Query point. */
+    int qx, qy;
+
+    /** Index of nearest segment found so far (segment k goes from point k to point k+1), or -1 if none found. */
+    int bestIdx;
+
+    /** Squared distance to the projected point on the nearest segment found so far. */
+    double bestDist;
+
+    /** Position along the nearest segment [0, 1], and the corresponding point. */
+    double fraction, x, y;
+
+    /** Scratch space for ordering the children of a node by distance, one row of 16 per tree depth. */
+    final long[] childDist = new long[16*MAX_DEPTH];
+    final int[] childOrder = new int[16*MAX_DEPTH];
+
+    void reset(int qx, int qy, double maxDist) {
+        this.qx = qx;
+        this.qy = qy;
+        bestIdx = -1;
+        bestDist = maxDist;
+    }
+
+    /** Test whether the given segment is nearer than the best one found so far, and if so, make it the best one. */
+    void test(int segmentIdx, int x0, int y0, int x1, int y1) {
+        long dx = x1 - x0, dy = y1 - y0;
+        long len2 = dx*dx + dy*dy;
+        double t = len2 == 0 ? 0 : Math.max(0, Math.min(1, (double) ((qx - x0)*dx + (qy - y0)*dy) / len2));
+        double px = x0 + t*dx, py = y0 + t*dy;
+        double dist = (px - qx)*(px - qx) + (py - qy)*(py - qy);
+        if (dist < bestDist) {
+            bestDist = dist;
+            bestIdx = segmentIdx;
+            fraction = t;
+            x = px;
+            y = py;
+        }
+    }
+
+    /** @return Index of the nearest segment, or -1 if none was found. */
+    public int getSegmentIdx() {
+        return bestIdx;
+    }
+
+    /** @return Fractional route index of the nearest point on the route, e.g. 10.25 is a quarter of the way from point 10 to 11. */
+    public double getRouteIdx() {
+        return bestIdx + fraction;
+    }
+
+    /** @return Position along the nearest segment, ranging from 0 (first point) to 1 (second point). */
+    public double getFraction() {
+        return fraction;
+    }
+
+    /** @return Nearest point on the route (projection of the query point onto the nearest segment). */
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    /** @return Squared distance to the nearest point on the route. */
+    public double getDist() {
+        return bestDist;
+    }
+}
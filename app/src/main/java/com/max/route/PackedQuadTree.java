@@ -0,0 +1,262 @@
+package com.max.route;
+
+/**
+ * Flattened version of a {@link QuadNode} tree, where the whole tree is stored in a handful of
+ * parallel primitive arrays rather than as one object (plus arrays) per node. This uses a fraction
+ * of the memory and gives better memory locality when querying, at the cost of being immutable.
+ * <br>
+ * Nodes are stored in breadth first order, so that the children of a node are always stored
+ * consecutively. For each node, the bounds, index of the first child, a bit mask of which of the
+ * four quadrants are present, the maximum level and index range of any contained point, and the range
+ * of its bucket are stored. Buckets are stored consecutively in a single array, where each entry packs the level of
+ * the point in the upper bits and the point index in the lower bits.
+ * <br>
+ * The query semantics are identical to those of {@link QuadNode}.
+ */
+public class PackedQuadTree implements SpatialIndex {
+    /** Number of bits used for point indices in bucket entries. The remaining upper bits store the level. */
+    private static final int LEVEL_SHIFT = 26;
+
+    private static final int INDEX_MASK = (1 << LEVEL_SHIFT) - 1;
+
+    /** Node bounds, 4 entries (x0, y0, x1, y1) per node. */
+    private final int[] bounds;
+
+    /** Node index of first child for each node. Remaining children follow consecutively. */
+    private final int[] firstChild;
+
+    /** Bit mask for each node, where bit k is set if the child for quadrant k is present. */
+    private final byte[] childMask;
+
+    /** Maximum level of any point that is contained in each node. */
+    private final byte[] maxLevel;
+
+    /** Minimum and maximum index of any point that is contained in each node, 2 entries per node. */
+    private final int[] indexRange;
+
+    /** Bucket range for each node (size: node count + 1). Bucket for node n is [bucketStart[n], bucketStart[n+1]). */
+    private final int[] bucketStart;
+
+    /** Bucket entries for all nodes; level packed in upper bits, point index in lower bits. */
+    private final int[] entries;
+
+    private final int nodeCount;
+
+    /** Create a packed copy of the given tree. */
+    public PackedQuadTree(QuadNode root) {
+        nodeCount = root.getNodeCount();
+
+        bounds = new int[nodeCount * 4];
+        firstChild = new int[nodeCount];
+        childMask = new byte[nodeCount];
+        maxLevel = new byte[nodeCount];
+        indexRange = new int[nodeCount * 2];
+        bucketStart = new int[nodeCount + 1];
+
+        // breadth first traversal, where the queue itself is the final node order
+        QuadNode[] queue = new QuadNode[nodeCount];
+        queue[0] = root;
+        int entryCount = 0;
+        for (int head = 0, tail = 1; head < nodeCount; ++head) {
+            QuadNode node = queue[head];
+            bounds[head*4] = node.x0;
+            bounds[head*4 + 1] = node.y0;
+            bounds[head*4 + 2] = node.x1;
+            bounds[head*4 + 3] = node.y1;
+            maxLevel[head] = (byte) node.maxChildLevel;
+            indexRange[head*2] = node.minPointIdx;
+            indexRange[head*2 + 1] = node.maxPointIdx;
+            firstChild[head] = tail;
+            if (node.q != null) {
+                for (int k = 0; k < 4; ++k) {
+                    if (node.q[k] != null) {
+                        childMask[head] |= 1 << k;
+                        queue[tail++] = node.q[k];
+                    }
+                }
+            }
+            entryCount += node.pointCount;
+        }
+
+        entries = new int[entryCount];
+        for (int n = 0, e = 0; n < nodeCount; ++n) {
+            QuadNode node = queue[n];
+            bucketStart[n] = e;
+            for (int p = 0; p < node.pointCount; ++p) {
+                if (node.pointIdx[p] > INDEX_MASK)
+                    throw new IllegalArgumentException("Too many points for packed quad tree: " + node.pointIdx[p]);
+                entries[e++] = node.level[p] << LEVEL_SHIFT | node.pointIdx[p];
+            }
+        }
+        bucketStart[nodeCount] = entryCount;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return QuadNode.align(12 + 8*4) +
+                QuadNode.align(16 + bounds.length*4) +
+                QuadNode.align(16 + firstChild.length*4) +
+                QuadNode.align(16 + childMask.length) +
+                QuadNode.align(16 + maxLevel.length) +
+                QuadNode.align(16 + indexRange.length*4) +
+                QuadNode.align(16 + bucketStart.length*4) +
+                QuadNode.align(16 + entries.length*4);
+    }
+
+    @Override
+    public void queryTree(int minLevel, int qx0, int qy0, int qx1, int qy1, QuadPointArray points, QuadMatches matches) {
+        if (maxLevel[0] >= minLevel)
+            queryTree(0, minLevel, qx0, qy0, qx1, qy1, points, matches);
+    }
+
+    private void queryTree(int node, int minLevel, int qx0, int qy0, int qx1, int qy1, QuadPointArray points, QuadMatches matches) {
+        for (int e = bucketStart[node], end = bucketStart[node + 1]; e < end; ++e) {
+            int entry = entries[e];
+            int idx = entry & INDEX_MASK;
+            int x = points.getX(idx), y = points.getY(idx);
+            if (entry >>> LEVEL_SHIFT >= minLevel && qx0 <= x && qx1 >= x && qy0 <= y && qy1 >= y)
+                matches.add(idx);
+        }
+
+        int mask = childMask[node];
+        for (int child = firstChild[node]; mask != 0; mask &= mask - 1, ++child) {
+            int b = child*4;
+            if (maxLevel[child] >= minLevel && qx0 <= bounds[b + 2] && qx1 >= bounds[b] && qy0 <= bounds[b + 3] && qy1 >= bounds[b + 1])
+                queryTree(child, minLevel, qx0, qy0, qx1, qy1, points, matches);
+        }
+    }
+
+    @Override
+    public void queryTree(int minLevel, int qx0, int qy0, int qx1, int qy1, int beginIdx, int endIdx, QuadPointArray points, QuadMatches matches) {
+        if (maxLevel[0] >= minLevel && overlapsIndexRange(0, beginIdx, endIdx))
+            queryTree(0, minLevel, qx0, qy0, qx1, qy1, beginIdx, endIdx, points, matches);
+    }
+
+    private void queryTree(int node, int minLevel, int qx0, int qy0, int qx1, int qy1, int beginIdx, int endIdx, QuadPointArray points, QuadMatches matches) {
+        for (int e = bucketStart[node], end = bucketStart[node + 1]; e < end; ++e) {
+            int entry = entries[e];
+            int idx = entry & INDEX_MASK;
+            int x = points.getX(idx), y = points.getY(idx);
+            if (entry >>> LEVEL_SHIFT >= minLevel && idx >= beginIdx && idx < endIdx && qx0 <= x && qx1 >= x && qy0 <= y && qy1 >= y)
+                matches.add(idx);
+        }
+
+        int mask = childMask[node];
+        for (int child = firstChild[node]; mask != 0; mask &= mask - 1, ++child) {
+            int b = child*4;
+            if (maxLevel[child] >= minLevel && overlapsIndexRange(child, beginIdx, endIdx) &&
+                    qx0 <= bounds[b + 2] && qx1 >= bounds[b] && qy0 <= bounds[b + 3] && qy1 >= bounds[b + 1])
+                queryTree(child, minLevel, qx0, qy0, qx1, qy1, beginIdx, endIdx, points, matches);
+        }
+    }
+
+    /** @return True if the given node may contain points with index in [beginIdx, endIdx). */
+    private boolean overlapsIndexRange(int node, int beginIdx, int endIdx) {
+        return indexRange[node*2] < endIdx && indexRange[node*2 + 1] >= beginIdx;
+    }
+
+    /** @see QuadNode#getNearestNeighbor(int, int, QuadPointArray) */
+    public int getNearestNeighbor(int qx, int qy, QuadPointArray points) {
+        return getNearestNeighbor(qx, qy, points, NearestNeighborQuery.get());
+    }
+
+    /** @see QuadNode#getNearestNeighbor(int, int, QuadPointArray, NearestNeighborQuery) */
+    public int getNearestNeighbor(int qx, int qy, QuadPointArray points, NearestNeighborQuery query) {
+        return getNearestNeighbor(qx, qy, 0, Integer.MAX_VALUE, points, query);
+    }
+
+    @Override
+    public int getNearestNeighbor(int qx, int qy, int beginIdx, int endIdx, QuadPointArray points, NearestNeighborQuery query) {
+        query.reset(qx, qy);
+        if (overlapsIndexRange(0, beginIdx, endIdx))
+            getNearestNeighborRecursive(0, beginIdx, endIdx, query, points);
+        return query.bestIdx;
+    }
+
+    private void getNearestNeighborRecursive(int node, int beginIdx, int endIdx, NearestNeighborQuery query, QuadPointArray points) {
+        // test point for proximity
+        for (int e = bucketStart[node], end = bucketStart[node + 1]; e < end; ++e) {
+            int idx = entries[e] & INDEX_MASK;
+            if (idx >= beginIdx && idx < endIdx)
+                query.test(idx, points.getX(idx), points.getY(idx));
+        }
+
+        int mask = childMask[node];
+        if (mask != 0) {
+            // visit most likely children first, so to quickly find a good best estimate and reduce overall visit count
+            int b = node*4;
+            int xOrder = query.qx <= (bounds[b] + bounds[b + 2])>>1 ? 0 : 1;
+            int yOrder = query.qy <= (bounds[b + 1] + bounds[b + 3])>>1 ? 0 : 1;
+            for (int i = 0; i < 4; ++i) {
+                int k = ((i&1)^xOrder) + (((i>>1)^yOrder)<<1);
+                if ((mask & 1 << k) != 0) {
+                    int child = firstChild[node] + Integer.bitCount(mask & (1 << k) - 1);
+                    int c = child*4;
+                    if (overlapsIndexRange(child, beginIdx, endIdx) && query.isCandidate(bounds[c], bounds[c + 1], bounds[c + 2], bounds[c + 3]))
+                        getNearestNeighborRecursive(child, beginIdx, endIdx, query, points);
+                }
+            }
+        }
+    }
+
+    /** @see QuadNode#getNearestNeighbors */
+    public void getNearestNeighbors(int minLevel, int qx, int qy, int radius, QuadPointArray points, KNearestQuery query) {
+        query.reset(qx, qy, (long) radius * radius + 1);
+        if (maxLevel[0] >= minLevel)
+            getNearestNeighborsRecursive(0, minLevel, query, points);
+        query.finish();
+    }
+
+    private void getNearestNeighborsRecursive(int node, int minLevel, KNearestQuery query, QuadPointArray points) {
+        for (int e = bucketStart[node], end = bucketStart[node + 1]; e < end; ++e) {
+            int entry = entries[e];
+            int idx = entry & INDEX_MASK;
+            if (entry >>> LEVEL_SHIFT >= minLevel)
+                query.test(idx, points.getX(idx), points.getY(idx));
+        }
+
+        int mask = childMask[node];
+        if (mask != 0) {
+            // visit most likely children first, so that the bound shrinks as quickly as possible
+            int b = node*4;
+            int xOrder = query.qx <= (bounds[b] + bounds[b + 2])>>1 ? 0 : 1;
+            int yOrder = query.qy <= (bounds[b + 1] + bounds[b + 3])>>1 ? 0 : 1;
+            for (int i = 0; i < 4; ++i) {
+                int k = ((i&1)^xOrder) + (((i>>1)^yOrder)<<1);
+                if ((mask & 1 << k) != 0) {
+                    int child = firstChild[node] + Integer.bitCount(mask & (1 << k) - 1);
+                    int c = child*4;
+                    if (maxLevel[child] >= minLevel && query.isCandidate(bounds[c], bounds[c + 1], bounds[c + 2], bounds[c + 3]))
+                        getNearestNeighborsRecursive(child, minLevel, query, points);
+                }
+            }
+        }
+    }
+
+    /** @see QuadNode#queryRadius */
+    public void queryRadius(int minLevel, int qx, int qy, int radius, QuadPointArray points, QuadMatches matches) {
+        if (maxLevel[0] >= minLevel)
+            queryRadius(0, minLevel, qx, qy, (long) radius * radius, points, matches);
+    }
+
+    private void queryRadius(int node, int minLevel, int qx, int qy, long radius2, QuadPointArray points, QuadMatches matches) {
+        for (int e = bucketStart[node], end = bucketStart[node + 1]; e < end; ++e) {
+            int entry = entries[e];
+            int idx = entry & INDEX_MASK;
+            long dx = points.getX(idx) - qx, dy = points.getY(idx) - qy;
+            if (entry >>> LEVEL_SHIFT >= minLevel && dx*dx + dy*dy <= radius2)
+                matches.add(idx);
+        }
+
+        int mask = childMask[node];
+        for (int child = firstChild[node]; mask != 0; mask &= mask - 1, ++child) {
+            int b = child*4;
+            if (maxLevel[child] >= minLevel && QuadNode.boxDist2(qx, qy, bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3]) <= radius2)
+                queryRadius(child, minLevel, qx, qy, radius2, points, matches);
+        }
+    }
+}
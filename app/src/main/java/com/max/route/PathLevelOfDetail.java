@@ -2,6 +2,12 @@ package com.max.route;
 
 /** Level of detail configuration for drawing paths. */
 public class PathLevelOfDetail {
+    // level of detail configs below have been empirically tested to be visibly acceptable; the route
+    // config is for levels ranked by VisvalingamRanking, which allows one level less detail than index
+    // based levels (was {11,10,9,8,7,7,6,5,4,3,0}) with lower maximum deviation, see LevelOfDetailReport
+    public static final PathLevelOfDetail ROUTE = new PathLevelOfDetail(new int[] {12,11,10,9,8,8,7,6,5,4,0});
+    public static final PathLevelOfDetail GPS_HISTORY = new PathLevelOfDetail(new int[] {10,9,8,7,6,5,4,3,3,2,0});
+
     /**
      * Quad tree node query level for each zoom level (size: MAX_ZOOM_LEVEL+1). This specifies
      * the amount of detail desired for each zoom level. We want the least amount of detail
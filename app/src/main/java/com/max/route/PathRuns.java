@@ -0,0 +1,97 @@
+package com.max.route;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of runs of connected path segments found by {@link PathSegmentIndex#querySegmentRuns}.
+ * Each run is stored as the indices of its points, from the first point of its first segment to the
+ * last point of its last segment, so that a run can be drawn as a single poly line.
+ */
+public class PathRuns {
+    private static final int INITIAL_CAPACITY = 2048;
+
+    private int[] pointIdx = new int[INITIAL_CAPACITY];
+    private int pointCount;
+
+    /** End of each run in the point list; run r has the points [getRunBegin(r), getRunEnd(r)). */
+    private int[] runEnd = new int[64];
+    public int runCount;
+
+    public void clear() {
+        pointCount = 0;
+        runCount = 0;
+    }
+
+    public int getRunBegin(int run) {
+        return run == 0 ? 0 : runEnd[run - 1];
+    }
+
+    public int getRunEnd(int run) {
+        return runEnd[run];
+    }
+
+    /** @return Index of the k:th point of all runs. */
+    public int getPointIdx(int k) {
+        return pointIdx[k];
+    }
+
+    /** @return Total number of points in all runs. */
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * Add the segments between consecutive points vertices[first], ..., vertices[last]. They continue the
+     * last run if it ends at the first point, and start a new run otherwise.
+     */
+    void add(ChunkedIntArray vertices, int first, int last) {
+        first += beginRun(vertices.get(first));
+        reserve(last - first + 1);
+        // copied chunk by chunk
+        while (first <= last) {
+            int[] chunk = vertices.getChunk(first);
+            int offset = ChunkedIntArray.getChunkOffset(first);
+            int count = Math.min(last - first + 1, chunk.length - offset);
+            System.arraycopy(chunk, offset, pointIdx, pointCount, count);
+            pointCount += count;
+            first += count;
+        }
+        runEnd[runCount - 1] = pointCount;
+    }
+
+    /** Same as {@link #add(ChunkedIntArray, int, int)}, for the consecutive points first, first + 1, ..., last. */
+    void addRange(int first, int last) {
+        first += beginRun(first);
+        reserve(last - first + 1);
+        for (int idx = first; idx <= last; ++idx)
+            pointIdx[pointCount++] = idx;
+        runEnd[runCount - 1] = pointCount;
+    }
+
+    /** Same as {@link #add(ChunkedIntArray, int, int)}, for a single segment. */
+    void addSegment(int idx0, int idx1) {
+        reserve(2);
+        if (beginRun(idx0) == 0)
+            pointIdx[pointCount++] = idx0;
+        pointIdx[pointCount++] = idx1;
+        runEnd[runCount - 1] = pointCount;
+    }
+
+    /**
+     * Continue the last run if it ends at the given point, otherwise start a new run.
+     * @return Number of points to skip, since they are already in the run (0 or 1).
+     */
+    private int beginRun(int firstIdx) {
+        if (runCount > 0 && pointIdx[pointCount - 1] == firstIdx)
+            return 1;
+        if (runCount == runEnd.length)
+            runEnd = Arrays.copyOf(runEnd, runCount << 1);
+        ++runCount;
+        return 0;
+    }
+
+    private void reserve(int count) {
+        if (pointCount + count > pointIdx.length)
+            pointIdx = Arrays.copyOf(pointIdx, Math.max(pointIdx.length << 1, pointCount + count));
+    }
+}
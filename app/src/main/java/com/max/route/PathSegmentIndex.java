@@ -0,0 +1,273 @@
+package com.max.route;
+
+/**
+ * Spatial index over the segments of a path at each level of detail, used to find the segments to draw
+ * on a tile. Querying the points of the path instead misses segments that cross a tile without having
+ * any point on it, such as long straight stretches of sparse routes at high zoom levels.
+ * <br>
+ * At level L, the path is drawn as segments between consecutive points with level L or higher (see
+ * {@link QuadPointArray#nextAtLevel}), so the segments of each level of the level of detail configuration
+ * are indexed separately. Like {@link PolylineIndex}, each level is indexed by a hierarchy of bounding
+ * boxes over aligned blocks of 16 consecutive segments. This is cheap to build, returns segments in path
+ * order without any sorting, and allows appending segments as the path grows (such as the GPS history)
+ * by updating a single box per depth.
+ * <br>
+ * The vertex and box arrays grow in chunks (see {@link ChunkedIntArray}) without copying what has been added,
+ * so adding a point to the GPS history costs the same however long the history is, and level 0, which has
+ * every point as a vertex, doesn't store its vertices at all.
+ * <br>
+ * Adding points and querying is synchronized, so they can be done from different threads.
+ */
+public class PathSegmentIndex {
+    private static final int FANOUT_BITS = 4;
+    private static final int FANOUT = 1 << FANOUT_BITS;
+
+    /** Maximum depth of the box hierarchy (16^8 segments is more than any path can have). */
+    private static final int MAX_DEPTH = 8;
+
+    /** Segments between consecutive points with at least a given level. */
+    private static class LevelIndex {
+        /**
+         * Point indices of the segment end points; segment s goes from point vertex(s) to vertex(s+1). Not stored
+         * for level 0, where every point is a vertex.
+         */
+        final ChunkedIntArray vertices;
+        int vertexCount;
+
+        /** Bounding boxes for each depth, 4 entries (x0, y0, x1, y1) per box. The top depth has a single box. */
+        final ChunkedIntArray[] boxes = new ChunkedIntArray[MAX_DEPTH];
+        int depthCount = 1;
+
+        LevelIndex(boolean allPoints) {
+            vertices = allPoints ? null : new ChunkedIntArray();
+            boxes[0] = new ChunkedIntArray();
+        }
+
+        int vertex(int s) {
+            return vertices == null ? s : vertices.get(s);
+        }
+
+        int getSegmentCount() {
+            return Math.max(0, vertexCount - 1);
+        }
+
+        /** @return Number of boxes at the given depth. */
+        int getBoxCount(int depth) {
+            int segmentCount = getSegmentCount();
+            return segmentCount == 0 ? 0 : ((segmentCount - 1) >> FANOUT_BITS*(depth + 1)) + 1;
+        }
+
+        /** Add a point to the end of the path; this only updates a single box per depth. */
+        void addVertex(int pointIdx, QuadPointArray points) {
+            if (vertices != null)
+                vertices.set(vertexCount, pointIdx);
+            ++vertexCount;
+            if (vertexCount == 1)
+                return;
+
+            int s = vertexCount - 2;
+            int prevIdx = vertex(s);
+            int x0 = Math.min(points.getX(prevIdx), points.getX(pointIdx)), x1 = Math.max(points.getX(prevIdx), points.getX(pointIdx));
+            int y0 = Math.min(points.getY(prevIdx), points.getY(pointIdx)), y1 = Math.max(points.getY(prevIdx), points.getY(pointIdx));
+
+            // the top box is full; add a depth above it, with a box covering the previous top box
+            if (s == 1 << FANOUT_BITS*depthCount) {
+                if (depthCount == MAX_DEPTH)
+                    throw new IllegalStateException("Too many segments for path segment index: " + s);
+                ChunkedIntArray top = new ChunkedIntArray();
+                for (int k = 0; k < 4; ++k)
+                    top.set(k, boxes[depthCount - 1].get(k));
+                boxes[depthCount++] = top;
+            }
+
+            for (int depth = 0; depth < depthCount; ++depth) {
+                int shift = FANOUT_BITS*(depth + 1);
+                int b = s >> shift;
+                boxes[depth].ensureCapacity(b*4 + 4);
+                int[] box = boxes[depth].getChunk(b*4);
+                int i = ChunkedIntArray.getChunkOffset(b*4);
+                if ((s & ((1 << shift) - 1)) == 0) {
+                    // first segment of a new box
+                    box[i] = x0;
+                    box[i + 1] = y0;
+                    box[i + 2] = x1;
+                    box[i + 3] = y1;
+                } else {
+                    box[i] = Math.min(box[i], x0);
+                    box[i + 1] = Math.min(box[i + 1], y0);
+                    box[i + 2] = Math.max(box[i + 2], x1);
+                    box[i + 3] = Math.max(box[i + 3], y1);
+                }
+            }
+        }
+
+        /** Add the segments between vertices first, ..., last to the runs. */
+        void addRun(int first, int last, PathRuns runs) {
+            if (vertices == null)
+                runs.addRange(first, last);
+            else
+                runs.add(vertices, first, last);
+        }
+
+        void query(int depth, int box, int qx0, int qy0, int qx1, int qy1, QuadPointArray points, QuadMatches matches) {
+            int first = box << FANOUT_BITS;
+            if (depth == 0) {
+                for (int s = first, end = Math.min(getSegmentCount(), first + FANOUT); s < end; ++s) {
+                    int idx = vertex(s);
+                    if (segmentIntersects(idx, vertex(s + 1), qx0, qy0, qx1, qy1, points))
+                        matches.add(idx);
+                }
+                return;
+            }
+
+            // visit children in order, so that segments are found in path order (the boxes of the children
+            // are in the same chunk, being 4*FANOUT ints aligned)
+            int[] children = boxes[depth - 1].getChunk(first*4);
+            int offset = ChunkedIntArray.getChunkOffset(first*4) - first*4;
+            for (int c = first, end = Math.min(getBoxCount(depth - 1), first + FANOUT); c < end; ++c) {
+                int i = offset + c*4;
+                if (qx0 <= children[i + 2] && qx1 >= children[i] && qy0 <= children[i + 3] && qy1 >= children[i + 1])
+                    query(depth - 1, c, qx0, qy0, qx1, qy1, points, matches);
+            }
+        }
+
+        void queryRuns(int depth, int box, int qx0, int qy0, int qx1, int qy1, QuadPointArray points, PathRuns runs) {
+            int first = box << FANOUT_BITS;
+            if (depth == 0) {
+                for (int s = first, end = Math.min(getSegmentCount(), first + FANOUT); s < end; ++s)
+                    if (segmentIntersects(vertex(s), vertex(s + 1), qx0, qy0, qx1, qy1, points))
+                        addRun(s, s + 1, runs);
+                return;
+            }
+
+            int[] children = boxes[depth - 1].getChunk(first*4);
+            int offset = ChunkedIntArray.getChunkOffset(first*4) - first*4;
+            int childShift = FANOUT_BITS*depth;
+            for (int c = first, end = Math.min(getBoxCount(depth - 1), first + FANOUT); c < end; ++c) {
+                int i = offset + c*4;
+                if (qx0 > children[i + 2] || qx1 < children[i] || qy0 > children[i + 3] || qy1 < children[i + 1])
+                    continue;
+                if (qx0 <= children[i] && qx1 >= children[i + 2] && qy0 <= children[i + 1] && qy1 >= children[i + 3]) {
+                    // all segments of the child are inside the query box
+                    addRun(c << childShift, Math.min(getSegmentCount(), (c + 1) << childShift), runs);
+                } else {
+                    queryRuns(depth - 1, c, qx0, qy0, qx1, qy1, points, runs);
+                }
+            }
+        }
+
+        long getMemoryUsage() {
+            long bytes = vertices == null ? 0 : vertices.getMemoryUsage();
+            for (int depth = 0; depth < depthCount; ++depth)
+                bytes += boxes[depth].getMemoryUsage();
+            return bytes;
+        }
+    }
+
+    private final QuadPointArray points;
+
+    /** Segment index for each level used by the level of detail configuration, null for other levels. */
+    private final LevelIndex[] levels;
+
+    /** Number of points indexed. */
+    private int pointCount;
+
+    /** Create an index for the given points, which must only be added to through this index from now on. */
+    public PathSegmentIndex(QuadPointArray points, PathLevelOfDetail levelOfDetail) {
+        this.points = points;
+        int maxLevel = 0;
+        for (int level : levelOfDetail.queryLevelByZoomLevel)
+            maxLevel = Math.max(maxLevel, level);
+        levels = new LevelIndex[maxLevel + 1];
+        for (int level : levelOfDetail.queryLevelByZoomLevel)
+            if (levels[level] == null)
+                levels[level] = new LevelIndex(level == 0);
+        indexNewPoints();
+    }
+
+    public synchronized void add(int x, int y, PathType pathType) {
+        points.add(x, y, pathType);
+        indexNewPoints();
+    }
+
+    public QuadPointArray getPoints() {
+        return points;
+    }
+
+    /** @return Number of points indexed; queries only return segments between these points. */
+    public synchronized int getPointCount() {
+        return pointCount;
+    }
+
+    private void indexNewPoints() {
+        for (; pointCount < points.nrPoints; ++pointCount) {
+            int maxLevel = Math.min(levels.length - 1, points.level(pointCount));
+            for (int level = 0; level <= maxLevel; ++level)
+                if (levels[level] != null)
+                    levels[level].addVertex(pointCount, points);
+        }
+    }
+
+    /**
+     * Find the segments drawn at the given level whose bounding box intersects the query box. Segments are
+     * identified by the index of their first point (the other end being given by {@link QuadPointArray#nextAtLevel}),
+     * and are added to matches in ascending order. This includes the last segment of the path, if it ends at
+     * a point with lower level.
+     */
+    public synchronized void querySegments(int level, int qx0, int qy0, int qx1, int qy1, QuadMatches matches) {
+        LevelIndex index = level < levels.length ? levels[level] : null;
+        if (index == null)
+            throw new IllegalArgumentException("Level not indexed: " + level);
+
+        if (index.getSegmentCount() > 0) {
+            int depth = index.depthCount - 1;
+            int[] top = index.boxes[depth].getChunk(0);
+            if (qx0 <= top[2] && qx1 >= top[0] && qy0 <= top[3] && qy1 >= top[1])
+                index.query(depth, 0, qx0, qy0, qx1, qy1, points, matches);
+        }
+
+        int lastVertex = index.vertexCount > 0 ? index.vertex(index.vertexCount - 1) : -1;
+        if (lastVertex >= 0 && lastVertex < pointCount - 1 && segmentIntersects(lastVertex, pointCount - 1, qx0, qy0, qx1, qy1, points))
+            matches.add(lastVertex);
+    }
+
+    /**
+     * Same as {@link #querySegments}, but the segments found are returned as runs of connected segments.
+     * Boxes entirely inside the query box are added as a single run without testing their segments, so
+     * the cost of a query mostly depends on the number of boxes intersecting the query box edges rather
+     * than on the number of segments found.
+     */
+    public synchronized void querySegmentRuns(int level, int qx0, int qy0, int qx1, int qy1, PathRuns runs) {
+        LevelIndex index = level < levels.length ? levels[level] : null;
+        if (index == null)
+            throw new IllegalArgumentException("Level not indexed: " + level);
+
+        int segmentCount = index.getSegmentCount();
+        if (segmentCount > 0) {
+            int depth = index.depthCount - 1;
+            int[] top = index.boxes[depth].getChunk(0);
+            if (qx0 <= top[0] && qx1 >= top[2] && qy0 <= top[1] && qy1 >= top[3])
+                index.addRun(0, segmentCount, runs);
+            else if (qx0 <= top[2] && qx1 >= top[0] && qy0 <= top[3] && qy1 >= top[1])
+                index.queryRuns(depth, 0, qx0, qy0, qx1, qy1, points, runs);
+        }
+
+        int lastVertex = index.vertexCount > 0 ? index.vertex(index.vertexCount - 1) : -1;
+        if (lastVertex >= 0 && lastVertex < pointCount - 1 && segmentIntersects(lastVertex, pointCount - 1, qx0, qy0, qx1, qy1, points))
+            runs.addSegment(lastVertex, pointCount - 1);
+    }
+
+    private static boolean segmentIntersects(int idx0, int idx1, int qx0, int qy0, int qx1, int qy1, QuadPointArray points) {
+        int x0 = points.getX(idx0), y0 = points.getY(idx0), x1 = points.getX(idx1), y1 = points.getY(idx1);
+        return qx0 <= Math.max(x0, x1) && qx1 >= Math.min(x0, x1) && qy0 <= Math.max(y0, y1) && qy1 >= Math.min(y0, y1);
+    }
+
+    /** @return Estimated heap usage in bytes of the vertex and box arrays. */
+    public synchronized long getMemoryUsage() {
+        long bytes = 0;
+        for (LevelIndex index : levels)
+            if (index != null)
+                bytes += index.getMemoryUsage();
+        return bytes;
+    }
+}
@@ -1,21 +1,10 @@
 package com.max.route;
 
-import android.graphics.Paint;
-
-import com.max.drawing.Paints;
-
+/** Type of path, such as the surface of a road. See Paints for how each type is drawn. */
 public enum PathType {
-    MAJOR_ROAD(Paints.PATH_MAJOR_ROAD, Paints.PATH_MAJOR_ROAD_OUTLINE),
-    MINOR_ROAD(Paints.PATH_MINOR_ROAD, Paints.PATH_MINOR_ROAD_OUTLINE),
+    MAJOR_ROAD,
+    MINOR_ROAD,
 
-    HISTORY(Paints.HISTORY_PATH, null),
+    HISTORY,
     ;
-
-    public final Paint paint;
-    public final Paint outlinePaint;
-
-    PathType(Paint paint, Paint outlinePaint) {
-        this.paint = paint;
-        this.outlinePaint = outlinePaint;
-    }
 }
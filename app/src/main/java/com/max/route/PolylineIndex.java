@@ -0,0 +1,139 @@
+package com.max.route;
+
+/**
+ * Spatial index over the segments of a route, where segment k is the line from point k to point k+1.
+ * Used to snap a position to the nearest point on the route itself, rather than to the nearest route
+ * point, which can be far off on sparse stretches of the route.
+ * <br>
+ * Since consecutive segments are close to each other, the index is simply a hierarchy of bounding
+ * boxes over aligned blocks of consecutive segments: each box at depth 0 covers 16 segments, each box
+ * at depth 1 covers 16 depth 0 boxes (256 segments), etc. This makes it cheap to build and store
+ * (roughly one box per 15 segments), and makes it trivial to restrict a query to a range of segments.
+ */
+public class PolylineIndex {
+    private static final int FANOUT_BITS = 4;
+    private static final int FANOUT = 1 << FANOUT_BITS;
+
+    private final QuadPointArray points;
+
+    private final int segmentCount;
+
+    /** Bounding boxes for each depth, 4 entries (x0, y0, x1, y1) per box. The last depth has a single box. */
+    private final int[][] boxes;
+
+    public PolylineIndex(QuadPointArray points) {
+        this.points = points;
+        segmentCount = Math.max(0, points.nrPoints - 1);
+
+        int depthCount = 1;
+        while (segmentCount > 1 << FANOUT_BITS*depthCount)
+            ++depthCount;
+        if (depthCount > NearestSegmentQuery.MAX_DEPTH)
+            throw new IllegalArgumentException("Too many points for polyline index: " + points.nrPoints);
+        boxes = new int[depthCount][];
+
+        // depth 0: boxes around the points of each block of segments (including the end point of the last segment)
+        int boxCount = Math.max(1, (segmentCount + FANOUT - 1) >> FANOUT_BITS);
+        boxes[0] = new int[boxCount*4];
+        for (int b = 0; b < boxCount; ++b) {
+            int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+            for (int k = b << FANOUT_BITS, end = Math.min(segmentCount, k + FANOUT); k <= end && k < points.nrPoints; ++k) {
+                x0 = Math.min(x0, points.getX(k));
+                y0 = Math.min(y0, points.getY(k));
+                x1 = Math.max(x1, points.getX(k));
+                y1 = Math.max(y1, points.getY(k));
+            }
+            setBox(boxes[0], b, x0, y0, x1, y1);
+        }
+
+        // remaining depths: union of the child boxes
+        for (int depth = 1; depth < depthCount; ++depth) {
+            int[] children = boxes[depth - 1];
+            int childCount = children.length/4;
+            boxCount = (childCount + FANOUT - 1) >> FANOUT_BITS;
+            boxes[depth] = new int[boxCount*4];
+            for (int b = 0; b < boxCount; ++b) {
+                int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+                for (int c = b << FANOUT_BITS, end = Math.min(childCount, c + FANOUT); c < end; ++c) {
+                    x0 = Math.min(x0, children[c*4]);
+                    y0 = Math.min(y0, children[c*4 + 1]);
+                    x1 = Math.max(x1, children[c*4 + 2]);
+                    y1 = Math.max(y1, children[c*4 + 3]);
+                }
+                setBox(boxes[depth], b, x0, y0, x1, y1);
+            }
+        }
+    }
+
+    private static void setBox(int[] boxes, int b, int x0, int y0, int x1, int y1) {
+        boxes[b*4] = x0;
+        boxes[b*4 + 1] = y0;
+        boxes[b*4 + 2] = x1;
+        boxes[b*4 + 3] = y1;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /** @see #getNearestSegment(int, int, int, int, double, NearestSegmentQuery) */
+    public int getNearestSegment(int qx, int qy, NearestSegmentQuery query) {
+        return getNearestSegment(qx, qy, 0, segmentCount, Double.MAX_VALUE, query);
+    }
+
+    /**
+     * Find the segment nearest to the query point among the segments [beginIdx, endIdx), where only
+     * segments strictly nearer than maxDist are considered. (If the distance to some route point in the
+     * range is already known, passing it slightly increased guarantees that a segment is found.)
+     * The result, including the projected point, is stored in the query.
+     * @param maxDist Squared distance.
+     * @return Index of the nearest segment, or -1 if no segment was found.
+     */
+    public int getNearestSegment(int qx, int qy, int beginIdx, int endIdx, double maxDist, NearestSegmentQuery query) {
+        query.reset(qx, qy, maxDist);
+        beginIdx = Math.max(0, beginIdx);
+        endIdx = Math.min(segmentCount, endIdx);
+        if (beginIdx < endIdx)
+            getNearestSegmentRecursive(boxes.length - 1, 0, beginIdx, endIdx, query);
+        return query.bestIdx;
+    }
+
+    /** Test each of the segments [beginIdx, endIdx) against the query, without using the index. */
+    void testSegments(int beginIdx, int endIdx, NearestSegmentQuery query) {
+        for (int k = Math.max(0, beginIdx), end = Math.min(segmentCount, endIdx); k < end; ++k)
+            query.test(k, points.getX(k), points.getY(k), points.getX(k + 1), points.getY(k + 1));
+    }
+
+    private void getNearestSegmentRecursive(int depth, int box, int beginIdx, int endIdx, NearestSegmentQuery query) {
+        // range of children (boxes at depth-1, or segments at depth 0) that overlap the index range
+        int childShift = FANOUT_BITS*depth;
+        int first = Math.max(box << FANOUT_BITS, beginIdx >> childShift);
+        int last = Math.min((box + 1) << FANOUT_BITS, ((endIdx - 1) >> childShift) + 1);
+
+        if (depth == 0) {
+            testSegments(first, last, query);
+            return;
+        }
+
+        // visit nearest children first, so to quickly find a good best estimate and reduce overall visit count
+        int[] children = boxes[depth - 1];
+        int row = depth*FANOUT, count = 0;
+        for (int c = first; c < last; ++c) {
+            long dist = QuadNode.boxDist2(query.qx, query.qy, children[c*4], children[c*4 + 1], children[c*4 + 2], children[c*4 + 3]);
+            if (dist >= query.bestDist)
+                continue;
+
+            // insertion sort on distance
+            int k = count++;
+            for (; k > 0 && query.childDist[row + k - 1] > dist; --k) {
+                query.childDist[row + k] = query.childDist[row + k - 1];
+                query.childOrder[row + k] = query.childOrder[row + k - 1];
+            }
+            query.childDist[row + k] = dist;
+            query.childOrder[row + k] = c;
+        }
+
+        for (int k = 0; k < count && query.childDist[row + k] < query.bestDist; ++k)
+            getNearestSegmentRecursive(depth - 1, query.childOrder[row + k], beginIdx, endIdx, query);
+    }
+}
@@ -0,0 +1,29 @@
+package com.max.route;
+
+import java.util.Arrays;
+
+/** Growable list of point indices found by querying a {@link SpatialIndex} or {@link PathSegmentIndex}. */
+public class QuadMatches {
+    private static final int INITIAL_CAPACITY = 2048;
+
+    private int[] matchIdx = new int[INITIAL_CAPACITY];
+    public int matchCount;
+
+    public void clear() {
+        matchCount = 0;
+    }
+    public void add(int idx) {
+        if (matchCount == matchIdx.length) {
+            // array full, double it in size
+            int[] newArray = new int[matchCount << 1];
+            System.arraycopy(matchIdx, 0, newArray, 0, matchCount);
+            matchIdx = newArray;
+        }
+
+        matchIdx[matchCount++] = idx;
+    }
+    public int get(int idx) {
+        return matchIdx[idx];
+    }
+    public void sort() { Arrays.sort(matchIdx, 0, matchCount); }
+}
@@ -1,7 +1,5 @@
 package com.max.route;
 
-import com.max.drawing.Renderer;
-
 import java.io.Serializable;
 import java.util.List;
 
@@ -16,8 +14,12 @@ import java.util.List;
  * <br>
  * Each node contains a bucket of points rather than a single point. This is done in order
  * to reduce memory usage and speed up querying (less recursion and better memory locality). 
+ * <br>
+ * Each node also keeps the minimum and maximum index of any point contained under it. Since route points
+ * are sequential, this allows a single tree to answer queries restricted to an index range (such as
+ * the part of the route between two waypoints) without visiting much more of the tree.
  */
-public class QuadNode implements Serializable {
+public class QuadNode implements Serializable, SpatialIndex {
     private static final long serialVersionUID = 1L;
 
     /**
@@ -25,28 +27,31 @@ public class QuadNode implements Serializable {
      * (less iterating during node splitting). Larger bucket sizes mean less memory used and potentially less time
      * spent querying the tree (less recursion, better memory locality).
      */
-    private static final int CAPACITY = 16;
+    static final int CAPACITY = 16;
 
     /** Extreme points for this node. */
     public final int x0, y0, x1, y1;
 
     /** Maximum level of any point that is contained in this node. */
-    private int maxChildLevel = -1;
+    int maxChildLevel = -1;
+
+    /** Minimum and maximum index of any point that is contained in this node (including its children). */
+    int minPointIdx = Integer.MAX_VALUE, maxPointIdx = -1;
 
     /** Children of this node. */
-    private QuadNode[] q;
+    QuadNode[] q;
 
     /** Points in this bucket. */
-    private int[] pointIdx = new int[CAPACITY];
+    int[] pointIdx = new int[CAPACITY];
 
     /**
-     * Level for each point. Although this can easily be calculated form the point index, it is slightly more
+     * Level for each point. Although this can easily be looked up from the point array, it is slightly more
      * efficient to keep it stored.
      */
-    private int[] level = new int[CAPACITY];
+    int[] level = new int[CAPACITY];
 
     /** Number of points in the bucket. */
-    private int pointCount = 0;
+    int pointCount = 0;
 
     /** Bucket index of point with minimum level (or, in case of ties, maximum point index). */
     private int minIdx = 0;
@@ -58,14 +63,16 @@ public class QuadNode implements Serializable {
         this.y1 = y1;
     }
 
-    /** @return Level ranging from 0 - 32 (Integer.SIZE). */
+    /** @return Default level of the point with the given index (see {@link QuadPointArray#level}), ranging from 0 - 32 (Integer.SIZE). */
     public static final int level(int idx) {
         return Integer.numberOfTrailingZeros(idx);
     }
 
     /** Insert a new leaf by traversing the tree and splitting the final node if necessary. */
     public void insertPoint(int newPointIdx, QuadPointArray points) {
-        int newLevel = level(newPointIdx);
+        int newLevel = points.level(newPointIdx);
+        minPointIdx = Math.min(minPointIdx, newPointIdx);
+        maxPointIdx = Math.max(maxPointIdx, newPointIdx);
 
         if (pointCount < QuadNode.CAPACITY) {
             // point fits in existing node; add it
@@ -104,7 +111,7 @@ public class QuadNode implements Serializable {
             }
 
             int xm = (x0+x1)/2, ym = (y0+y1)/2;
-            int k = (points.x[newPointIdx] <= xm ? 0 : 1) + (points.y[newPointIdx] <= ym ? 0 : 2);
+            int k = (points.getX(newPointIdx) <= xm ? 0 : 1) + (points.getY(newPointIdx) <= ym ? 0 : 2);
 
             // split node if it's not already split; create child node if it doesn't already exist
             if (q == null)
@@ -116,10 +123,11 @@ public class QuadNode implements Serializable {
         }
     }
 
-    public void queryTree(int minLevel, int qx0, int qy0, int qx1, int qy1, QuadPointArray points, Renderer.QuadMatches matches) {
+    @Override
+    public void queryTree(int minLevel, int qx0, int qy0, int qx1, int qy1, QuadPointArray points, QuadMatches matches) {
         for (int p = 0; p < pointCount; ++p) {
             int idx = pointIdx[p];
-            int x = points.x[idx], y = points.y[idx];
+            int x = points.getX(idx), y = points.getY(idx);
             if (level[p] >= minLevel && qx0 <= x && qx1 >= x && qy0 <= y && qy1 >= y)
                 matches.add(idx);
         }
@@ -129,50 +137,156 @@ public class QuadNode implements Serializable {
                     q[k].queryTree(minLevel, qx0, qy0, qx1, qy1, points, matches);
     }
 
-    /** This method does not support hierarchies; it searches ALL points. */
+    @Override
+    public void queryTree(int minLevel, int qx0, int qy0, int qx1, int qy1, int beginIdx, int endIdx, QuadPointArray points, QuadMatches matches) {
+        for (int p = 0; p < pointCount; ++p) {
+            int idx = pointIdx[p];
+            int x = points.getX(idx), y = points.getY(idx);
+            if (level[p] >= minLevel && idx >= beginIdx && idx < endIdx && qx0 <= x && qx1 >= x && qy0 <= y && qy1 >= y)
+                matches.add(idx);
+        }
+        if (q != null)
+            for (int k = 0; k < 4; ++k)
+                if (q[k] != null && q[k].maxChildLevel >= minLevel && q[k].overlapsIndexRange(beginIdx, endIdx) && qx0 <= q[k].x1 && qx1 >= q[k].x0 && qy0 <= q[k].y1 && qy1 >= q[k].y0)
+                    q[k].queryTree(minLevel, qx0, qy0, qx1, qy1, beginIdx, endIdx, points, matches);
+    }
+
+    /** @return True if this node may contain points with index in [beginIdx, endIdx). */
+    private boolean overlapsIndexRange(int beginIdx, int endIdx) {
+        return minPointIdx < endIdx && maxPointIdx >= beginIdx;
+    }
+
+    /**
+     * This method does not support hierarchies; it searches ALL points (see the overloads for searching a
+     * range of point indices). Uses the calling thread's pooled query state, so it is safe to call from
+     * multiple threads at the same time.
+     */
     public int getNearestNeighbor(int qx, int qy, QuadPointArray points) {
-        bestIdx = -1;
-        bestDist = 1L<<62;
-        getNearestNeighborRecursive(qx, qy, points);
-        return bestIdx;
+        return getNearestNeighbor(qx, qy, points, NearestNeighborQuery.get());
     }
 
-    // note: the below constants make this class not thread safe
-    private static int bestIdx;
-    private static long bestDist;
-    private static final long[] xd = {0, 0, 0};
-    private static final long[] yd = {0, 0, 0};
+    /** Same as {@link #getNearestNeighbor(int, int, QuadPointArray)}, with the search state kept in the given query. */
+    public int getNearestNeighbor(int qx, int qy, QuadPointArray points, NearestNeighborQuery query) {
+        return getNearestNeighbor(qx, qy, 0, Integer.MAX_VALUE, points, query);
+    }
+
+    /** @return Index of the nearest point with index in [beginIdx, endIdx), or -1 if there is no such point. */
+    public int getNearestNeighbor(int qx, int qy, int beginIdx, int endIdx, QuadPointArray points) {
+        return getNearestNeighbor(qx, qy, beginIdx, endIdx, points, NearestNeighborQuery.get());
+    }
+
+    /** Same as {@link #getNearestNeighbor(int, int, int, int, QuadPointArray)}, with the search state kept in the given query. */
+    @Override
+    public int getNearestNeighbor(int qx, int qy, int beginIdx, int endIdx, QuadPointArray points, NearestNeighborQuery query) {
+        query.reset(qx, qy);
+        if (overlapsIndexRange(beginIdx, endIdx))
+            getNearestNeighborRecursive(beginIdx, endIdx, query, points);
+        return query.bestIdx;
+    }
 
-    private void getNearestNeighborRecursive(int qx, int qy, QuadPointArray points) {
+    private void getNearestNeighborRecursive(int beginIdx, int endIdx, NearestNeighborQuery query, QuadPointArray points) {
         // test point for proximity
-        if (pointIdx != null) {
-            for (int p = 0; p < pointCount; ++p) {
-                int x = points.x[pointIdx[p]], y = points.y[pointIdx[p]];
-                long dist = (long) (x - qx) * (x - qx) + (long) (y - qy) * (y - qy);
-                if (dist < bestDist) {
-                    bestDist = dist;
-                    bestIdx = pointIdx[p];
-                }
+        for (int p = 0; p < pointCount; ++p)
+            if (pointIdx[p] >= beginIdx && pointIdx[p] < endIdx)
+                query.test(pointIdx[p], points.getX(pointIdx[p]), points.getY(pointIdx[p]));
+
+        if (q != null) {
+            // visit most likely children first, so to quickly find a good best estimate and reduce overall visit count
+            int xOrder = query.qx <= (x0+x1)>>1 ? 0 : 1;
+            int yOrder = query.qy <= (y0+y1)>>1 ? 0 : 1;
+            for (int i = 0; i < 4; ++i) {
+                int k = ((i&1)^xOrder) + (((i>>1)^yOrder)<<1);
+                if (q[k] != null && q[k].overlapsIndexRange(beginIdx, endIdx) && query.isCandidate(q[k].x0, q[k].y0, q[k].x1, q[k].y1))
+                    q[k].getNearestNeighborRecursive(beginIdx, endIdx, query, points);
             }
         }
+    }
+
+    /**
+     * Find the nearest points (at most as many as the query was created for) with at least the given level,
+     * within the given radius of the query point. Results are stored in the query, ordered by ascending distance.
+     * @param radius Maximum distance (inclusive); use Integer.MAX_VALUE for no limit.
+     */
+    public void getNearestNeighbors(int minLevel, int qx, int qy, int radius, QuadPointArray points, KNearestQuery query) {
+        query.reset(qx, qy, (long) radius * radius + 1);
+        if (maxChildLevel >= minLevel)
+            getNearestNeighborsRecursive(minLevel, query, points);
+        query.finish();
+    }
+
+    private void getNearestNeighborsRecursive(int minLevel, KNearestQuery query, QuadPointArray points) {
+        for (int p = 0; p < pointCount; ++p)
+            if (level[p] >= minLevel)
+                query.test(pointIdx[p], points.getX(pointIdx[p]), points.getY(pointIdx[p]));
 
         if (q != null) {
-            // visit most likely children first, so to quickly find a good best estimate and reduce overall visit count
-            int xOrder = qx <= (x0+x1)>>1 ? 0 : 1;
-            int yOrder = qy <= (y0+y1)>>1 ? 0 : 1;
+            // visit most likely children first, so that the bound shrinks as quickly as possible
+            int xOrder = query.qx <= (x0+x1)>>1 ? 0 : 1;
+            int yOrder = query.qy <= (y0+y1)>>1 ? 0 : 1;
             for (int i = 0; i < 4; ++i) {
                 int k = ((i&1)^xOrder) + (((i>>1)^yOrder)<<1);
-                if (q[k] != null) {
-                    int x0 = q[k].x0, y0 = q[k].y0, x1 = q[k].x1, y1 = q[k].y1;
-
-                    // find minimum distance from query point to child
-                    xd[0] = q[k].x0 - qx; xd[1] = q[k].x1 - qx;
-                    yd[0] = q[k].y0 - qy; yd[1] = q[k].y1 - qy;
-                    int xi = qx < x0 ? 0 : (qx > x1 ? 1 : 2), yi = qy < y0 ? 0 : (qy > y1 ? 1 : 2);
-                    if (xd[xi]*xd[xi] + yd[yi]*yd[yi] < bestDist)
-                        q[k].getNearestNeighborRecursive(qx, qy, points);
-                }
+                if (q[k] != null && q[k].maxChildLevel >= minLevel && query.isCandidate(q[k].x0, q[k].y0, q[k].x1, q[k].y1))
+                    q[k].getNearestNeighborsRecursive(minLevel, query, points);
             }
         }
     }
+
+    /** Find all points with at least the given level within the given radius (inclusive) of the query point, in no particular order. */
+    public void queryRadius(int minLevel, int qx, int qy, int radius, QuadPointArray points, QuadMatches matches) {
+        if (maxChildLevel >= minLevel)
+            queryRadius(minLevel, qx, qy, (long) radius * radius, points, matches);
+    }
+
+    private void queryRadius(int minLevel, int qx, int qy, long radius2, QuadPointArray points, QuadMatches matches) {
+        for (int p = 0; p < pointCount; ++p) {
+            int idx = pointIdx[p];
+            long dx = points.getX(idx) - qx, dy = points.getY(idx) - qy;
+            if (level[p] >= minLevel && dx*dx + dy*dy <= radius2)
+                matches.add(idx);
+        }
+        if (q != null)
+            for (int k = 0; k < 4; ++k)
+                if (q[k] != null && q[k].maxChildLevel >= minLevel && boxDist2(qx, qy, q[k].x0, q[k].y0, q[k].x1, q[k].y1) <= radius2)
+                    q[k].queryRadius(minLevel, qx, qy, radius2, points, matches);
+    }
+
+    /** @return Squared distance from the given point to the nearest point of the given rectangle (0 if inside). */
+    static long boxDist2(int qx, int qy, int x0, int y0, int x1, int y1) {
+        long dx = qx < x0 ? x0 - qx : (qx > x1 ? qx - x1 : 0);
+        long dy = qy < y0 ? y0 - qy : (qy > y1 ? qy - y1 : 0);
+        return dx*dx + dy*dy;
+    }
+
+    /** @return Number of nodes in the tree rooted at this node. */
+    public int getNodeCount() {
+        int count = 1;
+        if (q != null)
+            for (int k = 0; k < 4; ++k)
+                if (q[k] != null)
+                    count += q[k].getNodeCount();
+        return count;
+    }
+
+    /**
+     * @return Estimated heap usage in bytes of the tree rooted at this node, assuming 12 byte object
+     * headers, 4 byte references and 8 byte alignment (typical for a 64 bit VM with compressed oops).
+     */
+    @Override
+    public long getMemoryUsage() {
+        // object header + 9 int fields + 3 references
+        long bytes = align(12 + 9*4 + 3*4);
+        // pointIdx and level arrays
+        bytes += 2 * align(16 + CAPACITY*4);
+        if (q != null) {
+            bytes += align(16 + 4*4);
+            for (int k = 0; k < 4; ++k)
+                if (q[k] != null)
+                    bytes += q[k].getMemoryUsage();
+        }
+        return bytes;
+    }
+
+    static long align(long bytes) {
+        return bytes + 7 & ~7;
+    }
 }
\ No newline at end of file
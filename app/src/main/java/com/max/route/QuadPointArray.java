@@ -1,48 +1,176 @@
 package com.max.route;
 
+import java.util.Arrays;
+
+/**
+ * Points of a path, such as a route or the GPS history, with a path type and a level (see {@link QuadNode})
+ * for each point.
+ * <br>
+ * Points are stored in fixed size chunks, with path types as byte ordinals rather than enum references
+ * (9 bytes per point in total, and one more for custom levels). Growing the array only allocates a new chunk, and never copies the points
+ * already added, so a long GPS history doesn't temporarily need twice its memory when growing.
+ */
 public class QuadPointArray {
-    public int[] x;
-    public int[] y;
-    public PathType[] pathType;
+    /** Number of points per chunk, as a power of 2. */
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final PathType[] PATH_TYPES = PathType.values();
+
+    /** Number of points in each block of {@link #blockMaxLevel}, as a power of 2. */
+    private static final int BLOCK_BITS = 6;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    /** Number of points in each group of blocks of {@link #groupMaxLevel}, as a power of 2. */
+    private static final int GROUP_BITS = 2*BLOCK_BITS;
+    private static final int GROUP_SIZE = 1 << GROUP_BITS;
+    private static final int GROUP_MASK = GROUP_SIZE - 1;
+
+    /**
+     * Chunks of coordinates (x and y interleaved, so that both are read from the same cache line) and path type
+     * ordinals; chunk c holds the points [c*CHUNK_SIZE, (c+1)*CHUNK_SIZE).
+     */
+    private int[][] xy;
+    private byte[][] pathType;
+
+    /** Number of allocated chunks. */
+    private int chunkCount;
 
     public int nrPoints;
 
-    public QuadPointArray(int[] x, int[] y, PathType[] pathType) {
-        this.x = x;
-        this.y = y;
-        this.pathType = pathType;
-        this.nrPoints = x.length;
-        assert y.length == nrPoints;
-        assert pathType.length == nrPoints;
-    }
+    /**
+     * Level of each point (see {@link QuadNode}), or null to use the default levels given by
+     * {@link QuadNode#level(int)}, which only depend on the index of each point.
+     */
+    private byte[] level;
+
+    /**
+     * Maximum level of the points in each aligned block of BLOCK_SIZE points, and in each aligned group of
+     * GROUP_SIZE points (only used with custom levels). Finding the next point with at least a given level
+     * skips the blocks and groups without one, so it never looks at more than a few blocks worth of levels,
+     * for a fraction of a byte per point.
+     */
+    private byte[] blockMaxLevel, groupMaxLevel;
 
-    public QuadPointArray(int initialCapacity) {
-        x = new int[initialCapacity];
-        y = new int[initialCapacity];
-        pathType = new PathType[initialCapacity];
-        nrPoints = 0;
+    /** @param expectedSize Expected number of points, used to size the chunk directory. */
+    public QuadPointArray(int expectedSize) {
+        int directorySize = Math.max(1, (expectedSize + CHUNK_MASK) >> CHUNK_BITS);
+        xy = new int[directorySize][];
+        pathType = new byte[directorySize][];
     }
 
     public void add(int px, int py, PathType pSurface) {
-        if (nrPoints == x.length) {
-            // arrays full, double them in size
-            int newSize = nrPoints << 1;
-            int[] newX = new int[newSize];
-            int[] newY = new int[newSize];
-            PathType[] newPathType = new PathType[newSize];
-
-            System.arraycopy(x, 0, newX, 0, nrPoints);
-            System.arraycopy(y, 0, newY, 0, nrPoints);
-            System.arraycopy(pathType, 0, newPathType, 0, nrPoints);
-
-            x = newX;
-            y = newY;
-            pathType = newPathType;
+        if (level != null)
+            throw new IllegalStateException("Can not add points when custom levels are used");
+
+        int chunk = nrPoints >> CHUNK_BITS;
+        if (chunk == chunkCount) {
+            // all chunks full, allocate a new one (doubling the chunk directory if it's full)
+            if (chunk == xy.length) {
+                int newSize = chunk << 1;
+                xy = Arrays.copyOf(xy, newSize);
+                pathType = Arrays.copyOf(pathType, newSize);
+            }
+            xy[chunk] = new int[CHUNK_SIZE*2];
+            pathType[chunk] = new byte[CHUNK_SIZE];
+            ++chunkCount;
         }
 
-        x[nrPoints] = px;
-        y[nrPoints] = py;
-        pathType[nrPoints] = pSurface;
+        int k = nrPoints & CHUNK_MASK;
+        xy[chunk][k*2] = px;
+        xy[chunk][k*2 + 1] = py;
+        pathType[chunk][k] = (byte) pSurface.ordinal();
         nrPoints++;
     }
+
+    public int getX(int idx) {
+        return xy[idx >> CHUNK_BITS][(idx & CHUNK_MASK)*2];
+    }
+
+    public int getY(int idx) {
+        return xy[idx >> CHUNK_BITS][(idx & CHUNK_MASK)*2 + 1];
+    }
+
+    public PathType getPathType(int idx) {
+        return PATH_TYPES[pathType[idx >> CHUNK_BITS][idx & CHUNK_MASK]];
+    }
+
+    /**
+     * Use custom levels, such as those calculated by {@link VisvalingamRanking}, rather than levels based on the
+     * point index. The first and last points must have the maximum level ({@link Integer#SIZE}).
+     */
+    public void setLevels(byte[] level) {
+        byte[] blockMax = new byte[(nrPoints + BLOCK_MASK) >> BLOCK_BITS];
+        byte[] groupMax = new byte[(nrPoints + GROUP_MASK) >> GROUP_BITS];
+        for (int k = 0; k < nrPoints; ++k) {
+            blockMax[k >> BLOCK_BITS] = (byte) Math.max(blockMax[k >> BLOCK_BITS], level[k]);
+            groupMax[k >> GROUP_BITS] = (byte) Math.max(groupMax[k >> GROUP_BITS], level[k]);
+        }
+
+        this.level = level;
+        this.blockMaxLevel = blockMax;
+        this.groupMaxLevel = groupMax;
+    }
+
+    /** @return Level of the given point, ranging from 0 - 32 (Integer.SIZE). */
+    public int level(int idx) {
+        return level == null ? QuadNode.level(idx) : level[idx];
+    }
+
+    /** @return Index of the first point after idx with at least the given level, or the last point if there is no such point. */
+    public int nextAtLevel(int idx, int minLevel) {
+        int next;
+        if (minLevel == 0)
+            next = idx + 1;
+        else if (level == null)
+            next = (int) Math.min(((long) idx >> minLevel) + 1 << minLevel, Integer.MAX_VALUE);
+        else
+            next = findNext(idx + 1, minLevel);
+        return Math.min(next, nrPoints - 1);
+    }
+
+    /** @return Index of the last point before idx with at least the given level (0 if idx is 0). */
+    public int prevAtLevel(int idx, int minLevel) {
+        if (idx <= 0)
+            return 0;
+        if (minLevel == 0)
+            return Math.min(idx, nrPoints) - 1;
+        if (level == null)
+            return (int) ((long) (idx - 1) >> minLevel << minLevel);
+        return findPrev(Math.min(idx, nrPoints) - 1, minLevel);
+    }
+
+    /** @return Index of the first point from k on with at least the given level (custom levels), or nrPoints if none. */
+    private int findNext(int k, int minLevel) {
+        while (k < nrPoints) {
+            if ((k & GROUP_MASK) == 0 && groupMaxLevel[k >> GROUP_BITS] < minLevel) {
+                k += GROUP_SIZE;
+            } else if ((k & BLOCK_MASK) == 0 && blockMaxLevel[k >> BLOCK_BITS] < minLevel) {
+                k += BLOCK_SIZE;
+            } else {
+                if (level[k] >= minLevel)
+                    return k;
+                ++k;
+            }
+        }
+        return nrPoints;
+    }
+
+    /** @return Index of the last point up to k with at least the given level (custom levels), or 0 if none. */
+    private int findPrev(int k, int minLevel) {
+        while (k > 0) {
+            if ((k & GROUP_MASK) == GROUP_MASK && groupMaxLevel[k >> GROUP_BITS] < minLevel) {
+                k -= GROUP_SIZE;
+            } else if ((k & BLOCK_MASK) == BLOCK_MASK && blockMaxLevel[k >> BLOCK_BITS] < minLevel) {
+                k -= BLOCK_SIZE;
+            } else {
+                if (level[k] >= minLevel)
+                    return k;
+                --k;
+            }
+        }
+        return 0;
+    }
 }
@@ -0,0 +1,224 @@
+package com.max.route;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Bulk loader for {@link QuadNode} trees. Builds the exact same tree as inserting the points one at a
+ * time through {@link QuadNode#insertPoint}, but much faster:
+ * <ul>
+ * <li>All points are sorted once by priority (highest level first, and in case of ties, lowest index
+ * first). This is a counting sort on the level, so it runs in linear time.</li>
+ * <li>Nodes are then built top-down, where the points contained under a node are a contiguous range
+ * of the sorted points. Since the range is sorted by priority, the node's bucket is simply the first
+ * points of the range, and the rest is partitioned by quadrant (keeping the priority order) into the
+ * ranges of the children. This is effectively an MSD radix sort on the quadrant path of each point
+ * (similar to a Morton code, but computed with the same node splitting arithmetic as the tree itself).
+ * No points are pushed up and down the tree, and no bucket minimum needs to be recalculated.</li>
+ * <li>The subtrees of the root are built in parallel.</li>
+ * </ul>
+ * The tree is built top-down rather than bottom-up, since which points end up in a node's bucket
+ * depends on which points were kept by its ancestors (higher level points are kept nearer the root).
+ */
+public class QuadTreeBuilder {
+    /** Ranges smaller than this are not worth splitting across threads. */
+    private static final int MIN_PARALLEL_POINTS = 4096;
+
+    private static ExecutorService executor;
+
+    /**
+     * Shared pool for CPU bound work on the route index. (ForkJoinPool would be the natural choice but
+     * is not available on all supported API levels.)
+     */
+    static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "QuadTreeBuilder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /** Build a tree containing all points. */
+    public static QuadNode build(QuadPointArray points) {
+        return build(points, 0, points.nrPoints);
+    }
+
+    /** Build a tree containing the points in the range [beginIdx, endIdx), bounded by their bounding box. */
+    public static QuadNode build(QuadPointArray points, int beginIdx, int endIdx) {
+        return new QuadTreeBuilder(points, beginIdx, endIdx).build(true);
+    }
+
+    /**
+     * Same as {@link #build(QuadPointArray, int, int)}, but built entirely on the calling thread. Must be
+     * used by tasks running on the shared pool, which would otherwise wait on tasks queued behind themselves.
+     */
+    static QuadNode buildSerial(QuadPointArray points, int beginIdx, int endIdx) {
+        return new QuadTreeBuilder(points, beginIdx, endIdx).build(false);
+    }
+
+    static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for route index task", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Route index task failed", e.getCause());
+        }
+    }
+
+    private final QuadPointArray points;
+
+    private final int beginIdx, endIdx;
+
+    /** Point indices, sorted by priority within the range of each node. */
+    private final int[] order;
+
+    /** Scratch space for partitioning. Nodes being built in parallel use disjoint parts of it. */
+    private final int[] buffer;
+
+    private QuadTreeBuilder(QuadPointArray points, int beginIdx, int endIdx) {
+        this.points = points;
+        this.beginIdx = beginIdx;
+        this.endIdx = endIdx;
+        order = new int[Math.max(0, endIdx - beginIdx)];
+        buffer = new int[order.length];
+    }
+
+    private QuadNode build(boolean parallel) {
+        if (beginIdx >= endIdx)
+            return new QuadNode(0, 0, 0, 0);
+
+        // find points bounding box (min/max)
+        int x0 = 1<<30, y0 = 1<<30, x1 = -(1<<30), y1 = -(1<<30);
+        for (int k = beginIdx; k < endIdx; ++k) {
+            x0 = Math.min(x0, points.getX(k));
+            y0 = Math.min(y0, points.getY(k));
+            x1 = Math.max(x1, points.getX(k));
+            y1 = Math.max(y1, points.getY(k));
+        }
+
+        sortByPriority();
+
+        QuadNode root = new QuadNode(x0, y0, x1, y1);
+        if (parallel && order.length >= MIN_PARALLEL_POINTS)
+            buildNodeParallel(root);
+        else
+            buildNode(root, 0, order.length);
+        return root;
+    }
+
+    /** Counting sort by level (descending); indices within a level are kept in ascending order. */
+    private void sortByPriority() {
+        int[] levelStart = new int[Integer.SIZE + 2];
+        for (int k = beginIdx; k < endIdx; ++k)
+            ++levelStart[Integer.SIZE - points.level(k) + 1];
+        for (int lvl = 1; lvl < levelStart.length; ++lvl)
+            levelStart[lvl] += levelStart[lvl - 1];
+        for (int k = beginIdx; k < endIdx; ++k)
+            order[levelStart[Integer.SIZE - points.level(k)]++] = k;
+    }
+
+    /** Build the root on this thread, then its child subtrees in parallel. */
+    private void buildNodeParallel(final QuadNode root) {
+        final int lo = fillBucket(root, 0, order.length);
+        final int[] childStart = splitByQuadrant(root, lo, order.length);
+
+        List<Future<QuadNode>> futures = new ArrayList<>(4);
+        for (int k = 0; k < 4; ++k) {
+            final int quadrant = k;
+            futures.add(childStart[k] == childStart[k+1] ? null : getExecutor().submit(new Callable<QuadNode>() {
+                @Override public QuadNode call() {
+                    QuadNode child = createChild(root, quadrant);
+                    buildNode(child, childStart[quadrant], childStart[quadrant+1]);
+                    return child;
+                }
+            }));
+        }
+
+        for (int k = 0; k < 4; ++k) {
+            if (futures.get(k) != null) {
+                if (root.q == null)
+                    root.q = new QuadNode[4];
+                root.q[k] = getResult(futures.get(k));
+                includeIndexRange(root, root.q[k]);
+            }
+        }
+    }
+
+    /** Build the subtree for the given node, containing the points order[lo, hi). */
+    private void buildNode(QuadNode node, int lo, int hi) {
+        lo = fillBucket(node, lo, hi);
+        if (lo == hi)
+            return;
+
+        int[] childStart = splitByQuadrant(node, lo, hi);
+        node.q = new QuadNode[4];
+        for (int k = 0; k < 4; ++k) {
+            if (childStart[k] != childStart[k+1]) {
+                node.q[k] = createChild(node, k);
+                buildNode(node.q[k], childStart[k], childStart[k+1]);
+                includeIndexRange(node, node.q[k]);
+            }
+        }
+    }
+
+    /** Extend the node's index range with that of the given child (which was not built through insertPoint on the node). */
+    private static void includeIndexRange(QuadNode node, QuadNode child) {
+        node.minPointIdx = Math.min(node.minPointIdx, child.minPointIdx);
+        node.maxPointIdx = Math.max(node.maxPointIdx, child.maxPointIdx);
+    }
+
+    private static QuadNode createChild(QuadNode node, int k) {
+        int xm = (node.x0+node.x1)/2, ym = (node.y0+node.y1)/2;
+        return new QuadNode((k&1)==0 ? node.x0 : xm+1, k>>1==0 ? node.y0 : ym+1, (k&1)==0 ? xm : node.x1, k>>1==0 ? ym : node.y1);
+    }
+
+    /**
+     * Insert the (up to) {@link QuadNode#CAPACITY} highest priority points of order[lo, hi) into the node's bucket.
+     * @return Start of remaining points.
+     */
+    private int fillBucket(QuadNode node, int lo, int hi) {
+        int end = Math.min(hi, lo + QuadNode.CAPACITY);
+        for (int k = lo; k < end; ++k)
+            node.insertPoint(order[k], points);
+        return end;
+    }
+
+    /**
+     * Stable partition of order[lo, hi), which are all contained in the given node, into the node's four quadrants.
+     * @return Start of each quadrant's range (size 5, with the last element being hi).
+     */
+    private int[] splitByQuadrant(QuadNode node, int lo, int hi) {
+        int xm = (node.x0+node.x1)/2, ym = (node.y0+node.y1)/2;
+
+        int[] childStart = new int[5];
+        for (int k = lo; k < hi; ++k)
+            ++childStart[quadrant(order[k], xm, ym) + 1];
+        childStart[0] = lo;
+        for (int k = 1; k < 5; ++k)
+            childStart[k] += childStart[k - 1];
+
+        int[] pos = {childStart[0], childStart[1], childStart[2], childStart[3]};
+        for (int k = lo; k < hi; ++k)
+            buffer[pos[quadrant(order[k], xm, ym)]++] = order[k];
+        System.arraycopy(buffer, lo, order, lo, hi - lo);
+
+        return childStart;
+    }
+
+    private int quadrant(int idx, int xm, int ym) {
+        return (points.getX(idx) <= xm ? 0 : 1) + (points.getY(idx) <= ym ? 0 : 2);
+    }
+}
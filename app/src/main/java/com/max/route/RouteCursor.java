@@ -0,0 +1,116 @@
+package com.max.route;
+
+/**
+ * Incremental version of {@link PolylineIndex#getNearestSegment}, for a sequence of query points that
+ * move along the route (such as consecutive GPS positions). Rather than searching the index for each
+ * position, only a small window of segments around the previous match is searched, which is usually
+ * less than 20 distance calculations (or none at all, if the position is unchanged).
+ * <br>
+ * The result is the same as that of a full search: whenever the index is searched, the distance from
+ * the query point to the nearest segment outside the window (the "safe radius") is calculated as well.
+ * Having moved a distance m since then, no segment outside the window can be nearer than the safe
+ * radius minus m, so a match within the window that is at most that distance away must be the nearest
+ * segment. Otherwise (or if the index range changes) the index is searched again and the window is
+ * re-centered. This also makes the cursor work with routes that cross or run close to themselves:
+ * segments from other parts of the route simply shrink the safe radius, so that the index is searched
+ * more often near them.
+ * <br>
+ * Instances are not thread safe.
+ */
+public class RouteCursor {
+    /** Number of segments before and after the matched segment that are searched locally. */
+    private static final int WINDOW_SIZE = 8;
+
+    /** Upper bound of the safe radius (in meters), to limit the cost of calculating it. */
+    private static final int MAX_SAFE_RADIUS = 1000;
+
+    private final PolylineIndex index;
+
+    /** Result of the last update. */
+    private final NearestSegmentQuery query = new NearestSegmentQuery();
+
+    /** Scratch query for calculating the safe radius. */
+    private final NearestSegmentQuery outsideQuery = new NearestSegmentQuery();
+
+    /** Index range of the last update. */
+    private int beginIdx, endIdx;
+
+    /** Window of segments [windowBeginIdx, windowEndIdx) searched locally; empty if the index must be searched. */
+    private int windowBeginIdx, windowEndIdx;
+
+    /** Query point of the last index search, and the distance from it to the nearest segment outside the window. */
+    private int safeX, safeY;
+    private double safeRadius;
+
+    private int localHits, indexSearches;
+
+    public RouteCursor(PolylineIndex index) {
+        this.index = index;
+    }
+
+    /** Forget the previous match, so that the next update searches the index. */
+    public void reset() {
+        windowBeginIdx = windowEndIdx = 0;
+    }
+
+    /**
+     * Find the nearest route segment among the segments [beginIdx, endIdx), see
+     * {@link PolylineIndex#getNearestSegment(int, int, int, int, double, NearestSegmentQuery)}.
+     * @return Result of the query; the segment index is -1 if the range contains no segments.
+     */
+    public NearestSegmentQuery update(int qx, int qy, int beginIdx, int endIdx) {
+        if (beginIdx == this.beginIdx && endIdx == this.endIdx && windowBeginIdx < windowEndIdx) {
+            // the position is typically unchanged between most updates, since updates are done for each frame drawn
+            if (qx == query.qx && qy == query.qy) {
+                ++localHits;
+                return query;
+            }
+
+            query.reset(qx, qy, Double.MAX_VALUE);
+            index.testSegments(windowBeginIdx, windowEndIdx, query);
+            double moved = Math.sqrt((double) (qx - safeX)*(qx - safeX) + (double) (qy - safeY)*(qy - safeY));
+            if (Math.sqrt(query.bestDist) <= safeRadius - moved) {
+                ++localHits;
+                return query;
+            }
+        }
+
+        ++indexSearches;
+        this.beginIdx = beginIdx;
+        this.endIdx = endIdx;
+        if (index.getNearestSegment(qx, qy, beginIdx, endIdx, Double.MAX_VALUE, query) < 0) {
+            reset();
+            return query;
+        }
+
+        // re-center the window on the match and find the safe radius (the nearest segment in range outside the window)
+        windowBeginIdx = Math.max(beginIdx, query.bestIdx - WINDOW_SIZE);
+        windowEndIdx = Math.min(endIdx, query.bestIdx + WINDOW_SIZE + 1);
+        safeX = qx;
+        safeY = qy;
+        double maxDist = (double) MAX_SAFE_RADIUS*MAX_SAFE_RADIUS;
+        double outsideDist = maxDist;
+        if (index.getNearestSegment(qx, qy, beginIdx, windowBeginIdx, outsideDist, outsideQuery) >= 0)
+            outsideDist = outsideQuery.bestDist;
+        if (index.getNearestSegment(qx, qy, windowEndIdx, endIdx, outsideDist, outsideQuery) >= 0)
+            outsideDist = outsideQuery.bestDist;
+        safeRadius = Math.sqrt(outsideDist);
+
+        return query;
+    }
+
+    /** @return Result of the last update. */
+    public NearestSegmentQuery getResult() {
+        return query;
+    }
+
+    /** @return Number of updates answered by the local search, as opposed to searching the index. */
+    public int getLocalHits() {
+        return localHits;
+    }
+
+    /** @return Number of updates that searched the index. */
+    public int getIndexSearches() {
+        return indexSearches;
+    }
+}
@@ -0,0 +1,28 @@
+package com.max.route;
+
+/**
+ * Point index over the points of a path, with the queries needed by the app: finding the points
+ * visible on a tile, optionally restricted to a range of point indices (such as the part of the route
+ * between two waypoints), and finding the nearest point. See {@link SpatialIndexType} for the
+ * available implementations.
+ */
+public interface SpatialIndex {
+    /**
+     * Find all points with at least the given level (see {@link QuadNode#level}) within the given
+     * rectangle (inclusive), in no particular order.
+     */
+    void queryTree(int minLevel, int qx0, int qy0, int qx1, int qy1, QuadPointArray points, QuadMatches matches);
+
+    /** Same as {@link #queryTree(int, int, int, int, int, QuadPointArray, QuadMatches)}, but only for points with index in [beginIdx, endIdx). */
+    void queryTree(int minLevel, int qx0, int qy0, int qx1, int qy1, int beginIdx, int endIdx, QuadPointArray points, QuadMatches matches);
+
+    /**
+     * Find the nearest point (of any level) with index in [beginIdx, endIdx), with the search state kept in the
+     * given query.
+     * @return Index of the nearest point, or -1 if there is no such point.
+     */
+    int getNearestNeighbor(int qx, int qy, int beginIdx, int endIdx, QuadPointArray points, NearestNeighborQuery query);
+
+    /** @return Estimated heap usage in bytes, using the same assumptions as {@link QuadNode#getMemoryUsage()}. */
+    long getMemoryUsage();
+}
@@ -0,0 +1,39 @@
+package com.max.route;
+
+/**
+ * The available {@link SpatialIndex} implementations. Which one is fastest depends on the route, for example
+ * on how large an area it spans compared to its number of points; compare them on a route with
+ * SpatialIndexBenchmark in the benchmark module.
+ */
+public enum SpatialIndexType {
+    /** Multi-hierarchical quad tree; see {@link QuadNode}. */
+    QUAD_TREE {
+        @Override public SpatialIndex build(QuadPointArray points) {
+            return QuadTreeBuilder.build(points);
+        }
+    },
+
+    /** Quad tree flattened to primitive arrays; see {@link PackedQuadTree}. */
+    PACKED_QUAD_TREE {
+        @Override public SpatialIndex build(QuadPointArray points) {
+            return new PackedQuadTree(QuadTreeBuilder.build(points));
+        }
+    },
+
+    /** Uniform grid; see {@link GridIndex}. */
+    GRID {
+        @Override public SpatialIndex build(QuadPointArray points) {
+            return new GridIndex(points);
+        }
+    },
+
+    /** Balanced kd-tree; see {@link KdTree}. */
+    KD_TREE {
+        @Override public SpatialIndex build(QuadPointArray points) {
+            return new KdTree(points);
+        }
+    };
+
+    /** Build an index over all points. The levels of the points must not change afterwards. */
+    public abstract SpatialIndex build(QuadPointArray points);
+}
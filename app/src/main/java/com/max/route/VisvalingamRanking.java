@@ -0,0 +1,144 @@
+package com.max.route;
+
+/**
+ * Assigns levels (see {@link QuadNode}) to the points of a path based on their significance to the
+ * shape of the path, rather than on their index. Points are ranked with the Visvalingam-Whyatt
+ * algorithm: the least significant point is repeatedly removed (and its neighbors' significance
+ * recalculated), so that points on straight stretches are removed first and points in sharp turns last.
+ * <br>
+ * The significance of a point is its distance to the segment between its two neighbors, rather than
+ * the area of the triangle they form as in the original algorithm. The area is close to zero at the
+ * far end of a stretch that is walked back and forth (such as a dead end road), which would otherwise
+ * remove the whole stretch from the drawn path.
+ * <br>
+ * The levels are assigned so that the number of points at each level is the same as with index based
+ * levels, i.e. roughly half of the points have level 1 or higher, a quarter have level 2 or higher, etc.
+ * A point removed when r points remain gets level floor(log2(n/r)), and the end points, which are never
+ * removed, get the maximum level.
+ */
+public class VisvalingamRanking {
+    /** @return Level for each point of the path, to be used with {@link QuadPointArray#setLevels}. */
+    public static byte[] computeLevels(QuadPointArray points) {
+        int n = points.nrPoints;
+        byte[] level = new byte[n];
+        if (n == 0)
+            return level;
+        level[0] = level[n - 1] = Integer.SIZE;
+        if (n <= 2)
+            return level;
+
+        return new VisvalingamRanking(points).rank(level);
+    }
+
+    private final QuadPointArray points;
+
+    /** Doubly linked list of remaining points. */
+    private final int[] prev, next;
+
+    /** Significance (squared distance) of each remaining interior point. */
+    private final double[] weight;
+
+    /** Binary min-heap of interior points on (weight, index), and position of each point in the heap. */
+    private final int[] heap, heapPos;
+    private int heapSize;
+
+    private VisvalingamRanking(QuadPointArray points) {
+        this.points = points;
+        int n = points.nrPoints;
+        prev = new int[n];
+        next = new int[n];
+        weight = new double[n];
+        heap = new int[n];
+        heapPos = new int[n];
+        for (int k = 0; k < n; ++k) {
+            prev[k] = k - 1;
+            next[k] = k + 1;
+        }
+        for (int k = 1; k < n - 1; ++k) {
+            weight[k] = segmentDist2(k - 1, k, k + 1);
+            heap[heapSize] = k;
+            heapPos[k] = heapSize++;
+        }
+        for (int k = heapSize/2 - 1; k >= 0; --k)
+            siftDown(k);
+    }
+
+    private byte[] rank(byte[] level) {
+        int n = points.nrPoints;
+        for (int remaining = n; heapSize > 0; --remaining) {
+            int p = heap[0];
+            removeTop();
+            level[p] = (byte) (31 - Integer.numberOfLeadingZeros(n / remaining));
+
+            // unlink point and update neighbors; a neighbor's significance is never less than that of the
+            // removed point, so that points are removed in order of increasing significance
+            int a = prev[p], b = next[p];
+            next[a] = b;
+            prev[b] = a;
+            if (prev[a] >= 0)
+                updateWeight(a, Math.max(weight[p], segmentDist2(prev[a], a, b)));
+            if (next[b] < n)
+                updateWeight(b, Math.max(weight[p], segmentDist2(a, b, next[b])));
+        }
+        return level;
+    }
+
+    /** @return Squared distance from point k to the segment from point a to point b. */
+    private double segmentDist2(int a, int k, int b) {
+        double dx = points.getX(b) - points.getX(a), dy = points.getY(b) - points.getY(a);
+        double px = points.getX(k) - points.getX(a), py = points.getY(k) - points.getY(a);
+        double len2 = dx*dx + dy*dy;
+        double t = len2 == 0 ? 0 : Math.max(0, Math.min(1, (px*dx + py*dy) / len2));
+        return (px - t*dx)*(px - t*dx) + (py - t*dy)*(py - t*dy);
+    }
+
+    private boolean less(int p, int q) {
+        return weight[p] < weight[q] || (weight[p] == weight[q] && p < q);
+    }
+
+    private void updateWeight(int p, double newWeight) {
+        boolean increased = newWeight > weight[p];
+        weight[p] = newWeight;
+        if (increased)
+            siftDown(heapPos[p]);
+        else
+            siftUp(heapPos[p]);
+    }
+
+    private void removeTop() {
+        int last = heap[--heapSize];
+        if (heapSize > 0) {
+            heap[0] = last;
+            heapPos[last] = 0;
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int k) {
+        int p = heap[k];
+        while (k > 0) {
+            int parent = (k - 1) >> 1;
+            if (!less(p, heap[parent]))
+                break;
+            heap[k] = heap[parent];
+            heapPos[heap[k]] = k;
+            k = parent;
+        }
+        heap[k] = p;
+        heapPos[p] = k;
+    }
+
+    private void siftDown(int k) {
+        int p = heap[k];
+        for (int child = 2*k + 1; child < heapSize; k = child, child = 2*k + 1) {
+            if (child + 1 < heapSize && less(heap[child + 1], heap[child]))
+                ++child;
+            if (!less(heap[child], p))
+                break;
+            heap[k] = heap[child];
+            heapPos[heap[k]] = k;
+        }
+        heap[k] = p;
+        heapPos[p] = k;
+    }
+}
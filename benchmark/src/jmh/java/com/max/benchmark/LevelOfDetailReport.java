@@ -0,0 +1,118 @@
+package com.max.benchmark;
+
+import com.max.route.PathLevelOfDetail;
+import com.max.route.PathSegmentIndex;
+import com.max.route.QuadMatches;
+import com.max.route.QuadNode;
+import com.max.route.QuadPointArray;
+import com.max.route.VisvalingamRanking;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compares the index based point levels ({@link QuadNode#level(int)}) with the shape based levels of
+ * {@link VisvalingamRanking} when drawing the route. For each zoom level, the segments of all tiles that
+ * contain route points are queried the same way as in the renderer, and the following is reported:
+ * <ul>
+ * <li>The mean and maximum number of lines drawn per tile.</li>
+ * <li>The mean and maximum deviation (in tile pixels) of the route points from the drawn path.</li>
+ * </ul>
+ * Three configurations are reported: index based levels with the level of detail previously used for
+ * them, shape based levels with that same level of detail (about the same number of lines), and shape
+ * based levels with the current level of detail of {@link PathLevelOfDetail#ROUTE}.
+ * <br>
+ * Not a JMH benchmark; run with ./gradlew :benchmark:levelOfDetailReport
+ */
+public class LevelOfDetailReport {
+    private static final int TILE_WIDTH_BITS = 8;
+
+    /** Route path width in pixels (same as in the renderer). */
+    private static final int PATH_WIDTH = 8;
+
+    /** Route level of detail used with index based levels. */
+    private static final PathLevelOfDetail INDEX_ROUTE = new PathLevelOfDetail(new int[] {11,10,9,8,7,7,6,5,4,3,0});
+
+    public static void main(String[] args) {
+        for (String route : new String[] {Routes.SORMLANDSLEDEN, Routes.GOTLAND, Routes.TILTOPPS}) {
+            QuadPointArray indexPoints = Routes.load(route);
+            QuadPointArray shapePoints = Routes.load(route);
+            shapePoints.setLevels(VisvalingamRanking.computeLevels(shapePoints));
+            PathSegmentIndex indexSegments = new PathSegmentIndex(indexPoints, INDEX_ROUTE);
+            PathSegmentIndex shapeSegments = new PathSegmentIndex(shapePoints, INDEX_ROUTE);
+            PathSegmentIndex shapeRouteSegments = new PathSegmentIndex(shapePoints, PathLevelOfDetail.ROUTE);
+
+            System.out.printf("%s (%d points)%n", route, indexPoints.nrPoints);
+            System.out.printf("%4s %6s | %-33s | %-33s | %-33s%n", "zoom", "tiles",
+                    "index: level, lines/tile, dev px", "shape: level, lines/tile, dev px", "ROUTE: level, lines/tile, dev px");
+            for (int zoom = 0; zoom <= Routes.MAX_ZOOM_LEVEL; ++zoom) {
+                int indexLevel = INDEX_ROUTE.queryLevelByZoomLevel[zoom];
+                int routeLevel = PathLevelOfDetail.ROUTE.queryLevelByZoomLevel[zoom];
+                int[] tiles = getTiles(indexPoints, zoom);
+                System.out.printf("%4d %6d | %s | %s | %s%n", zoom, tiles.length/2,
+                        report(indexPoints, indexSegments, zoom, indexLevel, tiles),
+                        report(shapePoints, shapeSegments, zoom, indexLevel, tiles),
+                        report(shapePoints, shapeRouteSegments, zoom, routeLevel, tiles));
+            }
+            System.out.println();
+        }
+    }
+
+    /** @return Lower left corner of each tile that contains route points, x and y interleaved. */
+    private static int[] getTiles(QuadPointArray points, int zoom) {
+        int tileSizeBits = Routes.ZOOM_0_TILE_BITS - zoom;
+        Set<Long> tilePositions = new HashSet<>();
+        for (int k = 0; k < points.nrPoints; ++k)
+            tilePositions.add((long) (1_200_000 + points.getX(k) >> tileSizeBits) << 32 | (8_500_000 - points.getY(k) >> tileSizeBits));
+
+        int[] tiles = new int[tilePositions.size()*2];
+        int t = 0;
+        for (long pos : tilePositions) {
+            tiles[t++] = ((int) (pos >> 32) << tileSizeBits) - 1_200_000;
+            tiles[t++] = 8_500_000 - ((int) pos + 1 << tileSizeBits);
+        }
+        return tiles;
+    }
+
+    private static String report(QuadPointArray points, PathSegmentIndex segments, int zoom, int queryLevel, int[] tiles) {
+        int tileSizeBits = Routes.ZOOM_0_TILE_BITS - zoom;
+        int tileSizeUtm = 1 << tileSizeBits;
+        int pathWidthOffset = PATH_WIDTH << tileSizeBits - TILE_WIDTH_BITS;
+
+        // the renderer draws one line per segment found (non-cyclic route)
+        QuadMatches matches = new QuadMatches();
+        long totalLines = 0;
+        int maxLines = 0;
+        for (int t = 0; t < tiles.length; t += 2) {
+            int qx0 = tiles[t] - pathWidthOffset/2, qy0 = tiles[t + 1] - pathWidthOffset/2;
+            matches.clear();
+            segments.querySegments(queryLevel, qx0, qy0, qx0 + tileSizeUtm + pathWidthOffset, qy0 + tileSizeUtm + pathWidthOffset, matches);
+            int lines = matches.matchCount;
+            totalLines += lines;
+            maxLines = Math.max(maxLines, lines);
+        }
+
+        // distance from each point to the drawn segment that skips it
+        double totalDev = 0, maxDev = 0;
+        for (int k = 1; k + 1 < points.nrPoints; ++k) {
+            if (points.level(k) >= queryLevel)
+                continue;
+            double dev = segmentDist(points, k, points.prevAtLevel(k, queryLevel), points.nextAtLevel(k, queryLevel));
+            totalDev += dev;
+            maxDev = Math.max(maxDev, dev);
+        }
+        double metersPerPixel = (double) tileSizeUtm / (1 << TILE_WIDTH_BITS);
+
+        return String.format("%5d %6.1f %5d %6.2f %7.1f", queryLevel, (double) totalLines / (tiles.length/2), maxLines,
+                totalDev / points.nrPoints / metersPerPixel, maxDev / metersPerPixel);
+    }
+
+    /** @return Distance from point k to the segment from point a to point b. */
+    private static double segmentDist(QuadPointArray points, int k, int a, int b) {
+        double dx = points.getX(b) - points.getX(a), dy = points.getY(b) - points.getY(a);
+        double px = points.getX(k) - points.getX(a), py = points.getY(k) - points.getY(a);
+        double len2 = dx*dx + dy*dy;
+        double t = len2 == 0 ? 0 : Math.max(0, Math.min(1, (px*dx + py*dy) / len2));
+        return Math.hypot(px - t*dx, py - t*dy);
+    }
+}
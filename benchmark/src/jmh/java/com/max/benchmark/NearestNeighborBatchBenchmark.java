@@ -0,0 +1,72 @@
+package com.max.benchmark;
+
+import com.max.route.NearestNeighborBatch;
+import com.max.route.NearestNeighborQuery;
+import com.max.route.QuadNode;
+import com.max.route.QuadPointArray;
+import com.max.route.QuadTreeBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapping a whole simulated GPS trace (see {@link Routes#trajectory}) to the route points, one query at
+ * a time versus through {@link NearestNeighborBatch}. Each invocation handles all fixes of the trace.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class NearestNeighborBatchBenchmark {
+    @Param({Routes.SORMLANDSLEDEN, Routes.GOTLAND, Routes.TILTOPPS})
+    public String route;
+
+    private QuadPointArray points;
+    private QuadNode tree;
+
+    /** A fix every 5 meters, with 5 meters of noise. */
+    private int[] qx, qy;
+
+    private int[] resultIdx;
+    private long[] resultDist;
+
+    private final NearestNeighborQuery query = new NearestNeighborQuery();
+
+    @Setup
+    public void setup() {
+        points = Routes.load(route);
+        tree = QuadTreeBuilder.build(points);
+        int[] trajectory = Routes.trajectory(points, 5, 5, 0);
+        int fixCount = trajectory.length / 2;
+        qx = new int[fixCount];
+        qy = new int[fixCount];
+        for (int n = 0; n < fixCount; ++n) {
+            qx[n] = trajectory[n*2];
+            qy[n] = trajectory[n*2 + 1];
+        }
+        resultIdx = new int[fixCount];
+        resultDist = new long[fixCount];
+    }
+
+    @Benchmark
+    public int[] sequential() {
+        for (int n = 0; n < qx.length; ++n) {
+            resultIdx[n] = tree.getNearestNeighbor(qx[n], qy[n], points, query);
+            resultDist[n] = query.getBestDist();
+        }
+        return resultIdx;
+    }
+
+    @Benchmark
+    public int[] batch() {
+        NearestNeighborBatch.getNearestNeighbors(tree, points, qx, qy, resultIdx, resultDist);
+        return resultIdx;
+    }
+}
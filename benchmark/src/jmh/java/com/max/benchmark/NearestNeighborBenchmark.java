@@ -0,0 +1,121 @@
+package com.max.benchmark;
+
+import com.max.route.KNearestQuery;
+import com.max.route.NearestSegmentQuery;
+import com.max.route.PackedQuadTree;
+import com.max.route.PolylineIndex;
+import com.max.route.QuadNode;
+import com.max.route.QuadPointArray;
+import com.max.route.QuadTreeBuilder;
+import com.max.route.RouteCursor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapping positions to the route, for consecutive fixes of a simulated GPS trace along the route
+ * (see {@link Routes#trajectory}). Each invocation handles the next fix.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NearestNeighborBenchmark {
+    /** Indices of a route, shared by all threads. */
+    @State(Scope.Benchmark)
+    public static class Route {
+        @Param({Routes.SORMLANDSLEDEN, Routes.GOTLAND, Routes.TILTOPPS})
+        public String route;
+
+        QuadPointArray points;
+        QuadNode tree;
+        PackedQuadTree packedTree;
+        PolylineIndex polylineIndex;
+
+        /** A fix every 5 meters, with 5 meters of noise. */
+        int[] trajectory;
+
+        @Setup
+        public void setup() {
+            points = Routes.load(route);
+            tree = QuadTreeBuilder.build(points);
+            packedTree = new PackedQuadTree(tree);
+            polylineIndex = new PolylineIndex(points);
+            trajectory = Routes.trajectory(points, 5, 5, 0);
+        }
+    }
+
+    /** Position along the trajectory, and query state, for each thread. */
+    @State(Scope.Thread)
+    public static class Position {
+        int next;
+        int fixCount;
+        RouteCursor cursor;
+        final NearestSegmentQuery segmentQuery = new NearestSegmentQuery();
+        final KNearestQuery kNearestQuery = new KNearestQuery(8);
+
+        @Setup
+        public void setup(Route route, ThreadParams thread) {
+            fixCount = route.trajectory.length / 2;
+            // spread the threads along the trajectory
+            next = (int)((long) fixCount * thread.getThreadIndex() / thread.getThreadCount());
+            cursor = new RouteCursor(route.polylineIndex);
+        }
+
+        /** @return Index of the next fix (x at index*2, y at index*2+1). */
+        int nextFix() {
+            int fix = next;
+            if (++next == fixCount)
+                next = 0;
+            return fix;
+        }
+    }
+
+    @Benchmark
+    public int quadNode(Route route, Position pos) {
+        int fix = pos.nextFix();
+        return route.tree.getNearestNeighbor(route.trajectory[fix*2], route.trajectory[fix*2 + 1], route.points);
+    }
+
+    /** Same as {@link #quadNode}, with several threads querying the same tree. */
+    @Benchmark
+    @Threads(4)
+    public int quadNodeConcurrent(Route route, Position pos) {
+        int fix = pos.nextFix();
+        return route.tree.getNearestNeighbor(route.trajectory[fix*2], route.trajectory[fix*2 + 1], route.points);
+    }
+
+    @Benchmark
+    public int packedQuadTree(Route route, Position pos) {
+        int fix = pos.nextFix();
+        return route.packedTree.getNearestNeighbor(route.trajectory[fix*2], route.trajectory[fix*2 + 1], route.points);
+    }
+
+    @Benchmark
+    public int kNearest(Route route, Position pos) {
+        int fix = pos.nextFix();
+        route.tree.getNearestNeighbors(0, route.trajectory[fix*2], route.trajectory[fix*2 + 1], Integer.MAX_VALUE, route.points, pos.kNearestQuery);
+        return pos.kNearestQuery.getIdx(0);
+    }
+
+    @Benchmark
+    public int nearestSegment(Route route, Position pos) {
+        int fix = pos.nextFix();
+        return route.polylineIndex.getNearestSegment(route.trajectory[fix*2], route.trajectory[fix*2 + 1], pos.segmentQuery);
+    }
+
+    /** Same as {@link #nearestSegment}, but incrementally through a route cursor. */
+    @Benchmark
+    public int routeCursor(Route route, Position pos) {
+        int fix = pos.nextFix();
+        return pos.cursor.update(route.trajectory[fix*2], route.trajectory[fix*2 + 1], 0, route.points.nrPoints).getSegmentIdx();
+    }
+}
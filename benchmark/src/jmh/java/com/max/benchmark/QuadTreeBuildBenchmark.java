@@ -0,0 +1,67 @@
+package com.max.benchmark;
+
+import com.max.route.PackedQuadTree;
+import com.max.route.PolylineIndex;
+import com.max.route.QuadNode;
+import com.max.route.QuadPointArray;
+import com.max.route.QuadTreeBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/** Building the indices for a route, as done when the route is loaded. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class QuadTreeBuildBenchmark {
+    @Param({Routes.SORMLANDSLEDEN, Routes.GOTLAND, Routes.TILTOPPS})
+    public String route;
+
+    private QuadPointArray points;
+    private QuadNode tree;
+
+    @Setup
+    public void setup() {
+        points = Routes.load(route);
+        tree = QuadTreeBuilder.build(points);
+    }
+
+    @Benchmark
+    public QuadNode bulkLoad() {
+        return QuadTreeBuilder.build(points);
+    }
+
+    /** Inserting one point at a time, which is how the tree was built before bulk loading. */
+    @Benchmark
+    public QuadNode insert() {
+        int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+        for (int k = 0; k < points.nrPoints; ++k) {
+            x0 = Math.min(x0, points.getX(k));
+            y0 = Math.min(y0, points.getY(k));
+            x1 = Math.max(x1, points.getX(k));
+            y1 = Math.max(y1, points.getY(k));
+        }
+        QuadNode root = new QuadNode(x0, y0, x1, y1);
+        for (int k = 0; k < points.nrPoints; ++k)
+            root.insertPoint(k, points);
+        return root;
+    }
+
+    @Benchmark
+    public PackedQuadTree pack() {
+        return new PackedQuadTree(tree);
+    }
+
+    @Benchmark
+    public PolylineIndex polylineIndex() {
+        return new PolylineIndex(points);
+    }
+}
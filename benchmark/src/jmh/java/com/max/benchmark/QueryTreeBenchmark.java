@@ -0,0 +1,98 @@
+package com.max.benchmark;
+
+import com.max.route.PackedQuadTree;
+import com.max.route.PathLevelOfDetail;
+import com.max.route.PathSegmentIndex;
+import com.max.route.QuadMatches;
+import com.max.route.QuadNode;
+import com.max.route.QuadPointArray;
+import com.max.route.QuadTreeBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Querying the route points visible on a tile, at the query level used for the tile's zoom level
+ * (see {@link PathLevelOfDetail#ROUTE}). Each invocation queries the next of a fixed set of tiles
+ * along the route, so that both dense and sparse parts of the route are covered. For comparison,
+ * querying the route segments on the tile with {@link PathSegmentIndex} (what the renderer draws from)
+ * is included as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class QueryTreeBenchmark {
+    /** Number of different tiles queried. */
+    private static final int TILE_COUNT = 1024;
+
+    @Param({Routes.SORMLANDSLEDEN, Routes.GOTLAND, Routes.TILTOPPS})
+    public String route;
+
+    @Param({"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "10"})
+    public int zoomLevel;
+
+    private QuadPointArray points;
+    private QuadNode tree;
+    private PackedQuadTree packedTree;
+    private PathSegmentIndex segmentIndex;
+    private final QuadMatches matches = new QuadMatches();
+
+    private int queryLevel, tileSizeUtm;
+
+    /** Lower left corner of each tile, x and y interleaved. */
+    private int[] tiles;
+    private int nextTile;
+
+    @Setup
+    public void setup() {
+        points = Routes.load(route);
+        tree = QuadTreeBuilder.build(points);
+        packedTree = new PackedQuadTree(tree);
+        segmentIndex = new PathSegmentIndex(points, PathLevelOfDetail.ROUTE);
+        queryLevel = PathLevelOfDetail.ROUTE.queryLevelByZoomLevel[zoomLevel];
+
+        // tiles containing route points evenly spread along the route, aligned the same way as in the renderer
+        int tileSizeBits = Routes.ZOOM_0_TILE_BITS - zoomLevel;
+        tileSizeUtm = 1 << tileSizeBits;
+        tiles = new int[TILE_COUNT*2];
+        for (int t = 0; t < TILE_COUNT; ++t) {
+            int idx = (int)((long) t * points.nrPoints / TILE_COUNT);
+            int tx = 1_200_000 + points.getX(idx) >> tileSizeBits;
+            int ty = 8_500_000 - points.getY(idx) >> tileSizeBits;
+            tiles[t*2] = (tx << tileSizeBits) - 1_200_000;
+            tiles[t*2 + 1] = 8_500_000 - (ty + 1 << tileSizeBits);
+        }
+    }
+
+    @Benchmark
+    public int quadNode() {
+        int t = nextTile++ & TILE_COUNT - 1;
+        matches.clear();
+        tree.queryTree(queryLevel, tiles[t*2], tiles[t*2 + 1], tiles[t*2] + tileSizeUtm, tiles[t*2 + 1] + tileSizeUtm, points, matches);
+        return matches.matchCount;
+    }
+
+    @Benchmark
+    public int packedQuadTree() {
+        int t = nextTile++ & TILE_COUNT - 1;
+        matches.clear();
+        packedTree.queryTree(queryLevel, tiles[t*2], tiles[t*2 + 1], tiles[t*2] + tileSizeUtm, tiles[t*2 + 1] + tileSizeUtm, points, matches);
+        return matches.matchCount;
+    }
+
+    @Benchmark
+    public int pathSegmentIndex() {
+        int t = nextTile++ & TILE_COUNT - 1;
+        matches.clear();
+        segmentIndex.querySegments(queryLevel, tiles[t*2], tiles[t*2 + 1], tiles[t*2] + tileSizeUtm, tiles[t*2 + 1] + tileSizeUtm, matches);
+        return matches.matchCount;
+    }
+}
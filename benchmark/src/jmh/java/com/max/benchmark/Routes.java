@@ -0,0 +1,66 @@
+package com.max.benchmark;
+
+import com.max.kml.BinaryRouteLoader;
+import com.max.kml.InvalidKMLException;
+import com.max.route.QuadPointArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Loading of the route resources in the app module, and generation of data derived from them. */
+class Routes {
+    /** Route resources used by the benchmarks; from ~27k to ~51k points. */
+    static final String SORMLANDSLEDEN = "sormlandsleden.obj";
+    static final String GOTLAND = "gotland_all_roads_one_way_567919m.obj";
+    static final String TILTOPPS = "tiltopps_sverige_from_stockholm.obj";
+
+    /** Width in meters of a zoom level 0 tile (same as in the renderer). */
+    static final int ZOOM_0_TILE_BITS = 20;
+
+    /** Maximum tile zoom level (same as in the renderer). */
+    static final int MAX_ZOOM_LEVEL = 10;
+
+    private static File getRoutesDir() {
+        return new File(System.getProperty("routes.dir", "../app/src/main/res/raw"));
+    }
+
+    static QuadPointArray load(String name) {
+        File file = new File(getRoutesDir(), name);
+        try (InputStream is = new FileInputStream(file)) {
+            return new BinaryRouteLoader().loadRoute(is);
+        } catch (IOException | InvalidKMLException e) {
+            throw new IllegalStateException("Failed to load route " + file, e);
+        }
+    }
+
+    /**
+     * Simulated GPS trace of following the route from start to end, with a fix every stepSize meters
+     * and normally distributed noise (standard deviation noise meters). Since no recorded traces are
+     * available for the routes, this is used in place of one. Deterministic for a given seed.
+     * @return Coordinates, x and y interleaved.
+     */
+    static int[] trajectory(QuadPointArray points, int stepSize, double noise, long seed) {
+        Random rnd = new Random(seed);
+        int[] xy = new int[1024];
+        int count = 0;
+
+        // distance from the start of the current segment to the next fix
+        double pos = 0;
+        for (int k = 0; k + 1 < points.nrPoints; ++k) {
+            double dx = points.getX(k+1) - points.getX(k), dy = points.getY(k+1) - points.getY(k);
+            double len = Math.sqrt(dx*dx + dy*dy);
+            for (; pos < len; pos += stepSize) {
+                if (count == xy.length)
+                    xy = Arrays.copyOf(xy, count << 1);
+                xy[count++] = (int)(points.getX(k) + dx * pos / len + rnd.nextGaussian() * noise + 0.5);
+                xy[count++] = (int)(points.getY(k) + dy * pos / len + rnd.nextGaussian() * noise + 0.5);
+            }
+            pos -= len;
+        }
+        return Arrays.copyOf(xy, count);
+    }
+}
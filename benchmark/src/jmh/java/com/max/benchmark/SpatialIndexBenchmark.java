@@ -0,0 +1,123 @@
+package com.max.benchmark;
+
+import com.max.route.NearestNeighborQuery;
+import com.max.route.PathLevelOfDetail;
+import com.max.route.QuadMatches;
+import com.max.route.QuadPointArray;
+import com.max.route.SpatialIndex;
+import com.max.route.SpatialIndexType;
+import com.max.route.VisvalingamRanking;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link SpatialIndexType} implementations on the bundled routes, with the points ranked the
+ * same way as in the app:
+ * <ul>
+ * <li>build: building the index.</li>
+ * <li>tileQuery: querying the points on a tile, at the query level for the tile's zoom level (see
+ * {@link PathLevelOfDetail#ROUTE}), cycling through all zoom levels.</li>
+ * <li>rangeQuery: same as tileQuery, but restricted to an index range of about 5% of the route, as when
+ * querying the part of the route between two waypoints.</li>
+ * <li>nearestNeighbor: the nearest route point of a position on a simulated GPS trace of the route.</li>
+ * </ul>
+ * Each query invocation uses the next of a fixed set of tiles or positions along the route.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SpatialIndexBenchmark {
+    /** Number of different tiles and positions queried. */
+    private static final int QUERY_COUNT = 1024;
+
+    @Param({Routes.SORMLANDSLEDEN, Routes.GOTLAND, Routes.TILTOPPS})
+    public String route;
+
+    @Param({"QUAD_TREE", "PACKED_QUAD_TREE", "GRID", "KD_TREE"})
+    public SpatialIndexType type;
+
+    private QuadPointArray points;
+    private SpatialIndex index;
+    private final QuadMatches matches = new QuadMatches();
+    private final NearestNeighborQuery query = new NearestNeighborQuery();
+
+    /** Lower left corner, size, query level and index range of each tile. */
+    private int[] tileX, tileY, tileSize, tileLevel, beginIdx, endIdx;
+
+    /** Positions for nearest neighbor queries, x and y interleaved. */
+    private int[] positions;
+
+    private int nextQuery;
+
+    @Setup
+    public void setup() {
+        points = Routes.load(route);
+        points.setLevels(VisvalingamRanking.computeLevels(points));
+        index = type.build(points);
+
+        // tiles containing route points evenly spread along the route, aligned the same way as in the renderer
+        tileX = new int[QUERY_COUNT];
+        tileY = new int[QUERY_COUNT];
+        tileSize = new int[QUERY_COUNT];
+        tileLevel = new int[QUERY_COUNT];
+        beginIdx = new int[QUERY_COUNT];
+        endIdx = new int[QUERY_COUNT];
+        for (int t = 0; t < QUERY_COUNT; ++t) {
+            int zoomLevel = t % (Routes.MAX_ZOOM_LEVEL + 1);
+            int tileSizeBits = Routes.ZOOM_0_TILE_BITS - zoomLevel;
+            int idx = (int)((long) t * points.nrPoints / QUERY_COUNT);
+            int tx = 1_200_000 + points.getX(idx) >> tileSizeBits;
+            int ty = 8_500_000 - points.getY(idx) >> tileSizeBits;
+            tileX[t] = (tx << tileSizeBits) - 1_200_000;
+            tileY[t] = 8_500_000 - (ty + 1 << tileSizeBits);
+            tileSize[t] = 1 << tileSizeBits;
+            tileLevel[t] = PathLevelOfDetail.ROUTE.queryLevelByZoomLevel[zoomLevel];
+            beginIdx[t] = Math.max(0, idx - points.nrPoints / 40);
+            endIdx[t] = Math.min(points.nrPoints, idx + points.nrPoints / 40);
+        }
+
+        int[] trajectory = Routes.trajectory(points, 25, 10, 1);
+        positions = new int[QUERY_COUNT*2];
+        for (int n = 0; n < QUERY_COUNT; ++n) {
+            int k = (int)((long) n * (trajectory.length/2) / QUERY_COUNT);
+            positions[n*2] = trajectory[k*2];
+            positions[n*2 + 1] = trajectory[k*2 + 1];
+        }
+    }
+
+    @Benchmark
+    public SpatialIndex build() {
+        return type.build(points);
+    }
+
+    @Benchmark
+    public int tileQuery() {
+        int t = nextQuery++ & QUERY_COUNT - 1;
+        matches.clear();
+        index.queryTree(tileLevel[t], tileX[t], tileY[t], tileX[t] + tileSize[t], tileY[t] + tileSize[t], points, matches);
+        return matches.matchCount;
+    }
+
+    @Benchmark
+    public int rangeQuery() {
+        int t = nextQuery++ & QUERY_COUNT - 1;
+        matches.clear();
+        index.queryTree(tileLevel[t], tileX[t], tileY[t], tileX[t] + tileSize[t], tileY[t] + tileSize[t], beginIdx[t], endIdx[t], points, matches);
+        return matches.matchCount;
+    }
+
+    @Benchmark
+    public int nearestNeighbor() {
+        int n = nextQuery++ & QUERY_COUNT - 1;
+        return index.getNearestNeighbor(positions[n*2], positions[n*2 + 1], 0, Integer.MAX_VALUE, points, query);
+    }
+}
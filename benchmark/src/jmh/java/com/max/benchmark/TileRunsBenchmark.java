@@ -0,0 +1,113 @@
+package com.max.benchmark;
+
+import com.max.route.PathLevelOfDetail;
+import com.max.route.PathRuns;
+import com.max.route.PathSegmentIndex;
+import com.max.route.QuadMatches;
+import com.max.route.QuadNode;
+import com.max.route.QuadPointArray;
+import com.max.route.QuadTreeBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the connected pieces of the route to draw on dense tiles: low zoom level tiles queried at full
+ * detail (level 0), so that many tiles have thousands of points. Compares querying points, sorting them and
+ * finding gaps (how tiles used to be drawn), querying a sorted list of segments, and querying runs of
+ * connected segments (how tiles are drawn). Each invocation queries the next of a fixed set of tiles along
+ * the route, and returns the number of pieces found, which is the number of sub paths drawn.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TileRunsBenchmark {
+    /** Number of different tiles queried. */
+    private static final int TILE_COUNT = 256;
+
+    @Param({Routes.SORMLANDSLEDEN, Routes.GOTLAND, Routes.TILTOPPS})
+    public String route;
+
+    @Param({"4", "6", "8"})
+    public int zoomLevel;
+
+    private QuadPointArray points;
+    private QuadNode tree;
+    private PathSegmentIndex segmentIndex;
+    private final QuadMatches matches = new QuadMatches();
+    private final PathRuns runs = new PathRuns();
+
+    private int tileSizeUtm;
+
+    /** Lower left corner of each tile, x and y interleaved. */
+    private int[] tiles;
+    private int nextTile;
+
+    @Setup
+    public void setup() {
+        points = Routes.load(route);
+        tree = QuadTreeBuilder.build(points);
+        segmentIndex = new PathSegmentIndex(points, PathLevelOfDetail.ROUTE);
+
+        // tiles containing route points evenly spread along the route, aligned the same way as in the renderer
+        int tileSizeBits = Routes.ZOOM_0_TILE_BITS - zoomLevel;
+        tileSizeUtm = 1 << tileSizeBits;
+        tiles = new int[TILE_COUNT*2];
+        for (int t = 0; t < TILE_COUNT; ++t) {
+            int idx = (int)((long) t * points.nrPoints / TILE_COUNT);
+            int tx = 1_200_000 + points.getX(idx) >> tileSizeBits;
+            int ty = 8_500_000 - points.getY(idx) >> tileSizeBits;
+            tiles[t*2] = (tx << tileSizeBits) - 1_200_000;
+            tiles[t*2 + 1] = 8_500_000 - (ty + 1 << tileSizeBits);
+        }
+    }
+
+    @Benchmark
+    public int sortedPoints() {
+        int t = nextTile++ & TILE_COUNT - 1;
+        matches.clear();
+        tree.queryTree(0, tiles[t*2], tiles[t*2 + 1], tiles[t*2] + tileSizeUtm, tiles[t*2 + 1] + tileSizeUtm, points, matches);
+        matches.sort();
+
+        int pieces = 0, prevIdx = -2;
+        for (int k = 0; k < matches.matchCount; ++k) {
+            int idx = matches.get(k);
+            if (idx - prevIdx > 1)
+                ++pieces;
+            prevIdx = idx;
+        }
+        return pieces;
+    }
+
+    @Benchmark
+    public int segments() {
+        int t = nextTile++ & TILE_COUNT - 1;
+        matches.clear();
+        segmentIndex.querySegments(0, tiles[t*2], tiles[t*2 + 1], tiles[t*2] + tileSizeUtm, tiles[t*2 + 1] + tileSizeUtm, matches);
+
+        int pieces = 0, prevIdx = -2;
+        for (int k = 0; k < matches.matchCount; ++k) {
+            int idx = matches.get(k);
+            if (idx - prevIdx > 1)
+                ++pieces;
+            prevIdx = idx;
+        }
+        return pieces;
+    }
+
+    @Benchmark
+    public int segmentRuns() {
+        int t = nextTile++ & TILE_COUNT - 1;
+        runs.clear();
+        segmentIndex.querySegmentRuns(0, tiles[t*2], tiles[t*2 + 1], tiles[t*2] + tileSizeUtm, tiles[t*2 + 1] + tileSizeUtm, runs);
+        return runs.runCount;
+    }
+}
@@ -0,0 +1,77 @@
+package com.max.route;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Many threads querying the same route trees at once, each with its own query state (see
+ * {@link NearestNeighborQuery}), must get the same results as a brute force search.
+ */
+public class ConcurrentQueryTest {
+    private static final int THREAD_COUNT = 8;
+    private static final int QUERIES_PER_THREAD = 300;
+
+    @Test
+    public void nearestNeighborFromManyThreads() throws Exception {
+        final QuadPointArray points = TestRoutes.load(TestRoutes.SORMLANDSLEDEN);
+        final QuadNode tree = QuadTreeBuilder.build(points);
+        final PackedQuadTree packedTree = new PackedQuadTree(tree);
+        final PolylineIndex polylineIndex = new PolylineIndex(points);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            // start all threads at once, so that they actually query at the same time
+            final CountDownLatch start = new CountDownLatch(THREAD_COUNT);
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < THREAD_COUNT; ++t) {
+                final int[] queries = TestRoutes.randomPoints(points, QUERIES_PER_THREAD, t);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override public Void call() throws InterruptedException {
+                        start.countDown();
+                        start.await();
+                        queryAll(points, tree, packedTree, polylineIndex, queries);
+                        return null;
+                    }
+                }));
+            }
+            // rethrows assertion errors of the threads
+            for (Future<Void> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void queryAll(QuadPointArray points, QuadNode tree, PackedQuadTree packedTree, PolylineIndex polylineIndex,
+                                 int[] queries) {
+        NearestNeighborQuery query = new NearestNeighborQuery();
+        NearestSegmentQuery segmentQuery = new NearestSegmentQuery();
+        NearestSegmentQuery bruteForce = new NearestSegmentQuery();
+        for (int n = 0; n < queries.length / 2; ++n) {
+            int qx = queries[n*2], qy = queries[n*2 + 1];
+            long expected = TestRoutes.nearestDist(points, qx, qy, 0, points.nrPoints);
+
+            // pooled query state of the thread, and query state of the caller
+            assertEquals(expected, TestRoutes.dist(points, tree.getNearestNeighbor(qx, qy, points), qx, qy));
+            assertEquals(expected, TestRoutes.dist(points, packedTree.getNearestNeighbor(qx, qy, points), qx, qy));
+            assertEquals(expected, TestRoutes.dist(points, tree.getNearestNeighbor(qx, qy, points, query), qx, qy));
+            assertEquals(expected, TestRoutes.dist(points, packedTree.getNearestNeighbor(qx, qy, points, query), qx, qy));
+
+            polylineIndex.getNearestSegment(qx, qy, segmentQuery);
+            bruteForce.reset(qx, qy, Double.MAX_VALUE);
+            polylineIndex.testSegments(0, polylineIndex.getSegmentCount(), bruteForce);
+            assertEquals(bruteForce.getDist(), segmentQuery.getDist(), 0);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.max.route;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link NearestNeighborBatch} must find the same nearest points as a brute force search, for each
+ * {@link SpatialIndexType}: for GPS traces along the route (where the queries are grouped), for scattered
+ * points, and within a range of point indices.
+ */
+public class NearestNeighborBatchTest {
+    @Test
+    public void trajectories() {
+        for (String route : TestRoutes.ALL) {
+            QuadPointArray points = TestRoutes.load(route);
+            // large enough to be searched in parallel, and noisy enough for groups to need a larger radius
+            // than the nearest point of their first query
+            check(route, points, TestRoutes.trajectory(points, 100, 40, 0), 0, Integer.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void randomPoints() {
+        QuadPointArray points = TestRoutes.load(TestRoutes.SORMLANDSLEDEN);
+        check("random", points, TestRoutes.randomPoints(points, 3000, 1), 0, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void indexRanges() {
+        QuadPointArray points = TestRoutes.load(TestRoutes.GOTLAND);
+        int[] queries = TestRoutes.trajectory(points, 200, 20, 2);
+        Random rnd = new Random(3);
+        for (int n = 0; n < 5; ++n) {
+            int beginIdx = rnd.nextInt(points.nrPoints);
+            check("range", points, queries, beginIdx, beginIdx + rnd.nextInt(points.nrPoints / 4));
+        }
+        // no points at all
+        check("empty range", points, queries, 100, 100);
+    }
+
+    @Test
+    public void repeatedPoints() {
+        // queries at the exact same position, and groups around points far from the route
+        QuadPointArray points = TestRoutes.load(TestRoutes.SORMLANDSLEDEN);
+        int[] queries = new int[2000];
+        Random rnd = new Random(4);
+        for (int n = 0; n < queries.length / 2; n += 10) {
+            int k = rnd.nextInt(points.nrPoints);
+            int x = points.getX(k) + rnd.nextInt(2000) - 1000, y = points.getY(k) + rnd.nextInt(2000) - 1000;
+            for (int m = n; m < n + 10; ++m) {
+                queries[m*2] = x + (m % 2 == 0 ? 0 : rnd.nextInt(100) - 50);
+                queries[m*2 + 1] = y + (m % 2 == 0 ? 0 : rnd.nextInt(100) - 50);
+            }
+        }
+        check("repeated", points, queries, 0, Integer.MAX_VALUE);
+    }
+
+    private static void check(String name, QuadPointArray points, int[] queries, int beginIdx, int endIdx) {
+        int count = queries.length / 2;
+        int[] qx = new int[count], qy = new int[count];
+        long[] expected = new long[count];
+        for (int n = 0; n < count; ++n) {
+            qx[n] = queries[n*2];
+            qy[n] = queries[n*2 + 1];
+            expected[n] = TestRoutes.nearestDist(points, qx[n], qy[n], beginIdx, endIdx);
+        }
+
+        int[] resultIdx = new int[count];
+        long[] resultDist = new long[count];
+        for (SpatialIndexType type : SpatialIndexType.values()) {
+            NearestNeighborBatch.getNearestNeighbors(type.build(points), beginIdx, endIdx, points, qx, qy, resultIdx, resultDist);
+            for (int n = 0; n < count; ++n) {
+                String message = name + ", " + type + ", query " + n + " of " + count;
+                if (expected[n] < 0) {
+                    assertEquals(message, -1, resultIdx[n]);
+                } else {
+                    // which of several points at the same distance is found may differ
+                    assertEquals(message, true, resultIdx[n] >= beginIdx && resultIdx[n] < endIdx);
+                    assertEquals(message, expected[n], TestRoutes.dist(points, resultIdx[n], qx[n], qy[n]));
+                    assertEquals(message, expected[n], resultDist[n]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.max.route;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link PathSegmentIndex} must find the same segments as a brute force search, both for a route indexed as a
+ * whole and for a GPS history growing one point at a time, past the sizes where its arrays grow new chunks and
+ * its box hierarchy grows new depths.
+ */
+public class PathSegmentIndexTest {
+    private static final int QUERIES = 40;
+
+    @Test
+    public void routes() {
+        for (String route : TestRoutes.ALL) {
+            QuadPointArray points = TestRoutes.load(route);
+            points.setLevels(VisvalingamRanking.computeLevels(points));
+            PathSegmentIndex index = new PathSegmentIndex(points, PathLevelOfDetail.ROUTE);
+            check(route, index, PathLevelOfDetail.ROUTE, 1);
+        }
+    }
+
+    @Test
+    public void growingHistory() {
+        // GPS fixes every 10 m along all routes, one after the other
+        QuadPointArray points = new QuadPointArray(16);
+        PathSegmentIndex index = new PathSegmentIndex(points, PathLevelOfDetail.GPS_HISTORY);
+        int[] checkSizes = {1, 2, 3, 16, 17, 18, 64, 65, 66, 257, 1000, 4097, 4098, 8193, 65537, 65538};
+        int checked = 0;
+        for (String route : TestRoutes.ALL) {
+            int[] xy = TestRoutes.trajectory(TestRoutes.load(route), 10, 5, 3);
+            for (int k = 0; k + 1 < xy.length; k += 2) {
+                index.add(xy[k], xy[k + 1], PathType.MINOR_ROAD);
+                if (checked < checkSizes.length && index.getPointCount() == checkSizes[checked])
+                    check("history of " + checkSizes[checked++] + " points", index, PathLevelOfDetail.GPS_HISTORY, checked);
+            }
+        }
+        assertEquals("history long enough for all checks", checkSizes.length, checked);
+        check("history of " + index.getPointCount() + " points", index, PathLevelOfDetail.GPS_HISTORY, 0);
+    }
+
+    private static void check(String name, PathSegmentIndex index, PathLevelOfDetail levelOfDetail, long seed) {
+        QuadPointArray points = index.getPoints();
+        int pointCount = index.getPointCount();
+        Random rnd = new Random(seed);
+        int[] queries = TestRoutes.randomPoints(points, QUERIES, seed);
+        QuadMatches matches = new QuadMatches();
+        PathRuns runs = new PathRuns();
+
+        for (int level : distinct(levelOfDetail.queryLevelByZoomLevel)) {
+            int[][] segments = segments(points, pointCount, level);
+            for (int n = 0; n < QUERIES; ++n) {
+                // from single points to areas larger than the path
+                int half = rnd.nextInt(4) == 0 ? 0 : rnd.nextInt(1 << 4 + rnd.nextInt(14));
+                int qx0 = queries[n*2] - half, qy0 = queries[n*2 + 1] - half;
+                int qx1 = queries[n*2] + half + rnd.nextInt(2), qy1 = queries[n*2 + 1] + half;
+                int[] expected = segmentsInRect(points, segments, qx0, qy0, qx1, qy1);
+                String message = name + ", level " + level + ", query " + n;
+
+                matches.clear();
+                index.querySegments(level, qx0, qy0, qx1, qy1, matches);
+                assertArrayEquals(message, expected, TestRoutes.toSortedArray(matches));
+
+                runs.clear();
+                index.querySegmentRuns(level, qx0, qy0, qx1, qy1, runs);
+                assertArrayEquals(message + " (runs)", expected, runSegments(runs, segments, message));
+            }
+        }
+    }
+
+    private static int[] distinct(int[] levels) {
+        int[] sorted = levels.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int k = 0; k < sorted.length; ++k)
+            if (k == 0 || sorted[k] != sorted[k - 1])
+                sorted[count++] = sorted[k];
+        return Arrays.copyOf(sorted, count);
+    }
+
+    /**
+     * The segments drawn at a level: between consecutive points with at least that level, and from the last
+     * of them to the last point.
+     * @return First and last point of each segment.
+     */
+    private static int[][] segments(QuadPointArray points, int pointCount, int level) {
+        int[] vertices = new int[pointCount];
+        int vertexCount = 0;
+        for (int k = 0; k < pointCount; ++k)
+            if (points.level(k) >= level)
+                vertices[vertexCount++] = k;
+        if (vertexCount > 0 && vertices[vertexCount - 1] != pointCount - 1)
+            vertices[vertexCount++] = pointCount - 1;
+
+        int[][] segments = new int[Math.max(0, vertexCount - 1)][];
+        for (int s = 0; s < segments.length; ++s)
+            segments[s] = new int[] {vertices[s], vertices[s + 1]};
+        return segments;
+    }
+
+    /** @return First point of each segment whose bounding box intersects the rectangle, in ascending order. */
+    private static int[] segmentsInRect(QuadPointArray points, int[][] segments, int qx0, int qy0, int qx1, int qy1) {
+        int[] found = new int[segments.length];
+        int count = 0;
+        for (int[] segment : segments) {
+            int x0 = points.getX(segment[0]), y0 = points.getY(segment[0]), x1 = points.getX(segment[1]), y1 = points.getY(segment[1]);
+            if (qx0 <= Math.max(x0, x1) && qx1 >= Math.min(x0, x1) && qy0 <= Math.max(y0, y1) && qy1 >= Math.min(y0, y1))
+                found[count++] = segment[0];
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /** @return First point of each segment of the runs, checking that the segments are segments of the path. */
+    private static int[] runSegments(PathRuns runs, int[][] segments, String message) {
+        int[] next = new int[segments.length == 0 ? 0 : segments[segments.length - 1][1] + 1];
+        Arrays.fill(next, -1);
+        for (int[] segment : segments)
+            next[segment[0]] = segment[1];
+
+        int[] found = new int[runs.getPointCount()];
+        int count = 0;
+        for (int r = 0; r < runs.runCount; ++r) {
+            for (int k = runs.getRunBegin(r); k + 1 < runs.getRunEnd(r); ++k) {
+                int idx = runs.getPointIdx(k);
+                assertEquals(message + ", segment from " + idx, next[idx], runs.getPointIdx(k + 1));
+                found[count++] = idx;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+}
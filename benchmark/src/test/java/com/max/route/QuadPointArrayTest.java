@@ -0,0 +1,57 @@
+package com.max.route;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link QuadPointArray#nextAtLevel} and {@link QuadPointArray#prevAtLevel} must find the same points as a
+ * linear search, with custom levels as used for the route and with the default levels used for the GPS history.
+ */
+public class QuadPointArrayTest {
+    private static final int QUERIES = 2000;
+
+    @Test
+    public void rankedLevels() {
+        for (String route : TestRoutes.ALL) {
+            QuadPointArray points = TestRoutes.load(route);
+            points.setLevels(VisvalingamRanking.computeLevels(points));
+            check(route, points, 1);
+        }
+    }
+
+    @Test
+    public void indexLevels() {
+        for (String route : TestRoutes.ALL)
+            check(route, TestRoutes.load(route), 2);
+    }
+
+    private static void check(String name, QuadPointArray points, long seed) {
+        Random rnd = new Random(seed);
+        for (int n = 0; n < QUERIES; ++n) {
+            // including the first and last points, and the ends of blocks of points
+            int idx = n % 4 == 0 ? rnd.nextInt(points.nrPoints) : n % 4 == 1 ? (rnd.nextInt(points.nrPoints) | 63) :
+                    n % 4 == 2 ? 0 : points.nrPoints - 1 - rnd.nextInt(2);
+            int minLevel = rnd.nextInt(Integer.SIZE + 1);
+            String message = name + ", point " + idx + ", level " + minLevel;
+            assertEquals(message, nextAtLevel(points, idx, minLevel), points.nextAtLevel(idx, minLevel));
+            assertEquals(message, prevAtLevel(points, idx, minLevel), points.prevAtLevel(idx, minLevel));
+        }
+    }
+
+    private static int nextAtLevel(QuadPointArray points, int idx, int minLevel) {
+        for (int k = idx + 1; k < points.nrPoints; ++k)
+            if (points.level(k) >= minLevel)
+                return k;
+        return points.nrPoints - 1;
+    }
+
+    private static int prevAtLevel(QuadPointArray points, int idx, int minLevel) {
+        for (int k = Math.min(idx, points.nrPoints) - 1; k > 0; --k)
+            if (points.level(k) >= minLevel)
+                return k;
+        return 0;
+    }
+}
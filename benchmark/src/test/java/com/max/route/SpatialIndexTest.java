@@ -0,0 +1,129 @@
+package com.max.route;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Each {@link SpatialIndexType} must give the same results as a brute force search: all points in a
+ * rectangle (with a minimum level, and optionally within a range of point indices), and the nearest point.
+ */
+public class SpatialIndexTest {
+    private static final int RECT_QUERIES = 150;
+    private static final int NEAREST_QUERIES = 300;
+
+    @Test
+    public void routesWithIndexLevels() {
+        // levels only depending on the point index (see QuadNode#level)
+        for (String route : TestRoutes.ALL)
+            check(route, TestRoutes.load(route), 0);
+    }
+
+    @Test
+    public void routesWithRankedLevels() {
+        // levels as used by the app
+        for (String route : TestRoutes.ALL) {
+            QuadPointArray points = TestRoutes.load(route);
+            points.setLevels(VisvalingamRanking.computeLevels(points));
+            check(route, points, 1);
+        }
+    }
+
+    @Test
+    public void randomPoints() {
+        // few points, with many duplicates and points on the edges of the cells and nodes they are stored in
+        Random rnd = new Random(2);
+        for (int count : new int[] {1, 2, 3, 16, 17, 100, 1000}) {
+            QuadPointArray points = new QuadPointArray(count);
+            for (int k = 0; k < count; ++k)
+                points.add(600_000 + (rnd.nextInt(64) << rnd.nextInt(10)), 6_500_000 + (rnd.nextInt(64) << rnd.nextInt(10)), PathType.MINOR_ROAD);
+            check(count + " random points", points, count);
+        }
+    }
+
+    @Test
+    public void noPoints() {
+        QuadPointArray points = new QuadPointArray(1);
+        for (SpatialIndexType type : SpatialIndexType.values()) {
+            SpatialIndex index = type.build(points);
+            QuadMatches matches = new QuadMatches();
+            index.queryTree(0, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, points, matches);
+            assertEquals(type.toString(), 0, matches.matchCount);
+            assertEquals(type.toString(), -1, index.getNearestNeighbor(0, 0, 0, Integer.MAX_VALUE, points, new NearestNeighborQuery()));
+        }
+    }
+
+    private static void check(String name, QuadPointArray points, long seed) {
+        SpatialIndexType[] types = SpatialIndexType.values();
+        SpatialIndex[] indices = new SpatialIndex[types.length];
+        for (int t = 0; t < types.length; ++t)
+            indices[t] = types[t].build(points);
+
+        Random rnd = new Random(seed);
+        int[] queries = TestRoutes.randomPoints(points, Math.max(RECT_QUERIES, NEAREST_QUERIES), seed);
+        QuadMatches matches = new QuadMatches();
+        NearestNeighborQuery query = new NearestNeighborQuery();
+
+        for (int n = 0; n < RECT_QUERIES; ++n) {
+            // from single points to areas larger than the route
+            int half = rnd.nextInt(4) == 0 ? 0 : rnd.nextInt(1 << 4 + rnd.nextInt(14));
+            int qx0 = queries[n*2] - half, qy0 = queries[n*2 + 1] - half;
+            int qx1 = queries[n*2] + half + rnd.nextInt(2), qy1 = queries[n*2 + 1] + half;
+            int minLevel = rnd.nextInt(3) == 0 ? 0 : rnd.nextInt(Integer.SIZE + 2);
+            int beginIdx = randomIdx(rnd, points), endIdx = beginIdx + rnd.nextInt(points.nrPoints + 10);
+            int[] expected = TestRoutes.pointsInRect(points, minLevel, qx0, qy0, qx1, qy1, 0, Integer.MAX_VALUE);
+            int[] expectedInRange = TestRoutes.pointsInRect(points, minLevel, qx0, qy0, qx1, qy1, beginIdx, endIdx);
+
+            for (int t = 0; t < types.length; ++t) {
+                String message = name + ", " + types[t] + ", query " + n;
+                matches.clear();
+                indices[t].queryTree(minLevel, qx0, qy0, qx1, qy1, points, matches);
+                assertArrayEquals(message, expected, TestRoutes.toSortedArray(matches));
+
+                matches.clear();
+                indices[t].queryTree(minLevel, qx0, qy0, qx1, qy1, beginIdx, endIdx, points, matches);
+                assertArrayEquals(message + " [" + beginIdx + ", " + endIdx + ")", expectedInRange, TestRoutes.toSortedArray(matches));
+            }
+        }
+
+        for (int n = 0; n < NEAREST_QUERIES; ++n) {
+            int qx = queries[n*2], qy = queries[n*2 + 1];
+            // the whole route, a range (possibly empty), and a short range as searched by the navigator
+            int beginIdx = randomIdx(rnd, points), endIdx = beginIdx + rnd.nextInt(points.nrPoints + 10);
+            int shortBeginIdx = randomIdx(rnd, points), shortEndIdx = shortBeginIdx + rnd.nextInt(100);
+            long expected = TestRoutes.nearestDist(points, qx, qy, 0, Integer.MAX_VALUE);
+            long expectedInRange = TestRoutes.nearestDist(points, qx, qy, beginIdx, endIdx);
+            long expectedInShortRange = TestRoutes.nearestDist(points, qx, qy, shortBeginIdx, shortEndIdx);
+
+            for (int t = 0; t < types.length; ++t) {
+                String message = name + ", " + types[t] + ", query " + n;
+                assertNearest(message, expected, points, qx, qy, 0, Integer.MAX_VALUE,
+                        indices[t].getNearestNeighbor(qx, qy, 0, Integer.MAX_VALUE, points, query));
+                assertNearest(message, expectedInRange, points, qx, qy, beginIdx, endIdx,
+                        indices[t].getNearestNeighbor(qx, qy, beginIdx, endIdx, points, query));
+                assertNearest(message, expectedInShortRange, points, qx, qy, shortBeginIdx, shortEndIdx,
+                        indices[t].getNearestNeighbor(qx, qy, shortBeginIdx, shortEndIdx, points, query));
+            }
+        }
+    }
+
+    /** @return A point index, or an index a little outside the route. */
+    private static int randomIdx(Random rnd, QuadPointArray points) {
+        return rnd.nextInt(points.nrPoints + 20) - 10;
+    }
+
+    /** Which of several points at the same distance is found may differ, so compare the distances. */
+    private static void assertNearest(String message, long expectedDist, QuadPointArray points, int qx, int qy,
+                                      int beginIdx, int endIdx, int idx) {
+        message += " [" + beginIdx + ", " + endIdx + ")";
+        if (expectedDist < 0) {
+            assertEquals(message, -1, idx);
+        } else {
+            assertEquals(message, true, idx >= Math.max(0, beginIdx) && idx < endIdx);
+            assertEquals(message, expectedDist, TestRoutes.dist(points, idx, qx, qy));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.max.route;
+
+import com.max.kml.BinaryRouteLoader;
+import com.max.kml.InvalidKMLException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Route resources of the app module and query points around them, plus brute force versions of the queries. */
+class TestRoutes {
+    /** Route resources used by the tests; from ~27k to ~51k points. */
+    static final String SORMLANDSLEDEN = "sormlandsleden.obj";
+    static final String GOTLAND = "gotland_all_roads_one_way_567919m.obj";
+    static final String TILTOPPS = "tiltopps_sverige_from_stockholm.obj";
+
+    static final String[] ALL = {SORMLANDSLEDEN, GOTLAND, TILTOPPS};
+
+    static QuadPointArray load(String name) {
+        File file = new File(System.getProperty("routes.dir", "../app/src/main/res/raw"), name);
+        try (InputStream is = new FileInputStream(file)) {
+            return new BinaryRouteLoader().loadRoute(is);
+        } catch (IOException | InvalidKMLException e) {
+            throw new IllegalStateException("Failed to load route " + file, e);
+        }
+    }
+
+    /**
+     * Random query points: most of them near a random route point (as GPS fixes are), and the rest anywhere
+     * in the bounding box of the route extended by 10 km. Deterministic for a given seed.
+     * @return Coordinates, x and y interleaved.
+     */
+    static int[] randomPoints(QuadPointArray points, int count, long seed) {
+        int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+        for (int k = 0; k < points.nrPoints; ++k) {
+            x0 = Math.min(x0, points.getX(k));
+            y0 = Math.min(y0, points.getY(k));
+            x1 = Math.max(x1, points.getX(k));
+            y1 = Math.max(y1, points.getY(k));
+        }
+
+        Random rnd = new Random(seed);
+        int[] xy = new int[count*2];
+        for (int n = 0; n < count; ++n) {
+            if (n % 4 != 0) {
+                int k = rnd.nextInt(points.nrPoints);
+                xy[n*2] = (int) (points.getX(k) + rnd.nextGaussian() * 200);
+                xy[n*2 + 1] = (int) (points.getY(k) + rnd.nextGaussian() * 200);
+            } else {
+                xy[n*2] = x0 - 10_000 + rnd.nextInt(x1 - x0 + 20_000);
+                xy[n*2 + 1] = y0 - 10_000 + rnd.nextInt(y1 - y0 + 20_000);
+            }
+        }
+        return xy;
+    }
+
+    /**
+     * Simulated GPS trace of following the route from start to end, with a fix every stepSize meters and
+     * normally distributed noise (standard deviation noise meters). Deterministic for a given seed.
+     * @return Coordinates, x and y interleaved.
+     */
+    static int[] trajectory(QuadPointArray points, int stepSize, double noise, long seed) {
+        Random rnd = new Random(seed);
+        int[] xy = new int[1024];
+        int count = 0;
+
+        // distance from the start of the current segment to the next fix
+        double pos = 0;
+        for (int k = 0; k + 1 < points.nrPoints; ++k) {
+            double dx = points.getX(k+1) - points.getX(k), dy = points.getY(k+1) - points.getY(k);
+            double len = Math.sqrt(dx*dx + dy*dy);
+            for (; pos < len; pos += stepSize) {
+                if (count == xy.length)
+                    xy = Arrays.copyOf(xy, count << 1);
+                xy[count++] = (int) (points.getX(k) + dx * pos / len + rnd.nextGaussian() * noise + 0.5);
+                xy[count++] = (int) (points.getY(k) + dy * pos / len + rnd.nextGaussian() * noise + 0.5);
+            }
+            pos -= len;
+        }
+        return Arrays.copyOf(xy, count);
+    }
+
+    static long dist(QuadPointArray points, int idx, int qx, int qy) {
+        long dx = points.getX(idx) - qx, dy = points.getY(idx) - qy;
+        return dx*dx + dy*dy;
+    }
+
+    /** @return Squared distance to the nearest point with index in [beginIdx, endIdx), or -1 if there is none. */
+    static long nearestDist(QuadPointArray points, int qx, int qy, int beginIdx, int endIdx) {
+        long best = -1;
+        for (int k = Math.max(0, beginIdx), end = Math.min(points.nrPoints, endIdx); k < end; ++k) {
+            long dist = dist(points, k, qx, qy);
+            if (best < 0 || dist < best)
+                best = dist;
+        }
+        return best;
+    }
+
+    /** @return Indices of the points with at least the given level and index in [beginIdx, endIdx) within the rectangle, ascending. */
+    static int[] pointsInRect(QuadPointArray points, int minLevel, int qx0, int qy0, int qx1, int qy1, int beginIdx, int endIdx) {
+        int[] result = new int[64];
+        int count = 0;
+        for (int k = Math.max(0, beginIdx), end = Math.min(points.nrPoints, endIdx); k < end; ++k) {
+            int x = points.getX(k), y = points.getY(k);
+            if (points.level(k) >= minLevel && x >= qx0 && x <= qx1 && y >= qy0 && y <= qy1) {
+                if (count == result.length)
+                    result = Arrays.copyOf(result, count << 1);
+                result[count++] = k;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /** @return The matches, sorted. */
+    static int[] toSortedArray(QuadMatches matches) {
+        int[] result = new int[matches.matchCount];
+        for (int n = 0; n < result.length; ++n)
+            result[n] = matches.get(n);
+        Arrays.sort(result);
+        return result;
+    }
+}